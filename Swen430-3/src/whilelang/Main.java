@@ -19,16 +19,55 @@
 package whilelang;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
 import java.lang.reflect.Method;
+import java.util.Map;
 
 import whilelang.ast.WhileFile;
+import whilelang.compiler.BytecodeWriter;
+import whilelang.compiler.ClassFileLoader;
 import whilelang.compiler.ClassFileWriter;
 import whilelang.compiler.TypeChecker;
 import whilelang.compiler.WhileCompiler;
 import whilelang.util.*;
+import whilelang.vm.VirtualMachine;
 
 public class Main {
 
+	/**
+	 * The available ways of executing a compiled While program.
+	 */
+	public enum Engine {
+		/**
+		 * Compile to JVM classes in memory, and execute them on the JVM using
+		 * a <code>ClassFileLoader</code> of their own.
+		 */
+		JVM,
+		/**
+		 * Compile to a JVM class file alongside the source file, and execute
+		 * it on the JVM after loading it from the class path.
+		 */
+		CLASSFILE,
+		/**
+		 * Execute the Abstract Syntax Tree directly using the
+		 * <code>Interpreter</code>.
+		 */
+		INTERPRETER,
+		/**
+		 * Execute using the <code>ClosureInterpreter</code>, which first
+		 * converts each method into a tree of executable nodes.
+		 */
+		CLOSURE,
+		/**
+		 * Compile to register-based bytecode using the
+		 * <code>BytecodeWriter</code>, and execute it on the
+		 * <code>VirtualMachine</code>.
+		 */
+		VM
+	}
+
 	/**
 	 * A simple entry point for running the compiler. This parses command-line
 	 * options and then compiles and executes any while source files supplied.
@@ -38,6 +77,8 @@ public class Main {
 	 */
 	public static void main(String[] args) throws Exception {
 		boolean verbose = false;
+		Engine engine = Engine.JVM;
+		Profiler.Mode profile = null;
 		int fileArgsBegin = 0;
 
 		for (int i = 0; i != args.length; ++i) {
@@ -51,6 +92,20 @@ public class Main {
 					System.exit(0);
 				} else if (arg.equals("-verbose")) {
 					verbose = true;
+				} else if (arg.equals("-jvm")) {
+					engine = Engine.JVM;
+				} else if (arg.equals("-classfile")) {
+					engine = Engine.CLASSFILE;
+				} else if (arg.equals("-interpret")) {
+					engine = Engine.INTERPRETER;
+				} else if (arg.equals("-closure")) {
+					engine = Engine.CLOSURE;
+				} else if (arg.equals("-vm")) {
+					engine = Engine.VM;
+				} else if (arg.equals("-profile")) {
+					profile = Profiler.Mode.INSTRUMENT;
+				} else if (arg.equals("-sample")) {
+					profile = Profiler.Mode.SAMPLE;
 				} else {
 					throw new RuntimeException("Unknown option: " + args[i]);
 				}
@@ -61,7 +116,7 @@ public class Main {
 
 		for (int i = fileArgsBegin; i != args.length; ++i) {
 			String filename = args[i];
-			if(!compileAndExecute(filename,verbose)) {
+			if(!compileAndExecute(filename,engine,profile,verbose)) {
 				System.exit(-1);
 			}
 		}
@@ -73,12 +128,27 @@ public class Main {
 	 * 
 	 * @param sourceFilename
 	 *            Filename of while source file to be compiled.
+	 * @param engine
+	 *            The engine used to execute the compiled program.
+	 * @param profile
+	 *            The mode in which to profile the program, or null if it is
+	 *            not profiled. Profiling is supported by the interpreter and
+	 *            the JVM.
 	 * @param verbose
 	 *            Flag indicating whether or not to print out detailed
 	 *            information when an error occurs.
 	 * @return
 	 */
-	public static boolean compileAndExecute(String sourceFilename, boolean verbose) {
+	public static boolean compileAndExecute(String sourceFilename, Engine engine, Profiler.Mode profile,
+			boolean verbose) {
+		Profiler profiler = null;
+		if(profile != null) {
+			if(engine != Engine.INTERPRETER && engine != Engine.JVM && engine != Engine.CLASSFILE) {
+				System.err.println("Error: profiling requires -interpret or the JVM");
+				return false;
+			}
+			profiler = new Profiler(profile, PROFILER_INTERVAL);
+		}
 		try {			
 
 			WhileCompiler compiler = new WhileCompiler(sourceFilename);
@@ -87,15 +157,59 @@ public class Main {
 			WhileFile ast = compiler.compile();
 			
 			// Second, execute it!
-			//new Interpreter().run(ast);
-			
-			String classFilename = sourceFilename.replace(".while", ".class");
-			new ClassFileWriter(classFilename).write(ast);
-			Class testClass = Class.forName(classFilename.replace(".class", ""));
-			Method m = testClass.getMethod("main");
-			m.invoke(null);
+			switch(engine) {
+			case INTERPRETER:
+				Interpreter interpreter = new Interpreter();
+				interpreter.setProfiler(profiler);
+				interpreter.run(ast);
+				break;
+			case CLOSURE:
+				new ClosureInterpreter().run(ast);
+				break;
+			case VM:
+				new VirtualMachine(new BytecodeWriter().write(ast)).run();
+				break;
+			default:
+				Method m;
+				ClassFileWriter writer;
+				if(engine == Engine.CLASSFILE) {
+					String classFilename = sourceFilename.replace(".while", ".class");
+					writer = new ClassFileWriter(classFilename);
+					writer.setProfiling(profiler != null);
+					writer.write(ast);
+					Class testClass = Class.forName(classFilename.replace(".class", ""));
+					m = testClass.getMethod("main");
+				} else {
+					writer = new ClassFileWriter();
+					writer.setProfiling(profiler != null);
+					ClassFileLoader loader = new ClassFileLoader(writer.generate(ast));
+					m = loader.getMain(new File(sourceFilename).getName().replace(".while", ""));
+				}
+				if(verbose) {
+					for(Map.Entry<String,Integer> e : writer.getClonesAvoided().entrySet()) {
+						System.err.println(e.getKey() + ": " + e.getValue() + " clone(s) avoided");
+					}
+					for(Map.Entry<String,int[]> e : writer.getInstructionCounts().entrySet()) {
+						System.err.println(e.getKey() + ": " + e.getValue()[0] + " -> " + e.getValue()[1]
+								+ " instruction(s) after peephole optimisation");
+					}
+				}
+				if(profiler != null) {
+					Profiler.install(profiler);
+					profiler.start(sourceFilename);
+				}
+				try {
+					m.invoke(null);
+				} finally {
+					if(profiler != null) {
+						profiler.stop();
+						Profiler.install(null);
+					}
+				}
+			}
 			
 		} catch (SyntaxError e) {
+			reportProfile(profiler, sourceFilename);
 			// Catch a syntax error which has occurred during one of the
 			// compiler stages, such as parsing or type checking.
 			if (e.filename() != null) {
@@ -108,15 +222,55 @@ public class Main {
 			}
 			return false;
 		} catch (Exception e) {
+			reportProfile(profiler, sourceFilename);
 			System.err.println("Error: " + e.getMessage());
 			if (verbose) {
 				e.printStackTrace();
 			}
 			return false;
 		}
+		reportProfile(profiler, sourceFilename);
 		// Success
 		return true;
 	}
+	
+	/**
+	 * The interval between samples taken when sampling, in microseconds.
+	 */
+	private static final int PROFILER_INTERVAL = 1000;
+	
+	/**
+	 * The number of lines given in a hot-spot report.
+	 */
+	private static final int PROFILER_LINES = 20;
+	
+	/**
+	 * Report the results of profiling a given source file (if it was
+	 * profiled). A hot-spot report is printed, and a collapsed stack file
+	 * (for use with <code>flamegraph.pl</code>) written alongside the source
+	 * file.
+	 * 
+	 * @param profiler
+	 * @param sourceFilename
+	 */
+	private static void reportProfile(Profiler profiler, String sourceFilename) {
+		if(profiler == null) {
+			return;
+		}
+		String stacksFilename = sourceFilename.replace(".while", ".collapsed");
+		try {
+			PrintStream stacks = new PrintStream(new FileOutputStream(stacksFilename), false, "UTF-8");
+			try {
+				profiler.writeCollapsedStacks(stacks);
+			} finally {
+				stacks.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Error: cannot write " + stacksFilename + " (" + e.getMessage() + ")");
+		}
+		profiler.writeHotSpots(System.out, PROFILER_LINES);
+		System.out.println("Collapsed stacks written to " + stacksFilename);
+	}
 
 	/**
 	 * Print out information regarding command-line arguments
@@ -125,7 +279,14 @@ public class Main {
 	public static void usage() {
 		String[][] info = { 
 				{ "version", "Print version information" },
-				{ "verbose", "Print detailed information on what the compiler is doing" } 
+				{ "verbose", "Print detailed information on what the compiler is doing" },
+				{ "jvm", "Compile to JVM classes in memory, and execute them on the JVM (default)" },
+				{ "classfile", "Compile to a JVM class file alongside the source, and execute it on the JVM" },
+				{ "interpret", "Execute using the reference interpreter, rather than the JVM" },
+				{ "closure", "Execute using the closure-compiling interpreter, rather than the JVM" },
+				{ "vm", "Execute using the register-based bytecode VM, rather than the JVM" },
+				{ "profile", "Count calls and statements, and time calls, whilst executing" },
+				{ "sample", "Sample the calls and statements executing periodically" } 
 				};
 
 		System.out.println("usage: wlc <options> <source-files>");
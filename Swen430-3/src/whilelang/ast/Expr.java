@@ -55,6 +55,8 @@ public interface Expr extends SyntacticElement {
 
 		private String name;
 
+		private int slot = -1;
+
 		/**
 		 * Construct a variable expression from a given variable name.
 		 * 
@@ -83,6 +85,20 @@ public interface Expr extends SyntacticElement {
 		public void setVar(String var) {
 			this.name = var;
 		}
+
+		/**
+		 * Get the frame slot allocated to this variable, or -1 if slots have
+		 * not yet been resolved.
+		 * 
+		 * @return
+		 */
+		public int getSlot() {
+			return slot;
+		}
+
+		public void setSlot(int slot) {
+			this.slot = slot;
+		}
 	}
 
 	/**
@@ -247,6 +263,7 @@ public interface Expr extends SyntacticElement {
 		private final BOp op;
 		private final Expr lhs;
 		private final Expr rhs;
+		private Interpreter.BinaryNode node;
 
 		/**
 		 * Construct a binary expression from a given left-hand expression and
@@ -317,6 +334,21 @@ public interface Expr extends SyntacticElement {
 		public BOp getOp() {
 			return op;
 		}
+
+		/**
+		 * Get the specialised node which currently implements this expression
+		 * in the <code>Interpreter</code>, or null if it has not yet been
+		 * executed.
+		 * 
+		 * @return
+		 */
+		public Interpreter.BinaryNode getNode() {
+			return node;
+		}
+
+		public void setNode(Interpreter.BinaryNode node) {
+			this.node = node;
+		}
 	}
 
 	/**
@@ -577,6 +609,8 @@ public interface Expr extends SyntacticElement {
 		private final Expr source;
 		private final String name;
 
+		private RecordLayout.Offset offset;
+
 		/**
 		 * Construct a record access expression from a given source expression
 		 * and field name.
@@ -616,6 +650,28 @@ public interface Expr extends SyntacticElement {
 		public String getName() {
 			return name;
 		}
+
+		/**
+		 * Get the offset of this field within the layout of the record last
+		 * accessed, or null if none.
+		 * 
+		 * @return
+		 */
+		public RecordLayout.Offset getOffset() {
+			return offset;
+		}
+
+		/**
+		 * Record the offset of this field within the layout of the record
+		 * being accessed. Since most record accesses only ever see records of
+		 * one layout, this allows the field to be found without searching the
+		 * layout each time.
+		 * 
+		 * @param offset
+		 */
+		public void setOffset(RecordLayout.Offset offset) {
+			this.offset = offset;
+		}
 	}
 
 	/**
@@ -633,6 +689,8 @@ public interface Expr extends SyntacticElement {
 
 		private final ArrayList<Pair<String, Expr>> fields;
 
+		private RecordLayout layout;
+
 		/**
 		 * Construct a record constructor expression from a given mapping of
 		 * field names to their generating expressions.
@@ -657,6 +715,20 @@ public interface Expr extends SyntacticElement {
 		public List<Pair<String, Expr>> getFields() {
 			return fields;
 		}				
+
+		/**
+		 * Get the layout of the records constructed by this expression, or null
+		 * if this has not yet been determined.
+		 * 
+		 * @return
+		 */
+		public RecordLayout getLayout() {
+			return layout;
+		}
+
+		public void setLayout(RecordLayout layout) {
+			this.layout = layout;
+		}
 	}
 
 	/**
@@ -673,6 +745,7 @@ public interface Expr extends SyntacticElement {
 
 		private final String name;
 		private final ArrayList<Expr> arguments;
+		private CallSite callSite;
 
 		/**
 		 * Construct a function invocation expression from a given function name
@@ -712,5 +785,19 @@ public interface Expr extends SyntacticElement {
 		public List<Expr> getArguments() {
 			return arguments;
 		}
+
+		/**
+		 * Get the binding of this invocation to the function it calls, or null
+		 * if it has not yet been bound.
+		 * 
+		 * @return
+		 */
+		public CallSite getCallSite() {
+			return callSite;
+		}
+
+		public void setCallSite(CallSite callSite) {
+			this.callSite = callSite;
+		}
 	}
 }
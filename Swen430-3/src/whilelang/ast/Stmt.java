@@ -689,6 +689,7 @@ public interface Stmt extends SyntacticElement {
 	public static final class Switch extends SyntacticElement.Impl implements Stmt {
 		private final Expr expr;
 		private final ArrayList<Case> cases;
+		private JumpTable jumpTable;
 		
 		/**
 		 * Construct a switch statement from a given expression and a list of
@@ -744,6 +745,20 @@ public interface Stmt extends SyntacticElement {
 		public List<Case> getCases() {
 			return cases;
 		}		
+		
+		/**
+		 * Get the jump table compiled for this switch, or null if none has
+		 * been compiled.
+		 * 
+		 * @return
+		 */
+		public JumpTable getJumpTable() {
+			return jumpTable;
+		}
+		
+		public void setJumpTable(JumpTable jumpTable) {
+			this.jumpTable = jumpTable;
+		}
 	}
 	
 	/**
@@ -769,6 +784,7 @@ public interface Stmt extends SyntacticElement {
 		private final Type type;
 		private final String name;
 		private final Expr expr;
+		private int slot = -1;
 
 		/**
 		 * Construct a variable declaration from a given type, variable name and
@@ -845,5 +861,19 @@ public interface Stmt extends SyntacticElement {
 		public Expr getExpr() {
 			return expr;
 		}
+
+		/**
+		 * Get the frame slot allocated to the variable being declared, or -1
+		 * if slots have not yet been resolved.
+		 * 
+		 * @return
+		 */
+		public int getSlot() {
+			return slot;
+		}
+
+		public void setSlot(int slot) {
+			this.slot = slot;
+		}
 	}
 }
@@ -115,6 +115,8 @@ public class WhileFile {
 		private final Type ret;
 		private final ArrayList<Parameter> parameters;
 		private final ArrayList<Stmt> statements;
+		private int frameSize = -1;
+		private boolean pure;
 
 		/**
 		 * Construct an object representing a Whiley function.
@@ -157,6 +159,36 @@ public class WhileFile {
 		public List<Stmt> getBody() {
 			return statements;
 		}
+
+		/**
+		 * Get the number of frame slots needed to hold every parameter and
+		 * local variable of this method, or -1 if slots have not yet been
+		 * resolved.
+		 * 
+		 * @return
+		 */
+		public int getFrameSize() {
+			return frameSize;
+		}
+
+		public void setFrameSize(int frameSize) {
+			this.frameSize = frameSize;
+		}
+
+		/**
+		 * Determine whether this method has been found to be pure by
+		 * <code>PurityAnalysis</code>. That is, whether its result is
+		 * determined solely by its arguments, and it has no other effect.
+		 * 
+		 * @return
+		 */
+		public boolean isPure() {
+			return pure;
+		}
+
+		public void setPure(boolean pure) {
+			this.pure = pure;
+		}
 	}
 
 	public static final class Parameter extends SyntacticElement.Impl implements Decl {
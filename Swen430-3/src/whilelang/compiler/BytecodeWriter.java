@@ -0,0 +1,1039 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.compiler;
+
+import static whilelang.util.SyntaxError.internalFailure;
+import static whilelang.vm.Opcodes.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import whilelang.ast.*;
+import whilelang.util.Pair;
+import whilelang.vm.Function;
+
+/**
+ * <p>
+ * Responsible for translating a While source file into the register-based
+ * bytecode executed by <code>whilelang.vm.VirtualMachine</code>. Every variable
+ * is given a fixed register in one of two banks, depending on its type:
+ * <code>int</code>, <code>bool</code> and <code>char</code> variables are held
+ * unboxed in the int bank, whilst all others are held in the object bank.
+ * Intermediate values are held in temporary registers, which are allocated
+ * above those of the variables and released at the end of each statement.
+ * </p>
+ * <p>
+ * Structured control flow is translated into jumps. Loops are laid out with
+ * their condition at the bottom, and conditions which compare integers are
+ * translated into a single compare-and-branch instruction. A statement which
+ * returns the result of an invocation is translated into a tail call.
+ * </p>
+ *
+ */
+public class BytecodeWriter {
+	private WhileFile file;
+
+	/**
+	 * Maps each declared type to its body
+	 */
+	private HashMap<String, Type> declaredTypes;
+
+	/**
+	 * Maps each declared method to its index in the generated function table
+	 */
+	private HashMap<String, Integer> functionIndices;
+
+	/**
+	 * The declared methods, in the order of the generated function table
+	 */
+	private ArrayList<WhileFile.MethodDecl> methods;
+
+	public Function[] write(WhileFile wf) {
+		this.file = wf;
+		this.declaredTypes = new HashMap<String, Type>();
+		this.functionIndices = new HashMap<String, Integer>();
+		this.methods = new ArrayList<WhileFile.MethodDecl>();
+
+		for (WhileFile.Decl d : wf.declarations) {
+			if (d instanceof WhileFile.MethodDecl) {
+				WhileFile.MethodDecl md = (WhileFile.MethodDecl) d;
+				functionIndices.put(md.getName(), methods.size());
+				methods.add(md);
+			} else if (d instanceof WhileFile.TypeDecl) {
+				WhileFile.TypeDecl td = (WhileFile.TypeDecl) d;
+				declaredTypes.put(td.getName(), td.getType());
+			}
+		}
+
+		// Make sure every variable has been resolved to a frame slot, since
+		// registers are allocated per slot.
+		for (WhileFile.MethodDecl md : methods) {
+			if (md.getFrameSize() < 0) {
+				new SlotResolver().resolve(wf);
+				break;
+			}
+		}
+
+		Function[] functions = new Function[methods.size()];
+		for (int i = 0; i != functions.length; ++i) {
+			functions[i] = translate(methods.get(i));
+		}
+		return functions;
+	}
+
+	/**
+	 * Translate a given While method into a bytecode function.
+	 *
+	 * @param method
+	 * @return
+	 */
+	private Function translate(WhileFile.MethodDecl method) {
+		Context context = new Context();
+
+		// First, allocate registers for the parameters
+		List<WhileFile.Parameter> parameters = method.getParameters();
+		int[] parameterKinds = new int[parameters.size()];
+		int[] parameterRegisters = new int[parameters.size()];
+		for (int i = 0; i != parameterKinds.length; ++i) {
+			Type type = parameters.get(i).getType();
+			parameterKinds[i] = kindOf(type);
+			// Parameters always occupy the first slots
+			parameterRegisters[i] = context.declare(i, parameterKinds[i]);
+		}
+
+		// Second, allocate registers for the local variables. These are all
+		// allocated up front, so that temporaries can be allocated above them.
+		declare(method.getBody(), context);
+		context.intTop = context.intVariables.size();
+		context.objectTop = context.objectVariables.size();
+		context.maxInt = context.intTop;
+		context.maxObject = context.objectTop;
+
+		// Third, translate the method body. The final return is only
+		// reachable for methods which can fall off the end of their body.
+		translate(method.getBody(), context);
+		context.emit(RETURN);
+
+		return new Function(method.getName(), context.code(), context.constants.toArray(), context.maxInt,
+				context.maxObject, parameterKinds, parameterRegisters, kindOf(method.getRet()));
+	}
+
+	/**
+	 * Allocate a register for every variable declared in a given list of
+	 * statements.
+	 *
+	 * @param stmts
+	 * @param context
+	 */
+	private void declare(List<Stmt> stmts, Context context) {
+		for (Stmt stmt : stmts) {
+			if (stmt instanceof Stmt.VariableDeclaration) {
+				Stmt.VariableDeclaration vd = (Stmt.VariableDeclaration) stmt;
+				context.declare(vd.getSlot(), kindOf(vd.getType()));
+			} else if (stmt instanceof Stmt.IfElse) {
+				Stmt.IfElse s = (Stmt.IfElse) stmt;
+				declare(s.getTrueBranch(), context);
+				declare(s.getFalseBranch(), context);
+			} else if (stmt instanceof Stmt.For) {
+				Stmt.For s = (Stmt.For) stmt;
+				Stmt.VariableDeclaration vd = s.getDeclaration();
+				context.declare(vd.getSlot(), kindOf(vd.getType()));
+				declare(s.getBody(), context);
+			} else if (stmt instanceof Stmt.While) {
+				declare(((Stmt.While) stmt).getBody(), context);
+			} else if (stmt instanceof Stmt.Switch) {
+				for (Stmt.Case c : ((Stmt.Switch) stmt).getCases()) {
+					declare(c.getBody(), context);
+				}
+			}
+		}
+	}
+
+	// =========================================================================
+	// Statements
+	// =========================================================================
+
+	private void translate(List<Stmt> stmts, Context context) {
+		for (Stmt s : stmts) {
+			// Temporaries only live for the duration of a single statement
+			int intMark = context.intTop;
+			int objectMark = context.objectTop;
+			translate(s, context);
+			context.intTop = intMark;
+			context.objectTop = objectMark;
+		}
+	}
+
+	private void translate(Stmt stmt, Context context) {
+		if (stmt instanceof Stmt.Assert) {
+			translate((Stmt.Assert) stmt, context);
+		} else if (stmt instanceof Stmt.Assign) {
+			translate((Stmt.Assign) stmt, context);
+		} else if (stmt instanceof Stmt.Break) {
+			context.emitJump(GOTO, context.breakTargets.get(context.breakTargets.size() - 1));
+		} else if (stmt instanceof Stmt.Continue) {
+			context.emitJump(GOTO, context.continueTargets.get(context.continueTargets.size() - 1));
+		} else if (stmt instanceof Stmt.For) {
+			translate((Stmt.For) stmt, context);
+		} else if (stmt instanceof Stmt.IfElse) {
+			translate((Stmt.IfElse) stmt, context);
+		} else if (stmt instanceof Expr.Invoke) {
+			translate((Expr.Invoke) stmt, context);
+		} else if (stmt instanceof Stmt.While) {
+			translate((Stmt.While) stmt, context);
+		} else if (stmt instanceof Stmt.Print) {
+			translate((Stmt.Print) stmt, context);
+		} else if (stmt instanceof Stmt.Return) {
+			translate((Stmt.Return) stmt, context);
+		} else if (stmt instanceof Stmt.Switch) {
+			translate((Stmt.Switch) stmt, context);
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			translate((Stmt.VariableDeclaration) stmt, context);
+		} else {
+			internalFailure("unknown statement encountered (" + stmt + ")", file.filename, stmt);
+		}
+	}
+
+	private void translate(Stmt.Assert stmt, Context context) {
+		int condition = translate(stmt.getExpr(), context);
+		context.emit(ASSERT, condition);
+	}
+
+	private void translate(Stmt.Assign stmt, Context context) {
+		Expr.LVal lhs = stmt.getLhs();
+		if (lhs instanceof Expr.Variable) {
+			Expr.Variable v = (Expr.Variable) lhs;
+			translateAssignment(v.getSlot(), typeOf(v), stmt.getRhs(), context);
+		} else if (lhs instanceof Expr.IndexOf) {
+			Expr.IndexOf io = (Expr.IndexOf) lhs;
+			int source = translate(io.getSource(), context);
+			int index = translate(io.getIndex(), context);
+			int rhs = translateBoxed(stmt.getRhs(), context);
+			context.emit(ASTORE, source, index, rhs);
+		} else if (lhs instanceof Expr.RecordAccess) {
+			Expr.RecordAccess ra = (Expr.RecordAccess) lhs;
+			int source = translate(ra.getSource(), context);
+			int rhs = translateBoxed(stmt.getRhs(), context);
+			context.emit(RSTORE, source, context.constant(ra.getName()), rhs);
+		} else {
+			internalFailure("unknown lval encountered (" + lhs + ")", file.filename, stmt);
+		}
+	}
+
+	private void translate(Stmt.VariableDeclaration stmt, Context context) {
+		if (stmt.getExpr() != null) {
+			translateAssignment(stmt.getSlot(), stmt.getType(), stmt.getExpr(), context);
+		}
+	}
+
+	/**
+	 * Assign the value of a given expression to a variable. For variables held
+	 * in the object bank, the value is cloned to preserve the value semantics
+	 * of While.
+	 *
+	 * @param slot
+	 *            The slot of the variable being assigned
+	 * @param type
+	 *            The declared type of the variable being assigned
+	 * @param rhs
+	 *            The expression being assigned
+	 * @param context
+	 */
+	private void translateAssignment(int slot, Type type, Expr rhs, Context context) {
+		int kind = kindOf(type);
+		int target = context.variable(slot, kind);
+		int value = translate(rhs, context);
+		if (kind == Function.INT) {
+			if (!context.retarget(value, target)) {
+				context.emit(IMOVE, target, value);
+			}
+		} else {
+			context.emit(OCLONE, target, value);
+		}
+	}
+
+	private void translate(Stmt.For stmt, Context context) {
+		int body = context.label();
+		int increment = context.label();
+		int condition = context.label();
+		int exit = context.label();
+		translate(stmt.getDeclaration(), context);
+		context.emitJump(GOTO, condition);
+		context.bind(body);
+		translateLoopBody(stmt.getBody(), increment, exit, context);
+		context.bind(increment);
+		translate(Arrays.asList(stmt.getIncrement()), context);
+		context.bind(condition);
+		translateBranch(stmt.getCondition(), true, body, context);
+		context.bind(exit);
+	}
+
+	private void translate(Stmt.While stmt, Context context) {
+		int body = context.label();
+		int condition = context.label();
+		int exit = context.label();
+		context.emitJump(GOTO, condition);
+		context.bind(body);
+		translateLoopBody(stmt.getBody(), condition, exit, context);
+		context.bind(condition);
+		translateBranch(stmt.getCondition(), true, body, context);
+		context.bind(exit);
+	}
+
+	private void translateLoopBody(List<Stmt> body, int continueTarget, int breakTarget, Context context) {
+		context.continueTargets.add(continueTarget);
+		context.breakTargets.add(breakTarget);
+		translate(body, context);
+		context.continueTargets.remove(context.continueTargets.size() - 1);
+		context.breakTargets.remove(context.breakTargets.size() - 1);
+	}
+
+	private void translate(Stmt.IfElse stmt, Context context) {
+		int falseBranch = context.label();
+		int exit = context.label();
+		translateBranch(stmt.getCondition(), false, falseBranch, context);
+		translate(stmt.getTrueBranch(), context);
+		if (!stmt.getFalseBranch().isEmpty()) {
+			context.emitJump(GOTO, exit);
+		}
+		context.bind(falseBranch);
+		translate(stmt.getFalseBranch(), context);
+		context.bind(exit);
+	}
+
+	private void translate(Stmt.Switch stmt, Context context) {
+		List<Stmt.Case> cases = stmt.getCases();
+		Type type = typeOf(stmt.getExpr());
+		int kind = kindOf(type);
+		int value = translate(stmt.getExpr(), context);
+		int exit = context.label();
+		int[] labels = new int[cases.size()];
+		// First, test each case in the order given. The first case which is
+		// either the default, or matches the value, is where execution begins.
+		boolean hasDefault = false;
+		for (int i = 0; i != labels.length; ++i) {
+			labels[i] = context.label();
+			Stmt.Case c = cases.get(i);
+			if (c.isDefault()) {
+				context.emitJump(GOTO, labels[i]);
+				hasDefault = true;
+				break;
+			} else if (kind == Function.INT) {
+				int constant = translate(c.getValue(), context);
+				context.emitJump(IFEQ, value, constant, labels[i]);
+			} else {
+				int constant = translate(c.getValue(), context);
+				int equal = context.intTemp();
+				context.emit(OEQ, equal, value, constant);
+				context.emitJump(IFTRUE, equal, labels[i]);
+			}
+		}
+		if (!hasDefault) {
+			context.emitJump(GOTO, exit);
+		}
+		// Second, lay out each case body in order so that control falls
+		// through from one to the next.
+		context.breakTargets.add(exit);
+		for (int i = 0; i != labels.length; ++i) {
+			if (labels[i] == 0) {
+				// Unreachable case following the default
+				labels[i] = context.label();
+			}
+			context.bind(labels[i]);
+			translate(cases.get(i).getBody(), context);
+		}
+		context.breakTargets.remove(context.breakTargets.size() - 1);
+		context.bind(exit);
+	}
+
+	private void translate(Stmt.Return stmt, Context context) {
+		Expr expr = stmt.getExpr();
+		if (expr == null) {
+			context.emit(RETURN);
+		} else if (expr instanceof Expr.Invoke && isTailCall((Expr.Invoke) expr)) {
+			translateTailCall((Expr.Invoke) expr, context);
+		} else if (kindOf(typeOf(expr)) == Function.INT) {
+			context.emit(IRETURN, translate(expr, context));
+		} else {
+			context.emit(ORETURN, translate(expr, context));
+		}
+	}
+
+	private void translate(Stmt.Print stmt, Context context) {
+		Expr expr = stmt.getExpr();
+		Type type = expand(typeOf(expr));
+		int value = translate(expr, context);
+		if (type instanceof Type.Int) {
+			context.emit(IPRINT, value);
+		} else if (type instanceof Type.Bool) {
+			context.emit(BPRINT, value);
+		} else if (type instanceof Type.Char) {
+			context.emit(CPRINT, value);
+		} else {
+			context.emit(OPRINT, value);
+		}
+	}
+
+	// =========================================================================
+	// Conditions
+	// =========================================================================
+
+	/**
+	 * Translate a condition into a branch, which jumps to a given target when
+	 * the condition has the given outcome, and otherwise falls through.
+	 *
+	 * @param condition
+	 *            The condition being translated
+	 * @param when
+	 *            The outcome which causes the branch to be taken
+	 * @param target
+	 *            The label branched to
+	 * @param context
+	 */
+	private void translateBranch(Expr condition, boolean when, int target, Context context) {
+		if (condition instanceof Expr.Constant) {
+			if (((Expr.Constant) condition).getValue().equals(when)) {
+				context.emitJump(GOTO, target);
+			}
+			return;
+		} else if (condition instanceof Expr.Unary && ((Expr.Unary) condition).getOp() == Expr.UOp.NOT) {
+			translateBranch(((Expr.Unary) condition).getExpr(), !when, target, context);
+			return;
+		} else if (condition instanceof Expr.Binary) {
+			Expr.Binary b = (Expr.Binary) condition;
+			Expr lhs = b.getLhs();
+			Expr rhs = b.getRhs();
+			switch (b.getOp()) {
+			case AND:
+				if (when) {
+					int skip = context.label();
+					translateBranch(lhs, false, skip, context);
+					translateBranch(rhs, true, target, context);
+					context.bind(skip);
+				} else {
+					translateBranch(lhs, false, target, context);
+					translateBranch(rhs, false, target, context);
+				}
+				return;
+			case OR:
+				if (when) {
+					translateBranch(lhs, true, target, context);
+					translateBranch(rhs, true, target, context);
+				} else {
+					int skip = context.label();
+					translateBranch(lhs, true, skip, context);
+					translateBranch(rhs, false, target, context);
+					context.bind(skip);
+				}
+				return;
+			case LT:
+				translateCompareAndBranch(lhs, rhs, when ? IFLT : IFGE, target, context);
+				return;
+			case LTEQ:
+				translateCompareAndBranch(lhs, rhs, when ? IFLE : IFGT, target, context);
+				return;
+			case GT:
+				translateCompareAndBranch(lhs, rhs, when ? IFGT : IFLE, target, context);
+				return;
+			case GTEQ:
+				translateCompareAndBranch(lhs, rhs, when ? IFGE : IFLT, target, context);
+				return;
+			case EQ:
+			case NEQ:
+				if (isUnboxedComparison(lhs, rhs)) {
+					boolean equal = (b.getOp() == Expr.BOp.EQ) == when;
+					translateCompareAndBranch(lhs, rhs, equal ? IFEQ : IFNE, target, context);
+					return;
+				}
+			}
+		}
+		// Otherwise, evaluate the condition and branch on its value
+		int value = translate(condition, context);
+		context.emitJump(when ? IFTRUE : IFFALSE, value, target);
+	}
+
+	private void translateCompareAndBranch(Expr lhs, Expr rhs, int opcode, int target, Context context) {
+		int l = translate(lhs, context);
+		int r = translate(rhs, context);
+		context.emitJump(opcode, l, r, target);
+	}
+
+	/**
+	 * Check whether an equality between two expressions can be decided by
+	 * comparing their unboxed values. This is only possible when both have
+	 * the same primitive type; for example, the character <code>'a'</code>
+	 * never equals the integer <code>97</code>.
+	 *
+	 * @param lhs
+	 * @param rhs
+	 * @return
+	 */
+	private boolean isUnboxedComparison(Expr lhs, Expr rhs) {
+		Type lt = expand(typeOf(lhs));
+		Type rt = expand(typeOf(rhs));
+		return kindOf(lt) == Function.INT && lt.getClass() == rt.getClass();
+	}
+
+	// =========================================================================
+	// Expressions
+	// =========================================================================
+
+	/**
+	 * Translate a given expression, returning the register which holds its
+	 * value. This is in the int bank for expressions of type <code>int</code>,
+	 * <code>bool</code> or <code>char</code>, and the object bank otherwise.
+	 * The register returned may belong to a variable, and so must not be
+	 * written.
+	 *
+	 * @param expr
+	 * @param context
+	 * @return
+	 */
+	private int translate(Expr expr, Context context) {
+		if (expr instanceof Expr.ArrayGenerator) {
+			return translate((Expr.ArrayGenerator) expr, context);
+		} else if (expr instanceof Expr.ArrayInitialiser) {
+			return translate((Expr.ArrayInitialiser) expr, context);
+		} else if (expr instanceof Expr.Binary) {
+			return translate((Expr.Binary) expr, context);
+		} else if (expr instanceof Expr.Constant) {
+			return translate((Expr.Constant) expr, context);
+		} else if (expr instanceof Expr.IndexOf) {
+			return translate((Expr.IndexOf) expr, context);
+		} else if (expr instanceof Expr.Invoke) {
+			return translate((Expr.Invoke) expr, context);
+		} else if (expr instanceof Expr.RecordAccess) {
+			return translate((Expr.RecordAccess) expr, context);
+		} else if (expr instanceof Expr.RecordConstructor) {
+			return translate((Expr.RecordConstructor) expr, context);
+		} else if (expr instanceof Expr.Unary) {
+			return translate((Expr.Unary) expr, context);
+		} else if (expr instanceof Expr.Variable) {
+			Expr.Variable v = (Expr.Variable) expr;
+			return context.variable(v.getSlot(), kindOf(typeOf(v)));
+		} else {
+			internalFailure("unknown expression encountered (" + expr + ")", file.filename, expr);
+			return 0; // dead code
+		}
+	}
+
+	/**
+	 * Translate a given expression, returning an object register which holds
+	 * its value. Values held in the int bank are boxed.
+	 *
+	 * @param expr
+	 * @param context
+	 * @return
+	 */
+	private int translateBoxed(Expr expr, Context context) {
+		Type type = expand(typeOf(expr));
+		int value = translate(expr, context);
+		if (kindOf(type) == Function.OBJECT) {
+			return value;
+		}
+		int target = context.objectTemp();
+		if (type instanceof Type.Bool) {
+			context.emit(BOXBOOL, target, value);
+		} else if (type instanceof Type.Char) {
+			context.emit(BOXCHAR, target, value);
+		} else {
+			context.emit(BOXINT, target, value);
+		}
+		return target;
+	}
+
+	/**
+	 * The value in a given object register has been read out of an array or
+	 * record. Unbox it into the int bank if its type requires this.
+	 *
+	 * @param value
+	 * @param type
+	 * @param context
+	 * @return
+	 */
+	private int unboxAsNecessary(int value, Type type, Context context) {
+		type = expand(type);
+		if (kindOf(type) == Function.OBJECT) {
+			return value;
+		}
+		int target = context.intTemp();
+		if (type instanceof Type.Bool) {
+			context.emit(UNBOXBOOL, target, value);
+		} else if (type instanceof Type.Char) {
+			context.emit(UNBOXCHAR, target, value);
+		} else {
+			context.emit(UNBOXINT, target, value);
+		}
+		return target;
+	}
+
+	private int translate(Expr.ArrayGenerator expr, Context context) {
+		int value = translateBoxed(expr.getValue(), context);
+		int size = translate(expr.getSize(), context);
+		int target = context.objectTemp();
+		context.emit(GENARRAY, target, value, size);
+		return target;
+	}
+
+	private int translate(Expr.ArrayInitialiser expr, Context context) {
+		List<Expr> arguments = expr.getArguments();
+		int[] operands = new int[arguments.size() + 3];
+		operands[0] = NEWARRAY;
+		operands[2] = arguments.size();
+		for (int i = 0; i != arguments.size(); ++i) {
+			operands[i + 3] = translateBoxed(arguments.get(i), context);
+		}
+		operands[1] = context.objectTemp();
+		context.emit(operands);
+		return operands[1];
+	}
+
+	private int translate(Expr.Binary expr, Context context) {
+		Expr lhs = expr.getLhs();
+		Expr rhs = expr.getRhs();
+		int target;
+		switch (expr.getOp()) {
+		case AND:
+		case OR: {
+			// Short-circuiting operators are translated using branches
+			int exit = context.label();
+			target = context.intTemp();
+			context.emit(IMOVE, target, translate(lhs, context));
+			context.emitJump(expr.getOp() == Expr.BOp.AND ? IFFALSE : IFTRUE, target, exit);
+			context.emit(IMOVE, target, translate(rhs, context));
+			context.bind(exit);
+			return target;
+		}
+		case EQ:
+		case NEQ: {
+			int opcode;
+			int l, r;
+			if (isUnboxedComparison(lhs, rhs)) {
+				opcode = expr.getOp() == Expr.BOp.EQ ? IEQ : INE;
+				l = translate(lhs, context);
+				r = translate(rhs, context);
+			} else {
+				opcode = expr.getOp() == Expr.BOp.EQ ? OEQ : ONE;
+				l = translateBoxed(lhs, context);
+				r = translateBoxed(rhs, context);
+			}
+			target = context.intTemp();
+			context.emit(opcode, target, l, r);
+			return target;
+		}
+		}
+		int l = translate(lhs, context);
+		int r = translate(rhs, context);
+		target = context.intTemp();
+		switch (expr.getOp()) {
+		case ADD:
+			context.emit(IADD, target, l, r);
+			break;
+		case SUB:
+			context.emit(ISUB, target, l, r);
+			break;
+		case MUL:
+			context.emit(IMUL, target, l, r);
+			break;
+		case DIV:
+			context.emit(IDIV, target, l, r);
+			break;
+		case REM:
+			context.emit(IREM, target, l, r);
+			break;
+		case LT:
+			context.emit(ILT, target, l, r);
+			break;
+		case LTEQ:
+			context.emit(ILE, target, l, r);
+			break;
+		case GT:
+			context.emit(ILT, target, r, l);
+			break;
+		case GTEQ:
+			context.emit(ILE, target, r, l);
+			break;
+		default:
+			internalFailure("unknown binary expression encountered (" + expr + ")", file.filename, expr);
+		}
+		return target;
+	}
+
+	private int translate(Expr.Constant expr, Context context) {
+		Object value = expr.getValue();
+		if (value instanceof Integer) {
+			int target = context.intTemp();
+			context.emit(ICONST, target, (Integer) value);
+			return target;
+		} else if (value instanceof Boolean) {
+			int target = context.intTemp();
+			context.emit(ICONST, target, ((Boolean) value) ? 1 : 0);
+			return target;
+		} else if (value instanceof Character) {
+			int target = context.intTemp();
+			context.emit(ICONST, target, (Character) value);
+			return target;
+		} else {
+			// Strings, as well as array and record constants
+			int target = context.objectTemp();
+			context.emit(OCONST, target, context.constant(value));
+			return target;
+		}
+	}
+
+	private int translate(Expr.IndexOf expr, Context context) {
+		Type sourceType = expand(typeOf(expr.getSource()));
+		int source = translate(expr.getSource(), context);
+		int index = translate(expr.getIndex(), context);
+		if (sourceType instanceof Type.Strung) {
+			int target = context.intTemp();
+			context.emit(SLOAD, target, source, index);
+			return target;
+		} else {
+			int element = context.objectTemp();
+			context.emit(ALOAD, element, source, index);
+			return unboxAsNecessary(element, typeOf(expr), context);
+		}
+	}
+
+	private int translate(Expr.Invoke expr, Context context) {
+		int index = functionIndices.get(expr.getName());
+		WhileFile.MethodDecl callee = methods.get(index);
+		List<Expr> arguments = expr.getArguments();
+		int[] operands = new int[arguments.size() + 4];
+		operands[0] = CALL;
+		operands[1] = index;
+		operands[3] = arguments.size();
+		translateArguments(callee, arguments, operands, 4, context);
+		switch (kindOf(callee.getRet())) {
+		case Function.INT:
+			operands[2] = context.intTemp();
+			break;
+		case Function.OBJECT:
+			operands[2] = context.objectTemp();
+			break;
+		}
+		context.emit(operands);
+		return operands[2];
+	}
+
+	/**
+	 * Determine whether a given invocation, whose result is being returned,
+	 * can be translated as a tail call. This is the case when the result is
+	 * returned in the same bank of registers as the invocation produces it.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	private boolean isTailCall(Expr.Invoke expr) {
+		WhileFile.MethodDecl callee = methods.get(functionIndices.get(expr.getName()));
+		return kindOf(callee.getRet()) == kindOf(typeOf(expr));
+	}
+
+	/**
+	 * Translate the return of an invocation's result into a tail call, which
+	 * replaces the current call rather than being made from it.
+	 *
+	 * @param expr
+	 * @param context
+	 */
+	private void translateTailCall(Expr.Invoke expr, Context context) {
+		int index = functionIndices.get(expr.getName());
+		List<Expr> arguments = expr.getArguments();
+		int[] operands = new int[arguments.size() + 3];
+		operands[0] = TAILCALL;
+		operands[1] = index;
+		operands[2] = arguments.size();
+		translateArguments(methods.get(index), arguments, operands, 3, context);
+		context.emit(operands);
+	}
+
+	/**
+	 * Translate the arguments of an invocation into the registers named by
+	 * the operands of a call instruction, starting at a given operand.
+	 *
+	 * @param callee
+	 * @param arguments
+	 * @param operands
+	 * @param start
+	 * @param context
+	 */
+	private void translateArguments(WhileFile.MethodDecl callee, List<Expr> arguments, int[] operands, int start,
+			Context context) {
+		List<WhileFile.Parameter> parameters = callee.getParameters();
+		for (int i = 0; i != arguments.size(); ++i) {
+			if (kindOf(parameters.get(i).getType()) == Function.INT) {
+				operands[i + start] = translate(arguments.get(i), context);
+			} else {
+				operands[i + start] = translateBoxed(arguments.get(i), context);
+			}
+		}
+	}
+
+	private int translate(Expr.RecordAccess expr, Context context) {
+		int source = translate(expr.getSource(), context);
+		int field = context.objectTemp();
+		context.emit(RLOAD, field, source, context.constant(expr.getName()));
+		return unboxAsNecessary(field, typeOf(expr), context);
+	}
+
+	private int translate(Expr.RecordConstructor expr, Context context) {
+		List<Pair<String, Expr>> fields = expr.getFields();
+		String[] names = new String[fields.size()];
+		int[] operands = new int[fields.size() + 4];
+		operands[0] = NEWRECORD;
+		operands[3] = fields.size();
+		for (int i = 0; i != names.length; ++i) {
+			names[i] = fields.get(i).first();
+			operands[i + 4] = translateBoxed(fields.get(i).second(), context);
+		}
+		operands[1] = context.objectTemp();
+		operands[2] = context.constant(names);
+		context.emit(operands);
+		return operands[1];
+	}
+
+	private int translate(Expr.Unary expr, Context context) {
+		int operand = translate(expr.getExpr(), context);
+		int target = context.intTemp();
+		switch (expr.getOp()) {
+		case NOT:
+			context.emit(NOT, target, operand);
+			break;
+		case NEG:
+			context.emit(INEG, target, operand);
+			break;
+		case LENGTHOF:
+			context.emit(LENGTH, target, operand);
+			break;
+		default:
+			internalFailure("unknown unary expression encountered (" + expr + ")", file.filename, expr);
+		}
+		return target;
+	}
+
+	// =========================================================================
+	// Types
+	// =========================================================================
+
+	private Type typeOf(Expr expr) {
+		return expr.attribute(Attribute.Type.class).type;
+	}
+
+	/**
+	 * Expand a named type into its underlying definition.
+	 *
+	 * @param type
+	 * @return
+	 */
+	private Type expand(Type type) {
+		while (type instanceof Type.Named) {
+			type = declaredTypes.get(((Type.Named) type).getName());
+		}
+		return type;
+	}
+
+	/**
+	 * Determine the kind of register which holds a value of the given type.
+	 *
+	 * @param type
+	 * @return
+	 */
+	private int kindOf(Type type) {
+		type = expand(type);
+		if (type instanceof Type.Void) {
+			return Function.VOID;
+		} else if (type instanceof Type.Int || type instanceof Type.Bool || type instanceof Type.Char) {
+			return Function.INT;
+		} else {
+			return Function.OBJECT;
+		}
+	}
+
+	/**
+	 * Provides the state accumulated whilst translating a single method,
+	 * including the code and constants generated so far and the allocation of
+	 * registers.
+	 *
+	 */
+	private static class Context {
+		private int[] code = new int[64];
+		private int length;
+		private final ArrayList<Object> constants = new ArrayList<Object>();
+
+		/**
+		 * Maps the slot of each variable held in the int bank to its register
+		 */
+		private final HashMap<Integer, Integer> intVariables = new HashMap<Integer, Integer>();
+
+		/**
+		 * Maps the slot of each variable held in the object bank to its register
+		 */
+		private final HashMap<Integer, Integer> objectVariables = new HashMap<Integer, Integer>();
+
+		private int intTop, objectTop;
+		private int maxInt, maxObject;
+
+		/**
+		 * The position each label is bound to, or -1 if not yet bound. Label 0
+		 * is never used.
+		 */
+		private int[] labels = new int[16];
+		private int labelCount = 1;
+
+		/**
+		 * Each jump awaiting the position of its target, recorded as the
+		 * start of the jump instruction, the position of its offset operand
+		 * and the target label.
+		 */
+		private final ArrayList<int[]> fixups = new ArrayList<int[]>();
+
+		/**
+		 * The position of the destination operand of the last instruction, if
+		 * it wrote an int temporary and no label has been bound since.
+		 */
+		private int lastDestination = -1;
+
+		private final ArrayList<Integer> breakTargets = new ArrayList<Integer>();
+		private final ArrayList<Integer> continueTargets = new ArrayList<Integer>();
+
+		public int declare(int slot, int kind) {
+			HashMap<Integer, Integer> variables = kind == Function.INT ? intVariables : objectVariables;
+			Integer register = variables.get(slot);
+			if (register == null) {
+				register = variables.size();
+				variables.put(slot, register);
+			}
+			return register;
+		}
+
+		public int variable(int slot, int kind) {
+			HashMap<Integer, Integer> variables = kind == Function.INT ? intVariables : objectVariables;
+			return variables.get(slot);
+		}
+
+		public int intTemp() {
+			maxInt = Math.max(maxInt, intTop + 1);
+			return intTop++;
+		}
+
+		public int objectTemp() {
+			maxObject = Math.max(maxObject, objectTop + 1);
+			return objectTop++;
+		}
+
+		public int constant(Object value) {
+			constants.add(value);
+			return constants.size() - 1;
+		}
+
+		public int label() {
+			if (labelCount == labels.length) {
+				labels = Arrays.copyOf(labels, labels.length * 2);
+			}
+			labels[labelCount] = -1;
+			return labelCount++;
+		}
+
+		public void bind(int label) {
+			labels[label] = length;
+			lastDestination = -1;
+		}
+
+		public void emit(int... instruction) {
+			lastDestination = -1;
+			int opcode = instruction[0];
+			if (instruction.length > 1 && instruction[1] >= intVariables.size() && writesIntTemporary(opcode)) {
+				lastDestination = length + 1;
+			}
+			while (length + instruction.length > code.length) {
+				code = Arrays.copyOf(code, code.length * 2);
+			}
+			System.arraycopy(instruction, 0, code, length, instruction.length);
+			length += instruction.length;
+		}
+
+		/**
+		 * Emit a jump instruction whose final operand is the offset to a given
+		 * label.
+		 *
+		 * @param operands
+		 *            The opcode, followed by all operands except the offset
+		 */
+		public void emitJump(int... operands) {
+			int label = operands[operands.length - 1];
+			int start = length;
+			operands[operands.length - 1] = 0;
+			emit(operands);
+			fixups.add(new int[] { start, length - 1, label });
+		}
+
+		/**
+		 * Attempt to redirect the result of the last instruction emitted from
+		 * a given temporary into a given register. This avoids a move when
+		 * assigning the result of an expression to a variable.
+		 *
+		 * @param temporary
+		 * @param target
+		 * @return
+		 */
+		public boolean retarget(int temporary, int target) {
+			if (lastDestination >= 0 && code[lastDestination] == temporary) {
+				code[lastDestination] = target;
+				lastDestination = -1;
+				return true;
+			}
+			return false;
+		}
+
+		public int[] code() {
+			for (int[] fixup : fixups) {
+				code[fixup[1]] = labels[fixup[2]] - fixup[0];
+			}
+			return Arrays.copyOf(code, length);
+		}
+
+		private static boolean writesIntTemporary(int opcode) {
+			switch (opcode) {
+			case ICONST:
+			case IADD:
+			case ISUB:
+			case IMUL:
+			case IDIV:
+			case IREM:
+			case INEG:
+			case NOT:
+			case IEQ:
+			case INE:
+			case ILT:
+			case ILE:
+			case OEQ:
+			case ONE:
+			case UNBOXINT:
+			case UNBOXBOOL:
+			case UNBOXCHAR:
+			case SLOAD:
+			case LENGTH:
+				return true;
+			default:
+				return false;
+			}
+		}
+	}
+}
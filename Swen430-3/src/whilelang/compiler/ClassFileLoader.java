@@ -0,0 +1,82 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.compiler;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Defines the classes generated by <code>ClassFileWriter.generate()</code>
+ * directly from memory, without writing them to disk or searching the class
+ * path for them. Each compiled While file should be given a loader of its
+ * own. This isolates it from any other program compiled (which may, for
+ * example, declare a class of the same name), and allows its classes to be
+ * unloaded once the loader is no longer reachable.
+ * </p>
+ * <p>
+ * The generated classes are always defined by this loader, without first
+ * consulting its parent. Hence, a class of the same name which happens to be
+ * on the class path (e.g. left there by an earlier <code>-classfile</code>
+ * run) cannot shadow a generated one. Any other class (e.g.
+ * <code>java.util.Arrays</code>, or the <code>Profiler</code> when
+ * profiling) is loaded by the loader which loaded the compiler itself.
+ * </p>
+ *
+ */
+public class ClassFileLoader extends ClassLoader {
+	/**
+	 * The bytes of each class not yet defined, keyed by class name. These are
+	 * discarded once the class is defined.
+	 */
+	private final HashMap<String, byte[]> classes;
+
+	public ClassFileLoader(Map<String, byte[]> classes) {
+		super(ClassFileLoader.class.getClassLoader());
+		this.classes = new HashMap<String, byte[]>(classes);
+	}
+
+	/**
+	 * Get the <code>main()</code> method of a given class, which must have
+	 * been generated from a While file.
+	 *
+	 * @param name
+	 * @return
+	 * @throws ClassNotFoundException
+	 * @throws NoSuchMethodException
+	 */
+	public Method getMain(String name) throws ClassNotFoundException, NoSuchMethodException {
+		return loadClass(name).getMethod("main");
+	}
+
+	protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+		Class<?> c = findLoadedClass(name);
+		if (c == null) {
+			byte[] bytes = classes.remove(name);
+			if (bytes == null) {
+				// Not a generated class, so delegate as normal
+				return super.loadClass(name, resolve);
+			}
+			c = defineClass(name, bytes, 0, bytes.length);
+		}
+		if (resolve) {
+			resolveClass(c);
+		}
+		return c;
+	}
+}
@@ -4,9 +4,12 @@ import java.io.*;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 import jasm.attributes.SourceFile;
 import jasm.lang.Bytecode;
@@ -19,6 +22,7 @@ import jasm.lang.Modifier;
 import whilelang.ast.*;
 import whilelang.ast.Expr.BOp;
 import whilelang.util.Pair;
+import whilelang.util.Profiler;
 
 /**
  * Responsible for translating a While source file into a JVM Class file.
@@ -32,10 +36,10 @@ public class ClassFileWriter {
 	private static int CLASS_VERSION = 49;
 	
 	/**
-	 * The Jasm classfile writer to which we will write our compiled While file.
-	 * This takes care of lots of the messy bits of working with the JVM.
+	 * The class file to which the compiled While file is written, or null if
+	 * it is only compiled into memory (see <code>generate()</code>).
 	 */
-	private jasm.io.ClassFileWriter writer;
+	private File classFile;
 	
 	/**
 	 * Maps each declared type to its body
@@ -46,22 +50,160 @@ public class ClassFileWriter {
 	 * Maps each declared method to its JvmType
 	 */
 	private HashMap<String,JvmType.Function> methodTypes; 
+	
+	/**
+	 * Maps each distinct record shape (i.e. its field names and types, in
+	 * sorted order) to the class generated to represent it.
+	 */
+	private LinkedHashMap<String,RecordShape> recordShapes;
+	
+	/**
+	 * Determines which values stored can be stored without first being
+	 * cloned.
+	 */
+	private OwnershipAnalysis ownership;
+	
+	/**
+	 * The number of clones avoided in each method, in the order the methods
+	 * were declared.
+	 */
+	private LinkedHashMap<String,Integer> clonesAvoided;
+	
+	/**
+	 * The optimiser applied to the body of each method generated, or null if
+	 * they are not optimised.
+	 */
+	private PeepholeOptimiser optimiser;
+	
+	/**
+	 * The number of instructions in each method of the generated class,
+	 * before and after it was optimised, in the order the methods were
+	 * generated.
+	 */
+	private LinkedHashMap<String,int[]> instructionCounts;
+	
+	/**
+	 * The name of the class being generated, which prefixes the name of each
+	 * generated record class.
+	 */
+	private String moduleName;
+	
+	/**
+	 * Indicates whether the generated code reports each call and statement
+	 * to the installed <code>Profiler</code>.
+	 */
+	private boolean profiling;
 		
 	/**
 	 * Construct a ClassFileWriter which will compile a given WhileFile into a
 	 * JVM class file of the given name.
 	 * 
 	 * @param classFile
-	 * @throws FileNotFoundException
 	 */
-	public ClassFileWriter(String classFile) throws FileNotFoundException {
-		writer = new jasm.io.ClassFileWriter(new FileOutputStream(classFile));
+	public ClassFileWriter(String classFile) {
+		this();
+		this.classFile = new File(classFile);
+	}
+	
+	/**
+	 * Construct a ClassFileWriter which will compile a given WhileFile into
+	 * memory only (see <code>generate()</code>).
+	 */
+	public ClassFileWriter() {
 		declaredTypes = new HashMap<String,Type>();
 		methodTypes = new HashMap<String,JvmType.Function>();
+		recordShapes = new LinkedHashMap<String,RecordShape>();
+		clonesAvoided = new LinkedHashMap<String,Integer>();
+		optimiser = new PeepholeOptimiser();
+		instructionCounts = new LinkedHashMap<String,int[]>();
 	}
 	
+	/**
+	 * Select whether the generated code reports the entry to and exit from
+	 * each method, and the execution of each statement, to the installed
+	 * <code>Profiler</code> (see <code>Profiler.install()</code>).
+	 * 
+	 * @param enabled
+	 */
+	public void setProfiling(boolean enabled) {
+		this.profiling = enabled;
+	}
+	
+	/**
+	 * Select the optimiser applied to the body of each method generated, or
+	 * null to generate them unoptimised. By default, a
+	 * <code>PeepholeOptimiser</code> with its default rules is applied.
+	 * 
+	 * @param optimiser
+	 */
+	public void setOptimiser(PeepholeOptimiser optimiser) {
+		this.optimiser = optimiser;
+	}
+	
+	/**
+	 * Get the number of instructions in each method of the generated class,
+	 * before and after it was optimised.
+	 * 
+	 * @return
+	 */
+	public Map<String,int[]> getInstructionCounts() {
+		return instructionCounts;
+	}
+	
+	/**
+	 * Get the number of clones which were avoided in each method written,
+	 * because the value being stored was unaliased (see
+	 * <code>OwnershipAnalysis</code>).
+	 * 
+	 * @return
+	 */
+	public Map<String,Integer> getClonesAvoided() {
+		return clonesAvoided;
+	}
+	
+	/**
+	 * Compile a given WhileFile into the class file given when this writer
+	 * was constructed. The class generated for each record shape is written
+	 * alongside it.
+	 * 
+	 * @param sourceFile
+	 * @throws IOException
+	 */
 	public void write(WhileFile sourceFile) throws IOException {
-		String moduleName = new File(sourceFile.filename).getName().replace(".while","");		
+		if(classFile == null) {
+			throw new IllegalStateException("no class file given");
+		}
+		File directory = classFile.getAbsoluteFile().getParentFile();
+		Map<String,byte[]> classes = generate(sourceFile);
+		for(Map.Entry<String,byte[]> e : classes.entrySet()) {
+			// The class of the WhileFile itself goes to the given file
+			File file = e.getKey().equals(moduleName) ? classFile : new File(directory, e.getKey() + ".class");
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				out.write(e.getValue());
+			} finally {
+				out.close();
+			}
+		}
+	}
+	
+	/**
+	 * Compile a given WhileFile into memory, without writing anything to
+	 * disk. The generated classes can then be defined by a
+	 * <code>ClassFileLoader</code>.
+	 * 
+	 * @param sourceFile
+	 * @return The bytes of each class generated, keyed by class name. The
+	 *         first class is that of the WhileFile itself, which is named
+	 *         after its source file, and is followed by the class for each
+	 *         record shape.
+	 * @throws IOException
+	 */
+	public Map<String,byte[]> generate(WhileFile sourceFile) throws IOException {
+		LinkedHashMap<String,byte[]> classes = new LinkedHashMap<String,byte[]>();
+		moduleName = new File(sourceFile.filename).getName().replace(".while","");		
+		ownership = new OwnershipAnalysis();
+		ownership.apply(sourceFile);
 		// Modifiers for class
 		List<Modifier> modifiers = Arrays.asList(Modifier.ACC_PUBLIC, Modifier.ACC_FINAL);
 		// List of interfaces implemented by class
@@ -92,8 +234,226 @@ public class ClassFileWriter {
 			}
 		}
 		
-		// Finally, write the generated classfile to disk
-		writer.write(cf);
+		// Finally, write out the generated classfile
+		classes.put(moduleName, toBytes(cf));
+		
+		// Each record shape used in the WhileFile is represented by a class of
+		// its own.
+		for(RecordShape shape : recordShapes.values()) {
+			classes.put(shape.name, toBytes(translate(shape)));
+		}
+		return classes;
+	}
+	
+	/**
+	 * Write a given class file into a byte array. The Jasm classfile writer
+	 * takes care of lots of the messy bits of working with the JVM.
+	 * 
+	 * @param cf
+	 * @return
+	 * @throws IOException
+	 */
+	private static byte[] toBytes(ClassFile cf) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new jasm.io.ClassFileWriter(out).write(cf);
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Translate a record shape into the class which represents it. Each field
+	 * of the record becomes a field of the class, and the class provides
+	 * value semantics through a deep <code>copy()</code> method, along with
+	 * structural <code>equals()</code> and <code>hashCode()</code> methods. Its
+	 * <code>toString()</code> method writes the fields in sorted order, as the
+	 * interpreter does.
+	 * 
+	 * @param shape
+	 * @return
+	 */
+	private ClassFile translate(RecordShape shape) {
+		List<Modifier> modifiers = Arrays.asList(Modifier.ACC_PUBLIC, Modifier.ACC_FINAL);
+		ClassFile cf = new ClassFile(CLASS_VERSION, shape.type, JvmTypes.JAVA_LANG_OBJECT,
+				new ArrayList<JvmType.Clazz>(), modifiers);
+		for (Pair<String,JvmType> field : shape.fields) {
+			cf.fields().add(new ClassFile.Field(field.first(), field.second(), Arrays.asList(Modifier.ACC_PUBLIC)));
+		}
+		cf.methods().add(translateConstructor(shape));
+		cf.methods().add(translateCopy(shape));
+		cf.methods().add(translateEquals(shape));
+		cf.methods().add(translateHashCode(shape));
+		cf.methods().add(translateToString(shape));
+		return cf;
+	}
+	
+	private ClassFile.Method translateConstructor(RecordShape shape) {
+		ArrayList<Bytecode> bytecodes = new ArrayList<Bytecode>();
+		bytecodes.add(new Bytecode.Load(0, shape.type));
+		bytecodes.add(new Bytecode.Invoke(JvmTypes.JAVA_LANG_OBJECT, "<init>", new JvmType.Function(JvmTypes.T_VOID),
+				Bytecode.InvokeMode.SPECIAL));
+		bytecodes.add(new Bytecode.Return(null));
+		return constructMethod("<init>", new JvmType.Function(JvmTypes.T_VOID), bytecodes);
+	}
+	
+	private ClassFile.Method translateCopy(RecordShape shape) {
+		Context context = constructRecordContext(shape, shape.type);
+		ArrayList<Bytecode> bytecodes = new ArrayList<Bytecode>();
+		constructObject(shape.type, bytecodes);
+		for (Pair<String,JvmType> field : shape.fields) {
+			bytecodes.add(new Bytecode.Dup(shape.type));
+			bytecodes.add(new Bytecode.Load(0, shape.type));
+			bytecodes.add(new Bytecode.GetField(shape.type, field.first(), field.second(), Bytecode.FieldMode.NONSTATIC));
+			cloneAsNecessary(field.second(), context, bytecodes);
+			bytecodes.add(new Bytecode.PutField(shape.type, field.first(), field.second(), Bytecode.FieldMode.NONSTATIC));
+		}
+		bytecodes.add(new Bytecode.Return(shape.type));
+		return constructMethod("copy", new JvmType.Function(shape.type), bytecodes);
+	}
+	
+	private ClassFile.Method translateEquals(RecordShape shape) {
+		Context context = constructRecordContext(shape, JvmTypes.T_BOOL);
+		int other = context.declareRegister("other", JvmTypes.JAVA_LANG_OBJECT);
+		int that = context.declareRegister("that", shape.type);
+		String falseLabel = freshLabel();
+		ArrayList<Bytecode> bytecodes = new ArrayList<Bytecode>();
+		bytecodes.add(new Bytecode.Load(other, JvmTypes.JAVA_LANG_OBJECT));
+		bytecodes.add(new Bytecode.InstanceOf(shape.type));
+		bytecodes.add(new Bytecode.If(IfMode.EQ, falseLabel));
+		bytecodes.add(new Bytecode.Load(other, JvmTypes.JAVA_LANG_OBJECT));
+		bytecodes.add(new Bytecode.CheckCast(shape.type));
+		bytecodes.add(new Bytecode.Store(that, shape.type));
+		for (Pair<String,JvmType> field : shape.fields) {
+			bytecodes.add(new Bytecode.Load(0, shape.type));
+			bytecodes.add(new Bytecode.GetField(shape.type, field.first(), field.second(), Bytecode.FieldMode.NONSTATIC));
+			bytecodes.add(new Bytecode.Load(that, shape.type));
+			bytecodes.add(new Bytecode.GetField(shape.type, field.first(), field.second(), Bytecode.FieldMode.NONSTATIC));
+			if (field.second() instanceof JvmType.Primitive) {
+				bytecodes.add(new Bytecode.IfCmp(Bytecode.IfCmp.NE, field.second(), falseLabel));
+			} else {
+				translateEqualityHelper(field.second(), bytecodes);
+				bytecodes.add(new Bytecode.If(IfMode.EQ, falseLabel));
+			}
+		}
+		bytecodes.add(new Bytecode.LoadConst(true));
+		bytecodes.add(new Bytecode.Return(JvmTypes.T_BOOL));
+		bytecodes.add(new Bytecode.Label(falseLabel));
+		bytecodes.add(new Bytecode.LoadConst(false));
+		bytecodes.add(new Bytecode.Return(JvmTypes.T_BOOL));
+		return constructMethod("equals", new JvmType.Function(JvmTypes.T_BOOL, JvmTypes.JAVA_LANG_OBJECT), bytecodes);
+	}
+	
+	private ClassFile.Method translateHashCode(RecordShape shape) {
+		ArrayList<Bytecode> bytecodes = new ArrayList<Bytecode>();
+		bytecodes.add(new Bytecode.LoadConst(0));
+		for (Pair<String,JvmType> field : shape.fields) {
+			JvmType type = field.second();
+			bytecodes.add(new Bytecode.LoadConst(31));
+			bytecodes.add(new Bytecode.BinOp(Bytecode.BinOp.MUL, JvmTypes.T_INT));
+			bytecodes.add(new Bytecode.Load(0, shape.type));
+			bytecodes.add(new Bytecode.GetField(shape.type, field.first(), type, Bytecode.FieldMode.NONSTATIC));
+			if (type instanceof JvmType.Array) {
+				JvmType.Array arrayType = (JvmType.Array) type;
+				if (arrayType.element() instanceof JvmType.Primitive) {
+					bytecodes.add(new Bytecode.Invoke(JAVA_UTIL_ARRAYS, "hashCode",
+							new JvmType.Function(JvmTypes.T_INT, arrayType), Bytecode.InvokeMode.STATIC));
+				} else {
+					bytecodes.add(new Bytecode.Invoke(JAVA_UTIL_ARRAYS, "deepHashCode",
+							new JvmType.Function(JvmTypes.T_INT, JAVA_LANG_OBJECT_ARRAY), Bytecode.InvokeMode.STATIC));
+				}
+			} else if (!(type instanceof JvmType.Primitive)) {
+				bytecodes.add(new Bytecode.Invoke((JvmType.Reference) type, "hashCode",
+						new JvmType.Function(JvmTypes.T_INT), Bytecode.InvokeMode.VIRTUAL));
+			}
+			bytecodes.add(new Bytecode.BinOp(Bytecode.BinOp.ADD, JvmTypes.T_INT));
+		}
+		bytecodes.add(new Bytecode.Return(JvmTypes.T_INT));
+		return constructMethod("hashCode", new JvmType.Function(JvmTypes.T_INT), bytecodes);
+	}
+	
+	private ClassFile.Method translateToString(RecordShape shape) {
+		ArrayList<Bytecode> bytecodes = new ArrayList<Bytecode>();
+		constructObject(JAVA_LANG_STRINGBUILDER, bytecodes);
+		for (int i = 0; i != shape.fields.size(); ++i) {
+			Pair<String,JvmType> field = shape.fields.get(i);
+			JvmType type = field.second();
+			bytecodes.add(new Bytecode.LoadConst((i == 0 ? "{" : ",") + field.first() + ":"));
+			translateAppend(JvmTypes.JAVA_LANG_STRING, bytecodes);
+			bytecodes.add(new Bytecode.Load(0, shape.type));
+			bytecodes.add(new Bytecode.GetField(shape.type, field.first(), type, Bytecode.FieldMode.NONSTATIC));
+			if (type instanceof JvmType.Array) {
+				// Arrays are written as [1, 2, 3]
+				JvmType.Array arrayType = (JvmType.Array) type;
+				if (arrayType.element() instanceof JvmType.Primitive) {
+					bytecodes.add(new Bytecode.Invoke(JAVA_UTIL_ARRAYS, "toString",
+							new JvmType.Function(JvmTypes.JAVA_LANG_STRING, arrayType), Bytecode.InvokeMode.STATIC));
+				} else {
+					bytecodes.add(new Bytecode.Invoke(JAVA_UTIL_ARRAYS, "deepToString",
+							new JvmType.Function(JvmTypes.JAVA_LANG_STRING, JAVA_LANG_OBJECT_ARRAY),
+							Bytecode.InvokeMode.STATIC));
+				}
+				translateAppend(JvmTypes.JAVA_LANG_STRING, bytecodes);
+			} else if (type instanceof JvmType.Primitive || type.equals(JvmTypes.JAVA_LANG_STRING)) {
+				translateAppend(type, bytecodes);
+			} else {
+				translateAppend(JvmTypes.JAVA_LANG_OBJECT, bytecodes);
+			}
+		}
+		bytecodes.add(new Bytecode.LoadConst("}"));
+		translateAppend(JvmTypes.JAVA_LANG_STRING, bytecodes);
+		bytecodes.add(new Bytecode.Invoke(JAVA_LANG_STRINGBUILDER, "toString",
+				new JvmType.Function(JvmTypes.JAVA_LANG_STRING), Bytecode.InvokeMode.VIRTUAL));
+		bytecodes.add(new Bytecode.Return(JvmTypes.JAVA_LANG_STRING));
+		return constructMethod("toString", new JvmType.Function(JvmTypes.JAVA_LANG_STRING), bytecodes);
+	}
+	
+	/**
+	 * Append the value on top of the stack to the <code>StringBuilder</code>
+	 * beneath it.
+	 * 
+	 * @param type
+	 *            The type of the value being appended
+	 * @param bytecodes
+	 *            The list of bytecodes being accumulated
+	 */
+	private void translateAppend(JvmType type, List<Bytecode> bytecodes) {
+		bytecodes.add(new Bytecode.Invoke(JAVA_LANG_STRINGBUILDER, "append",
+				new JvmType.Function(JAVA_LANG_STRINGBUILDER, type), Bytecode.InvokeMode.VIRTUAL));
+	}
+	
+	/**
+	 * Construct a public instance method of a record class with the given
+	 * body.
+	 * 
+	 * @param name
+	 * @param type
+	 * @param bytecodes
+	 * @return
+	 */
+	private ClassFile.Method constructMethod(String name, JvmType.Function type, List<Bytecode> bytecodes) {
+		ClassFile.Method cm = new ClassFile.Method(name, type, Arrays.asList(Modifier.ACC_PUBLIC));
+		cm.attributes().add(constructCode(null, bytecodes, cm));
+		return cm;
+	}
+	
+	/**
+	 * Construct the Code attribute for a given method, once its body has been
+	 * optimised.
+	 * 
+	 * @param name
+	 *            The name under which the instruction counts of the method
+	 *            are reported, or null if they are not reported.
+	 * @param bytecodes
+	 * @param cm
+	 * @return
+	 */
+	private jasm.attributes.Code constructCode(String name, List<Bytecode> bytecodes, ClassFile.Method cm) {
+		int before = PeepholeOptimiser.countInstructions(bytecodes);
+		if(optimiser != null) {
+			optimiser.optimise(bytecodes);
+		}
+		if(name != null) {
+			instructionCounts.put(name, new int[] { before, PeepholeOptimiser.countInstructions(bytecodes) });
+		}
+		return new jasm.attributes.Code(bytecodes, Collections.EMPTY_LIST, cm);
 	}
 	
 	/**
@@ -110,14 +470,20 @@ public class ClassFileWriter {
 		ClassFile.Method cm = new ClassFile.Method(method.name(), ft, modifiers);
 
 		// Generate bytecodes representing method body		
-		Context context = new Context(owner,constructMethodEnvironment(method));
+		Context context = constructMethodContext(method,owner,ft);
 		ArrayList<Bytecode> bytecodes = new ArrayList<Bytecode>();
+		if(profiling) {
+			bytecodes.add(new Bytecode.LoadConst(method.getName()));
+			bytecodes.add(new Bytecode.Invoke(WHILELANG_UTIL_PROFILER, "methodEntry",
+					new JvmType.Function(JvmTypes.T_VOID, JvmTypes.JAVA_LANG_STRING), Bytecode.InvokeMode.STATIC));
+		}
 		translate(method.getBody(),context,bytecodes);		
 		// Handle methods with missing return statements, as these need a
 		// bytecode
 		addReturnAsNecessary(method,bytecodes);
+		clonesAvoided.put(method.getName(), context.getClonesAvoided());
 		//		
-		jasm.attributes.Code code = new jasm.attributes.Code(bytecodes, Collections.EMPTY_LIST, cm);
+		jasm.attributes.Code code = constructCode(method.getName(), bytecodes, cm);
 		// Finally, add the jvm Code attribute to this method
 		cm.attributes().add(code);
 		// Done
@@ -142,6 +508,21 @@ public class ClassFileWriter {
 		}		
 	}
 	
+	/**
+	 * Translate a list of statements which form a block of their own (e.g.
+	 * the body of a loop). The registers of any variables declared within
+	 * the block are free to be reused once it ends.
+	 * 
+	 * @param stmts
+	 * @param context
+	 * @param bytecodes
+	 */
+	private void translateScope(List<Stmt> stmts, Context context, List<Bytecode> bytecodes) {
+		context.enterScope();
+		translate(stmts, context, bytecodes);
+		context.exitScope();
+	}
+	
 	/**
 	 * Translate a given statement in the While language into a series of one of
 	 * more bytecodes which implement its behaviour.
@@ -154,6 +535,7 @@ public class ClassFileWriter {
 	 *            The list of bytecodes being accumulated
 	 */
 	private void translate(Stmt stmt, Context context, List<Bytecode> bytecodes) {
+		addStatementAt(stmt, bytecodes);
 		if(stmt instanceof Stmt.Assert) {
 			translate((Stmt.Assert) stmt, context, bytecodes);
 		} else if(stmt instanceof Stmt.Assign) {
@@ -185,8 +567,7 @@ public class ClassFileWriter {
 	
 	private void translate(Stmt.Assert stmt, Context context, List<Bytecode> bytecodes) {
 		String label = freshLabel();
-		translate(stmt.getExpr(), context, bytecodes);
-		bytecodes.add(new Bytecode.If(IfMode.NE, label));
+		translateCondition(stmt.getExpr(), label, true, context, bytecodes);
 		// If the assertion fails, through runtime exception
 		constructObject(JvmTypes.JAVA_LANG_RUNTIMEEXCEPTION, bytecodes);
 		bytecodes.add(new Bytecode.Throw());
@@ -199,47 +580,404 @@ public class ClassFileWriter {
 	}
 	
 	private void translate(Stmt.Break stmt, Context context, List<Bytecode> bytecodes) {
-		
+		bytecodes.add(new Bytecode.Goto(context.getBreakLabel()));
 	}
 	
 	private void translate(Stmt.Continue stmt, Context context, List<Bytecode> bytecodes) {
-		
+		bytecodes.add(new Bytecode.Goto(context.getContinueLabel()));
 	}
 	
+	/**
+	 * Translate a for statement. This is laid out in the same way as a while
+	 * statement (see below), except that the increment immediately precedes
+	 * the condition and is the target of a continue statement.
+	 * 
+	 * @param stmt
+	 * @param context
+	 * @param bytecodes
+	 */
 	private void translate(Stmt.For stmt, Context context, List<Bytecode> bytecodes) {
-		
+		String bodyLabel = freshLabel();
+		String incrementLabel = freshLabel();
+		String conditionLabel = freshLabel();
+		String exitLabel = freshLabel();
+		translate(stmt.getDeclaration(), context, bytecodes);
+		bytecodes.add(new Bytecode.Goto(conditionLabel));
+		bytecodes.add(new Bytecode.Label(bodyLabel));
+		addStatementAt(stmt, bytecodes);
+		context.pushLoop(exitLabel, incrementLabel);
+		translateScope(stmt.getBody(), context, bytecodes);
+		context.popLoop();
+		bytecodes.add(new Bytecode.Label(incrementLabel));
+		translate(stmt.getIncrement(), context, bytecodes);
+		bytecodes.add(new Bytecode.Label(conditionLabel));
+		translateCondition(stmt.getCondition(), bodyLabel, true, context, bytecodes);
+		bytecodes.add(new Bytecode.Label(exitLabel));
 	}
 	
+	/**
+	 * Translate a while statement. The condition is placed after the body,
+	 * and is reached initially by a jump over the body. Hence, each iteration
+	 * executes only a single (backwards) branch, rather than a conditional
+	 * branch out of the loop followed by an unconditional branch back to its
+	 * start:
+	 * 
+	 * <pre>
+	 *        goto cond
+	 * body:  ...
+	 * cond:  if condition goto body
+	 * exit:
+	 * </pre>
+	 * 
+	 * @param stmt
+	 * @param context
+	 * @param bytecodes
+	 */
 	private void translate(Stmt.While stmt, Context context, List<Bytecode> bytecodes) {
-		
+		String bodyLabel = freshLabel();
+		String conditionLabel = freshLabel();
+		String exitLabel = freshLabel();
+		bytecodes.add(new Bytecode.Goto(conditionLabel));
+		bytecodes.add(new Bytecode.Label(bodyLabel));
+		addStatementAt(stmt, bytecodes);
+		context.pushLoop(exitLabel, conditionLabel);
+		translateScope(stmt.getBody(), context, bytecodes);
+		context.popLoop();
+		bytecodes.add(new Bytecode.Label(conditionLabel));
+		translateCondition(stmt.getCondition(), bodyLabel, true, context, bytecodes);
+		bytecodes.add(new Bytecode.Label(exitLabel));
 	}
 	
 	private void translate(Stmt.Print stmt, Context context, List<Bytecode> bytecodes) {
 //		System.out.println(stmt.getExpr());
 	}
 	
+	/**
+	 * Translate a switch statement. The case bodies are laid out in order, so
+	 * that each falls through into the next, and are preceded by a dispatch
+	 * on the value being switched upon. How this dispatch is made depends on
+	 * the type of the value (see <code>translateIntSwitch()</code>,
+	 * <code>translateStringSwitch()</code> and
+	 * <code>translateCompoundSwitch()</code>).
+	 * 
+	 * @param stmt
+	 * @param context
+	 * @param bytecodes
+	 */
 	private void translate(Stmt.Switch stmt, Context context, List<Bytecode> bytecodes) {
-		
+		JvmType type = toJvmType(stmt.getExpr().attribute(Attribute.Type.class).type);
+		List<Stmt.Case> cases = stmt.getCases();
+		String exitLabel = freshLabel();
+		String defaultLabel = exitLabel;
+		String[] caseLabels = new String[cases.size()];
+		// The cases are matched in order, and the default case matches any
+		// value. Hence, a case after the default can only be reached by
+		// falling through into it, and is not dispatched upon.
+		List<Stmt.Case> dispatched = cases;
+		for (int i = 0; i != cases.size(); ++i) {
+			caseLabels[i] = freshLabel();
+			if (cases.get(i).isDefault() && dispatched == cases) {
+				defaultLabel = caseLabels[i];
+				dispatched = cases.subList(0, i);
+			}
+		}
+		translate(stmt.getExpr(), context, bytecodes);
+		if (type instanceof JvmType.Primitive) {
+			translateIntSwitch(dispatched, caseLabels, defaultLabel, bytecodes);
+		} else if (type.equals(JvmTypes.JAVA_LANG_STRING)) {
+			translateStringSwitch(dispatched, caseLabels, defaultLabel, context, bytecodes);
+		} else {
+			translateCompoundSwitch(type, dispatched, caseLabels, defaultLabel, context, bytecodes);
+		}
+		context.pushBreakLabel(exitLabel);
+		for (int i = 0; i != cases.size(); ++i) {
+			bytecodes.add(new Bytecode.Label(caseLabels[i]));
+			// Variables declared in a case remain in scope after it
+			translate(cases.get(i).getBody(), context, bytecodes);
+		}
+		context.popBreakLabel();
+		bytecodes.add(new Bytecode.Label(exitLabel));
+	}
+	
+	/**
+	 * Dispatch on an int, char or bool value. The case labels are constants,
+	 * and so this requires only a single switch bytecode.
+	 * 
+	 * @param cases
+	 *            The cases of the switch statement
+	 * @param caseLabels
+	 *            The label of each case body
+	 * @param defaultLabel
+	 *            The label branched to when no case matches
+	 * @param bytecodes
+	 *            The list of bytecodes being accumulated
+	 */
+	private void translateIntSwitch(List<Stmt.Case> cases, String[] caseLabels, String defaultLabel,
+			List<Bytecode> bytecodes) {
+		TreeMap<Integer,String> targets = new TreeMap<Integer,String>();
+		for (int i = 0; i != cases.size(); ++i) {
+			Stmt.Case c = cases.get(i);
+			if (!c.isDefault()) {
+				targets.put(toSwitchKey(((Expr.Constant) c.getValue()).getValue()), caseLabels[i]);
+			}
+		}
+		translateSwitchHelper(targets, defaultLabel, bytecodes);
+	}
+	
+	/**
+	 * Dispatch on a string value. This switches on the hash code of the
+	 * string, and then compares the string against those case labels with
+	 * the same hash code in turn.
+	 * 
+	 * @param cases
+	 *            The cases of the switch statement
+	 * @param caseLabels
+	 *            The label of each case body
+	 * @param defaultLabel
+	 *            The label branched to when no case matches
+	 * @param context
+	 *            The current translation context
+	 * @param bytecodes
+	 *            The list of bytecodes being accumulated
+	 */
+	private void translateStringSwitch(List<Stmt.Case> cases, String[] caseLabels, String defaultLabel,
+			Context context, List<Bytecode> bytecodes) {
+		// Group the cases by the hash code of their label
+		TreeMap<Integer,List<Integer>> buckets = new TreeMap<Integer,List<Integer>>();
+		for (int i = 0; i != cases.size(); ++i) {
+			Stmt.Case c = cases.get(i);
+			if (!c.isDefault()) {
+				int hash = ((Expr.Constant) c.getValue()).getValue().hashCode();
+				List<Integer> bucket = buckets.get(hash);
+				if (bucket == null) {
+					bucket = new ArrayList<Integer>();
+					buckets.put(hash, bucket);
+				}
+				bucket.add(i);
+			}
+		}
+		int value = context.freshRegister(JvmTypes.JAVA_LANG_STRING);
+		bytecodes.add(new Bytecode.Store(value, JvmTypes.JAVA_LANG_STRING));
+		bytecodes.add(new Bytecode.Load(value, JvmTypes.JAVA_LANG_STRING));
+		bytecodes.add(new Bytecode.Invoke(JvmTypes.JAVA_LANG_STRING, "hashCode", new JvmType.Function(JvmTypes.T_INT),
+				Bytecode.InvokeMode.VIRTUAL));
+		TreeMap<Integer,String> targets = new TreeMap<Integer,String>();
+		for (Integer hash : buckets.keySet()) {
+			targets.put(hash, freshLabel());
+		}
+		translateSwitchHelper(targets, defaultLabel, bytecodes);
+		JvmType.Function equals = new JvmType.Function(JvmTypes.T_BOOL, JvmTypes.JAVA_LANG_OBJECT);
+		for (Map.Entry<Integer,List<Integer>> bucket : buckets.entrySet()) {
+			bytecodes.add(new Bytecode.Label(targets.get(bucket.getKey())));
+			for (int i : bucket.getValue()) {
+				bytecodes.add(new Bytecode.Load(value, JvmTypes.JAVA_LANG_STRING));
+				bytecodes.add(new Bytecode.LoadConst(((Expr.Constant) cases.get(i).getValue()).getValue()));
+				bytecodes.add(new Bytecode.Invoke(JvmTypes.JAVA_LANG_STRING, "equals", equals,
+						Bytecode.InvokeMode.VIRTUAL));
+				bytecodes.add(new Bytecode.If(IfMode.NE, caseLabels[i]));
+			}
+			bytecodes.add(new Bytecode.Goto(defaultLabel));
+		}
+	}
+	
+	/**
+	 * Dispatch on an array or record value. This compares the value against
+	 * each case label in turn.
+	 * 
+	 * @param type
+	 *            The type of the value being switched upon
+	 * @param cases
+	 *            The cases of the switch statement
+	 * @param caseLabels
+	 *            The label of each case body
+	 * @param defaultLabel
+	 *            The label branched to when no case matches
+	 * @param context
+	 *            The current translation context
+	 * @param bytecodes
+	 *            The list of bytecodes being accumulated
+	 */
+	private void translateCompoundSwitch(JvmType type, List<Stmt.Case> cases, String[] caseLabels,
+			String defaultLabel, Context context, List<Bytecode> bytecodes) {
+		int value = context.freshRegister(type);
+		bytecodes.add(new Bytecode.Store(value, type));
+		for (int i = 0; i != cases.size(); ++i) {
+			Stmt.Case c = cases.get(i);
+			if (!c.isDefault()) {
+				Expr label = c.getValue();
+				JvmType labelType = toJvmType(label.attribute(Attribute.Type.class).type);
+				bytecodes.add(new Bytecode.Load(value, type));
+				translate(label, context, bytecodes);
+				coerceAsNecessary(labelType, type, context, bytecodes);
+				translateEqualityHelper(type, bytecodes);
+				bytecodes.add(new Bytecode.If(IfMode.NE, caseLabels[i]));
+			}
+		}
+		bytecodes.add(new Bytecode.Goto(defaultLabel));
+	}
+	
+	/**
+	 * Branch on the int value on top of the stack, using a single switch
+	 * bytecode. The JVM provides a <code>tableswitch</code>, which indexes a
+	 * table covering every value between the lowest and highest keys, and a
+	 * <code>lookupswitch</code>, which searches the keys. The former is
+	 * chosen (by making every value in the range a key) if its table is
+	 * sufficiently dense, using the same cost model as javac.
+	 * 
+	 * @param targets
+	 *            Maps each key to the label branched to
+	 * @param defaultLabel
+	 *            The label branched to for any other value
+	 * @param bytecodes
+	 *            The list of bytecodes being accumulated
+	 */
+	private void translateSwitchHelper(TreeMap<Integer,String> targets, String defaultLabel,
+			List<Bytecode> bytecodes) {
+		if (targets.isEmpty()) {
+			bytecodes.add(new Bytecode.Pop(JvmTypes.T_INT));
+			bytecodes.add(new Bytecode.Goto(defaultLabel));
+			return;
+		}
+		long lo = targets.firstKey();
+		long hi = targets.lastKey();
+		long tableCost = 4 + (hi - lo + 1) + 3 * 3;
+		long lookupCost = 3 + 2 * targets.size() + 3 * targets.size();
+		ArrayList<jasm.util.Pair<Integer,String>> cases = new ArrayList<jasm.util.Pair<Integer,String>>();
+		if (tableCost <= lookupCost) {
+			for (long key = lo; key <= hi; ++key) {
+				String target = targets.get((int) key);
+				cases.add(new jasm.util.Pair<Integer,String>((int) key, target == null ? defaultLabel : target));
+			}
+		} else {
+			for (Map.Entry<Integer,String> e : targets.entrySet()) {
+				cases.add(new jasm.util.Pair<Integer,String>(e.getKey(), e.getValue()));
+			}
+		}
+		bytecodes.add(new Bytecode.Switch(defaultLabel, cases));
+	}
+	
+	/**
+	 * Convert the constant label of a case into the int it is represented by
+	 * on the JVM.
+	 * 
+	 * @param constant
+	 * @return
+	 */
+	private static Integer toSwitchKey(Object constant) {
+		if (constant instanceof Character) {
+			return (int) ((Character) constant).charValue();
+		} else if (constant instanceof Boolean) {
+			return ((Boolean) constant) ? 1 : 0;
+		} else {
+			return (Integer) constant;
+		}
 	}
 	
 	private void translate(Stmt.IfElse stmt, Context context, List<Bytecode> bytecodes) {
 		String trueBranch = freshLabel();
 		String exitLabel = freshLabel();
-		translate(stmt.getCondition(),context,bytecodes);
-		bytecodes.add(new Bytecode.If(IfMode.NE, trueBranch));
+		translateCondition(stmt.getCondition(),trueBranch,true,context,bytecodes);
 		// translate the false branch
-		translate(stmt.getFalseBranch(),context,bytecodes);
+		translateScope(stmt.getFalseBranch(),context,bytecodes);
 		if(!allPathsReturn(stmt.getFalseBranch())) {
 			bytecodes.add(new Bytecode.Goto(exitLabel));
 		}
 		// translate true branch
 		bytecodes.add(new Bytecode.Label(trueBranch));
-		translate(stmt.getTrueBranch(),context,bytecodes);
+		translateScope(stmt.getTrueBranch(),context,bytecodes);
 		bytecodes.add(new Bytecode.Label(exitLabel));		
 	}
 	
 
 	
+	/**
+	 * Translate a condition into a branch to a given label, which is taken
+	 * when the condition evaluates to a given value and otherwise falls
+	 * through. Comparisons of int, char and bool values branch directly on
+	 * the comparison, rather than first materialising a bool which is then
+	 * tested. Likewise, <code>&&</code>, <code>||</code> and <code>!</code>
+	 * are translated into control-flow and, hence, short circuit.
+	 * 
+	 * @param expr
+	 *            The condition being translated
+	 * @param target
+	 *            The label branched to
+	 * @param sense
+	 *            The value of the condition for which the branch is taken
+	 * @param context
+	 * @param bytecodes
+	 */
+	private void translateCondition(Expr expr, String target, boolean sense, Context context,
+			List<Bytecode> bytecodes) {
+		if (expr instanceof Expr.Constant && ((Expr.Constant) expr).getValue() instanceof Boolean) {
+			if (((Expr.Constant) expr).getValue().equals(sense)) {
+				bytecodes.add(new Bytecode.Goto(target));
+			}
+		} else if (expr instanceof Expr.Unary && ((Expr.Unary) expr).getOp() == Expr.UOp.NOT) {
+			translateCondition(((Expr.Unary) expr).getExpr(), target, !sense, context, bytecodes);
+		} else if (expr instanceof Expr.Binary) {
+			translateCondition((Expr.Binary) expr, target, sense, context, bytecodes);
+		} else {
+			translate(expr, context, bytecodes);
+			bytecodes.add(new Bytecode.If(sense ? IfMode.NE : IfMode.EQ, target));
+		}
+	}
+	
+	private void translateCondition(Expr.Binary expr, String target, boolean sense, Context context,
+			List<Bytecode> bytecodes) {
+		Expr.BOp op = expr.getOp();
+		if ((op == Expr.BOp.AND && sense) || (op == Expr.BOp.OR && !sense)) {
+			// The branch is taken only if both sides agree with sense
+			String skipLabel = freshLabel();
+			translateCondition(expr.getLhs(), skipLabel, !sense, context, bytecodes);
+			translateCondition(expr.getRhs(), target, sense, context, bytecodes);
+			bytecodes.add(new Bytecode.Label(skipLabel));
+		} else if (op == Expr.BOp.AND || op == Expr.BOp.OR) {
+			// The branch is taken if either side agrees with sense
+			translateCondition(expr.getLhs(), target, sense, context, bytecodes);
+			translateCondition(expr.getRhs(), target, sense, context, bytecodes);
+		} else {
+			JvmType type = toJvmType(expr.getLhs().attribute(Attribute.Type.class).type);
+			int cmp = toIfCmp(op, sense);
+			if (type instanceof JvmType.Primitive && cmp != -1) {
+				translate(expr.getLhs(), context, bytecodes);
+				translate(expr.getRhs(), context, bytecodes);
+				bytecodes.add(new Bytecode.IfCmp(cmp, type, target));
+			} else {
+				translate(expr, context, bytecodes);
+				bytecodes.add(new Bytecode.If(sense ? IfMode.NE : IfMode.EQ, target));
+			}
+		}
+	}
+	
+	/**
+	 * Determine the comparison made by an IfCmp bytecode which branches when
+	 * a given binary operator evaluates to a given value, or -1 if the
+	 * operator is not a comparison.
+	 * 
+	 * @param op
+	 * @param sense
+	 * @return
+	 */
+	private static int toIfCmp(Expr.BOp op, boolean sense) {
+		switch (op) {
+		case EQ:
+			return sense ? Bytecode.IfCmp.EQ : Bytecode.IfCmp.NE;
+		case NEQ:
+			return sense ? Bytecode.IfCmp.NE : Bytecode.IfCmp.EQ;
+		case LT:
+			return sense ? Bytecode.IfCmp.LT : Bytecode.IfCmp.GE;
+		case LTEQ:
+			return sense ? Bytecode.IfCmp.LE : Bytecode.IfCmp.GT;
+		case GT:
+			return sense ? Bytecode.IfCmp.GT : Bytecode.IfCmp.LE;
+		case GTEQ:
+			return sense ? Bytecode.IfCmp.GE : Bytecode.IfCmp.LT;
+		default:
+			return -1;
+		}
+	}
+	
 	private void translate(Stmt.Return stmt, Context context, List<Bytecode> bytecodes) {
 		Expr expr = stmt.getExpr();
 		if(expr != null) {
@@ -247,9 +985,12 @@ public class ClassFileWriter {
 			Attribute.Type attr = expr.attribute(Attribute.Type.class);
 			// Translate returned expression
 			translate(expr,context,bytecodes);
+			coerceAsNecessary(toJvmType(attr.type),context.getReturnType(),context,bytecodes);
 			// Add return bytecode
-			bytecodes.add(new Bytecode.Return(toJvmType(attr.type)));
+			addMethodExit(bytecodes);
+			bytecodes.add(new Bytecode.Return(context.getReturnType()));
 		} else {
+			addMethodExit(bytecodes);
 			bytecodes.add(new Bytecode.Return(null));
 		}
 	}
@@ -257,12 +998,14 @@ public class ClassFileWriter {
 
 	private void translate(Stmt.VariableDeclaration stmt, Context context, List<Bytecode> bytecodes) {
 		Expr rhs = stmt.getExpr();
-		// Declare the variable in the context
-		context.declareRegister(stmt.getName());
+		JvmType lhsType = toJvmType(stmt.getType());
+		// Declare the variable in the context, at its own (unboxed) type
+		int register = context.declareRegister(stmt.getName(), lhsType);
 		// 
 		if(rhs != null) {
-			Expr.LVal lhs = new Expr.Variable(stmt.getName());
-			translateAssignmentHelper(lhs,rhs,context,bytecodes);
+			JvmType rhsType = toJvmType(rhs.attribute(Attribute.Type.class).type);
+			translateAssignedValue(rhs,rhsType,lhsType,context,bytecodes);
+			bytecodes.add(new Bytecode.Store(register, lhsType));
 		}		
 	}
 	
@@ -290,14 +1033,59 @@ public class ClassFileWriter {
 		//
 		if (lhs instanceof Expr.Variable) {
 			Expr.Variable var = (Expr.Variable) lhs;
-			translate(rhs, context, bytecodes);
+			JvmType lhsType = toJvmType(lhs.attribute(Attribute.Type.class).type);
+			translateAssignedValue(rhs, rhsType, lhsType, context, bytecodes);
 			int register = context.getRegister(var.getName());
-			bytecodes.add(new Bytecode.Store(register, rhsType));
+			bytecodes.add(new Bytecode.Store(register, lhsType));
+		} else if (lhs instanceof Expr.IndexOf) {
+			// Arrays are never shared, hence the array being assigned into can
+			// be updated in place.
+			Expr.IndexOf e = (Expr.IndexOf) lhs;
+			JvmType.Array type = (JvmType.Array) toJvmType(e.getSource().attribute(Attribute.Type.class).type);
+			translate(e.getSource(), context, bytecodes);
+			translate(e.getIndex(), context, bytecodes);
+			translateAssignedValue(rhs, rhsType, type.element(), context, bytecodes);
+			bytecodes.add(new Bytecode.ArrayStore(type));
+		} else if (lhs instanceof Expr.RecordAccess) {
+			// Likewise, records are never shared
+			Expr.RecordAccess e = (Expr.RecordAccess) lhs;
+			JvmType.Clazz type = (JvmType.Clazz) toJvmType(e.getSource().attribute(Attribute.Type.class).type);
+			JvmType fieldType = shapeOf(type).typeOf(e.getName());
+			translate(e.getSource(), context, bytecodes);
+			translateAssignedValue(rhs, rhsType, fieldType, context, bytecodes);
+			bytecodes.add(new Bytecode.PutField(type, e.getName(), fieldType, Bytecode.FieldMode.NONSTATIC));
 		} else {			
 			throw new IllegalArgumentException("unknown lval encountered");
 		}
 	}
 	
+	/**
+	 * Translate an expression whose value is being stored into a variable or
+	 * compound value. This must be a copy of the value, in order to preserve
+	 * value semantics, unless the value is unaliased.
+	 * 
+	 * @param expr
+	 *            Expression being assigned
+	 * @param from
+	 *            The JVM type of the expression
+	 * @param to
+	 *            The JVM type of the location being assigned
+	 * @param context
+	 *            The current translation context
+	 * @param bytecodes
+	 *            The list of bytecodes being accumulated
+	 */
+	private void translateAssignedValue(Expr expr, JvmType from, JvmType to, Context context,
+			List<Bytecode> bytecodes) {
+		translate(expr, context, bytecodes);
+		if (!ownership.isUnaliased(expr)) {
+			cloneAsNecessary(from, context, bytecodes);
+		} else if (!isAtomic(from)) {
+			context.avoidClone();
+		}
+		coerceAsNecessary(from, to, context, bytecodes);
+	}
+	
 	/**
 	 * Translate a given expression in the While language into a series of one
 	 * of more bytecodes which implement its behaviour. The result of the
@@ -333,11 +1121,51 @@ public class ClassFileWriter {
 	}
 
 	private void translate(Expr.ArrayGenerator expr, Context context, List<Bytecode> bytecodes) {
-		System.err.println("translate array generator");
+		JvmType.Array type = (JvmType.Array) toJvmType(expr.attribute(Attribute.Type.class).type);
+		JvmType element = type.element();
+		// The value is evaluated before the size, so it must be held in a
+		// register whilst the array is allocated.
+		translate(expr.getValue(), context, bytecodes);
+		int value = context.freshRegister(element);
+		bytecodes.add(new Bytecode.Store(value, element));
+		translate(expr.getSize(), context, bytecodes);
+		bytecodes.add(new Bytecode.New(type));
+		if (isAtomic(element)) {
+			// Every element can hold the same value
+			JvmType.Array fillType = element instanceof JvmType.Primitive ? type : JAVA_LANG_OBJECT_ARRAY;
+			JvmType.Function ft = new JvmType.Function(JvmTypes.T_VOID, fillType, fillType.element());
+			bytecodes.add(new Bytecode.Dup(type));
+			bytecodes.add(new Bytecode.Load(value, element));
+			bytecodes.add(new Bytecode.Invoke(JAVA_UTIL_ARRAYS, "fill", ft, Bytecode.InvokeMode.STATIC));
+		} else {
+			// Every element must hold its own copy of the value
+			int array = context.freshRegister(type);
+			int index = context.freshRegister(JvmTypes.T_INT);
+			bytecodes.add(new Bytecode.Store(array, type));
+			String[] loop = translateLoopHeader(index, bytecodes);
+			bytecodes.add(new Bytecode.Load(array, type));
+			bytecodes.add(new Bytecode.Load(index, JvmTypes.T_INT));
+			bytecodes.add(new Bytecode.Load(value, element));
+			cloneAsNecessary(element, context, bytecodes);
+			bytecodes.add(new Bytecode.ArrayStore(type));
+			translateLoopFooter(loop, array, type, index, bytecodes);
+			bytecodes.add(new Bytecode.Load(array, type));
+		}
 	}
 	
 	private void translate(Expr.ArrayInitialiser expr, Context context, List<Bytecode> bytecodes) {
-		System.err.println("translate array initialiser");
+		JvmType.Array type = (JvmType.Array) toJvmType(expr.attribute(Attribute.Type.class).type);
+		List<Expr> arguments = expr.getArguments();
+		bytecodes.add(new Bytecode.LoadConst(arguments.size()));
+		bytecodes.add(new Bytecode.New(type));
+		for (int i = 0; i != arguments.size(); ++i) {
+			Expr argument = arguments.get(i);
+			JvmType argumentType = toJvmType(argument.attribute(Attribute.Type.class).type);
+			bytecodes.add(new Bytecode.Dup(type));
+			bytecodes.add(new Bytecode.LoadConst(i));
+			translateAssignedValue(argument, argumentType, type.element(), context, bytecodes);
+			bytecodes.add(new Bytecode.ArrayStore(type));
+		}
 	}
 	
 	private void translate(Expr.Binary expr, Context context, List<Bytecode> bytecodes) {		
@@ -347,18 +1175,30 @@ public class ClassFileWriter {
 		Expr lhs = expr.getLhs();
 		Expr rhs = expr.getRhs();
 		
-		translate(lhs,context,bytecodes);
-		translate(rhs,context,bytecodes);
+		if (!isAtomic(type) && (expr.getOp() == Expr.BOp.EQ || expr.getOp() == Expr.BOp.NEQ)) {
+			translateCompoundEquality(expr, context, bytecodes);
+			return;
+		}
 		
 		String trueLabel, falseLabel;
 		
+		if (expr.getOp() == Expr.BOp.AND || expr.getOp() == Expr.BOp.OR) {
+			// Logical operators short circuit, so are translated as branches
+			trueLabel = freshLabel();
+			falseLabel = freshLabel();
+			translateCondition(expr, trueLabel, true, context, bytecodes);
+			bytecodes.add(new Bytecode.LoadConst(false));
+			bytecodes.add(new Bytecode.Goto(falseLabel));
+			bytecodes.add(new Bytecode.Label(trueLabel));
+			bytecodes.add(new Bytecode.LoadConst(true));
+			bytecodes.add(new Bytecode.Label(falseLabel));
+			return;
+		}
+		
+		translate(lhs,context,bytecodes);
+		translate(rhs,context,bytecodes);
+		
 		switch (expr.getOp()) {
-		case AND:
-			bytecodes.add(new Bytecode.BinOp(Bytecode.BinOp.AND, type));
-			break;
-		case OR:
-			bytecodes.add(new Bytecode.BinOp(Bytecode.BinOp.OR, type));
-			break;
 		case ADD:
 			bytecodes.add(new Bytecode.BinOp(Bytecode.BinOp.ADD, type));
 			break;
@@ -438,34 +1278,143 @@ public class ClassFileWriter {
 			throw new IllegalArgumentException("unknown binary operator encountered");
 		}
 	}
+	
+	/**
+	 * Arrays and records are compared by value, rather than by reference. An
+	 * operand whose type involves the empty array literal (which has no
+	 * element type of its own) is first brought to the representation of the
+	 * other.
+	 * 
+	 * @param expr
+	 * @param context
+	 * @param bytecodes
+	 */
+	private void translateCompoundEquality(Expr.Binary expr, Context context, List<Bytecode> bytecodes) {
+		JvmType lhsType = toJvmType(expr.getLhs().attribute(Attribute.Type.class).type);
+		JvmType rhsType = toJvmType(expr.getRhs().attribute(Attribute.Type.class).type);
+		JvmType type = containsVoid(lhsType) ? rhsType : lhsType;
+		translate(expr.getLhs(), context, bytecodes);
+		if (containsVoid(lhsType)) {
+			coerceAsNecessary(lhsType, type, context, bytecodes);
+		}
+		translate(expr.getRhs(), context, bytecodes);
+		if (containsVoid(rhsType)) {
+			coerceAsNecessary(rhsType, type, context, bytecodes);
+		}
+		translateEqualityHelper(type, bytecodes);
+		if (expr.getOp() == Expr.BOp.NEQ) {
+			translateNotHelper(bytecodes);
+		}
+	}
+	
+	/**
+	 * Compare the two arrays or records on top of the stack by value, leaving
+	 * the outcome on the stack.
+	 * 
+	 * @param type
+	 *            The type of both operands
+	 * @param bytecodes
+	 *            The list of bytecodes being accumulated
+	 */
+	private void translateEqualityHelper(JvmType type, List<Bytecode> bytecodes) {
+		if (type instanceof JvmType.Array) {
+			JvmType.Array arrayType = (JvmType.Array) type;
+			if (arrayType.element() instanceof JvmType.Primitive) {
+				bytecodes.add(new Bytecode.Invoke(JAVA_UTIL_ARRAYS, "equals",
+						new JvmType.Function(JvmTypes.T_BOOL, arrayType, arrayType), Bytecode.InvokeMode.STATIC));
+			} else {
+				// Nested arrays must themselves be compared by value
+				bytecodes.add(new Bytecode.Invoke(JAVA_UTIL_ARRAYS, "deepEquals",
+						new JvmType.Function(JvmTypes.T_BOOL, JAVA_LANG_OBJECT_ARRAY, JAVA_LANG_OBJECT_ARRAY),
+						Bytecode.InvokeMode.STATIC));
+			}
+		} else {
+			bytecodes.add(new Bytecode.Invoke((JvmType.Reference) type, "equals",
+					new JvmType.Function(JvmTypes.T_BOOL, JvmTypes.JAVA_LANG_OBJECT), Bytecode.InvokeMode.VIRTUAL));
+		}
+	}
 			
 	private void translate(Expr.Constant expr, Context context, List<Bytecode> bytecodes) {
 		Object value = expr.getValue();
-		// FIXME: it's possible that the value here is an instanceof List or
-		// Map. This indicates a record or array constant, which cannot be
-		// passed through to the LoadConst bytecode.
-		bytecodes.add(new Bytecode.LoadConst(value));		
+		translateConstant(value, toJvmType(expr.attribute(Attribute.Type.class).type), bytecodes);
+	}
+	
+	/**
+	 * Load a constant value onto the stack. An array or record constant (which
+	 * arises from a constant case label) is constructed one element at a time.
+	 * 
+	 * @param value
+	 *            The constant value being loaded
+	 * @param type
+	 *            The JVM type of the constant
+	 * @param bytecodes
+	 *            The list of bytecodes being accumulated
+	 */
+	private void translateConstant(Object value, JvmType type, List<Bytecode> bytecodes) {
+		if (value instanceof List) {
+			List<?> values = (List<?>) value;
+			JvmType.Array arrayType = (JvmType.Array) type;
+			bytecodes.add(new Bytecode.LoadConst(values.size()));
+			bytecodes.add(new Bytecode.New(arrayType));
+			for (int i = 0; i != values.size(); ++i) {
+				bytecodes.add(new Bytecode.Dup(arrayType));
+				bytecodes.add(new Bytecode.LoadConst(i));
+				translateConstant(values.get(i), arrayType.element(), bytecodes);
+				bytecodes.add(new Bytecode.ArrayStore(arrayType));
+			}
+		} else if (value instanceof Map) {
+			Map<?,?> values = (Map<?,?>) value;
+			RecordShape shape = shapeOf(type);
+			constructObject(shape.type, bytecodes);
+			for (Pair<String,JvmType> field : shape.fields) {
+				bytecodes.add(new Bytecode.Dup(shape.type));
+				translateConstant(values.get(field.first()), field.second(), bytecodes);
+				bytecodes.add(new Bytecode.PutField(shape.type, field.first(), field.second(),
+						Bytecode.FieldMode.NONSTATIC));
+			}
+		} else {
+			bytecodes.add(new Bytecode.LoadConst(value));
+		}
 	}
 		
 	private void translate(Expr.IndexOf expr, Context context, List<Bytecode> bytecodes) {
-		
+		JvmType.Array type = (JvmType.Array) toJvmType(expr.getSource().attribute(Attribute.Type.class).type);
+		translate(expr.getSource(), context, bytecodes);
+		translate(expr.getIndex(), context, bytecodes);
+		bytecodes.add(new Bytecode.ArrayLoad(type));
 	}
 	
 	private void translate(Expr.Invoke expr, Context context, List<Bytecode> bytecodes) {
 		JvmType.Function type = methodTypes.get(expr.getName());
+		List<JvmType> parameterTypes = type.parameterTypes();
 		List<Expr> arguments = expr.getArguments();
 		for(int i=0;i!=arguments.size();++i) {
-			translate(arguments.get(i),context,bytecodes);
+			Expr argument = arguments.get(i);
+			JvmType argumentType = toJvmType(argument.attribute(Attribute.Type.class).type);
+			translateAssignedValue(argument,argumentType,parameterTypes.get(i),context,bytecodes);
 		}		
 		bytecodes.add(new Bytecode.Invoke(context.getEnclosingClass(), expr.getName(), type, Bytecode.InvokeMode.STATIC));
 	}
 	
 	private void translate(Expr.RecordAccess expr, Context context, List<Bytecode> bytecodes) {
-	
+		JvmType.Clazz type = (JvmType.Clazz) toJvmType(expr.getSource().attribute(Attribute.Type.class).type);
+		translate(expr.getSource(), context, bytecodes);
+		bytecodes.add(new Bytecode.GetField(type, expr.getName(), shapeOf(type).typeOf(expr.getName()),
+				Bytecode.FieldMode.NONSTATIC));
 	}
 	
 	private void translate(Expr.RecordConstructor expr, Context context, List<Bytecode> bytecodes) {
-		
+		RecordShape shape = shapeOf(toJvmType(expr.attribute(Attribute.Type.class).type));
+		// The fields are evaluated in the order they are written
+		constructObject(shape.type, bytecodes);
+		for (Pair<String,Expr> field : expr.getFields()) {
+			Expr value = field.second();
+			JvmType valueType = toJvmType(value.attribute(Attribute.Type.class).type);
+			JvmType fieldType = shape.typeOf(field.first());
+			bytecodes.add(new Bytecode.Dup(shape.type));
+			translateAssignedValue(value, valueType, fieldType, context, bytecodes);
+			bytecodes.add(new Bytecode.PutField(shape.type, field.first(), fieldType, Bytecode.FieldMode.NONSTATIC));
+		}
 	}
 	
 	private void translate(Expr.Unary expr, Context context, List<Bytecode> bytecodes) {
@@ -478,6 +1427,14 @@ public class ClassFileWriter {
 		case NEG:
 			bytecodes.add(new Bytecode.Neg(JvmTypes.T_INT));
 			break;
+		case LENGTHOF:
+			if(toJvmType(expr.getExpr().attribute(Attribute.Type.class).type) == JvmTypes.JAVA_LANG_STRING) {
+				bytecodes.add(new Bytecode.Invoke(JvmTypes.JAVA_LANG_STRING, "length",
+						new JvmType.Function(JvmTypes.T_INT), Bytecode.InvokeMode.VIRTUAL));
+			} else {
+				bytecodes.add(new Bytecode.ArrayLength());
+			}
+			break;
 		default:
 			throw new IllegalArgumentException("unknown unary operator encountered");
 		}
@@ -502,6 +1459,34 @@ public class ClassFileWriter {
 		bytecodes.add(new Bytecode.Load(register, type));
 	}
 	
+	/**
+	 * Report the execution of a given statement to the profiler, if
+	 * profiling.
+	 * 
+	 * @param stmt
+	 * @param bytecodes
+	 */
+	private void addStatementAt(Stmt stmt, List<Bytecode> bytecodes) {
+		if(profiling) {
+			bytecodes.add(new Bytecode.LoadConst(Profiler.startOf(stmt)));
+			bytecodes.add(new Bytecode.Invoke(WHILELANG_UTIL_PROFILER, "statementAt",
+					new JvmType.Function(JvmTypes.T_VOID, JvmTypes.T_INT), Bytecode.InvokeMode.STATIC));
+		}
+	}
+	
+	/**
+	 * Report the exit from the method being translated to the profiler, if
+	 * profiling. This must immediately precede every return.
+	 * 
+	 * @param bytecodes
+	 */
+	private void addMethodExit(List<Bytecode> bytecodes) {
+		if(profiling) {
+			bytecodes.add(new Bytecode.Invoke(WHILELANG_UTIL_PROFILER, "methodExit",
+					new JvmType.Function(JvmTypes.T_VOID), Bytecode.InvokeMode.STATIC));
+		}
+	}
+	
 	/**
 	 * This method is responsible for ensuring that the last bytecode in a
 	 * method is a return bytecode. This is only necessary (and valid) in the
@@ -512,6 +1497,7 @@ public class ClassFileWriter {
 	 */
 	private void addReturnAsNecessary(WhileFile.MethodDecl md, List<Bytecode> bytecodes) {
 		if(!allPathsReturn(md.getBody())) { 
+			addMethodExit(bytecodes);
 			bytecodes.add(new Bytecode.Return(null));
 		}
 	}
@@ -536,15 +1522,51 @@ public class ClassFileWriter {
 		if(stmt instanceof Stmt.IfElse) {
 			Stmt.IfElse ife = (Stmt.IfElse) stmt;
 			return allPathsReturn(ife.getTrueBranch()) && allPathsReturn(ife.getFalseBranch());
+		} else if(stmt instanceof Stmt.Switch) {
+			// Every case falls through into the last, unless it breaks out
+			// of the switch. Without a default, no case need be executed.
+			List<Stmt.Case> cases = ((Stmt.Switch) stmt).getCases();
+			boolean hasDefault = false;
+			for(Stmt.Case c : cases) {
+				if(c.isDefault()) {
+					hasDefault = true;
+				}
+				if(containsBreak(c.getBody())) {
+					return false;
+				}
+			}
+			return hasDefault && allPathsReturn(cases.get(cases.size()-1).getBody());
 		} else if(stmt instanceof Stmt.Return) {
 			return true;
 		}
 		return false;
 	}
 	
+	/**
+	 * Check whether a given statement block contains a break statement which
+	 * exits the enclosing loop or switch.
+	 * 
+	 * @param stmts
+	 * @return
+	 */
+	private boolean containsBreak(List<Stmt> stmts) {
+		for(Stmt stmt : stmts) {
+			if(stmt instanceof Stmt.Break) {
+				return true;
+			} else if(stmt instanceof Stmt.IfElse) {
+				Stmt.IfElse ife = (Stmt.IfElse) stmt;
+				if(containsBreak(ife.getTrueBranch()) || containsBreak(ife.getFalseBranch())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	
 	/**
 	 * Clone the element on top of the stack, if it is of an appropriate type
-	 * (i.e. is not a primitive).
+	 * (i.e. is not a primitive). The clone of an array is deep, since every
+	 * element of an array of compound values must be copied as well.
 	 * 
 	 * @param type
 	 *            The type of the element on the top of the stack.
@@ -553,99 +1575,153 @@ public class ClassFileWriter {
 	 * @param bytecodes
 	 *            The list of bytecodes being accumulated
 	 */
-	private void cloneAsNecessary(JvmType type, List<Bytecode> bytecodes) {
-		if(type instanceof JvmType.Primitive || type == JvmTypes.JAVA_LANG_STRING) {
+	private void cloneAsNecessary(JvmType type, Context context, List<Bytecode> bytecodes) {
+		if(isAtomic(type)) {
 			// no need to do anything in the case of a primitive type			
+		} else if(!(type instanceof JvmType.Array)) {
+			// Every record class provides a deep copy method
+			JvmType.Function ft = new JvmType.Function(type);
+			bytecodes.add(new Bytecode.Invoke((JvmType.Reference) type, "copy", ft, Bytecode.InvokeMode.VIRTUAL));
 		} else {
 			// Invoke the clone function on the datatype in question
 			JvmType.Function ft = new JvmType.Function(JvmTypes.JAVA_LANG_OBJECT);
 			bytecodes.add(new Bytecode.Invoke((JvmType.Reference) type, "clone", ft, Bytecode.InvokeMode.VIRTUAL));
 			bytecodes.add(new Bytecode.CheckCast(type));			
+			if (!isAtomic(((JvmType.Array) type).element())) {
+				JvmType.Array arrayType = (JvmType.Array) type;
+				int array = context.freshRegister(arrayType);
+				int index = context.freshRegister(JvmTypes.T_INT);
+				bytecodes.add(new Bytecode.Store(array, arrayType));
+				String[] loop = translateLoopHeader(index, bytecodes);
+				bytecodes.add(new Bytecode.Load(array, arrayType));
+				bytecodes.add(new Bytecode.Load(index, JvmTypes.T_INT));
+				bytecodes.add(new Bytecode.Load(array, arrayType));
+				bytecodes.add(new Bytecode.Load(index, JvmTypes.T_INT));
+				bytecodes.add(new Bytecode.ArrayLoad(arrayType));
+				cloneAsNecessary(arrayType.element(), context, bytecodes);
+				bytecodes.add(new Bytecode.ArrayStore(arrayType));
+				translateLoopFooter(loop, array, arrayType, index, bytecodes);
+				bytecodes.add(new Bytecode.Load(array, arrayType));
+			}
 		}
 	}
 	
 	/**
-	 * Box the element on top of the stack, if it is of an appropriate type
-	 * (i.e. is not a primitive).
+	 * Convert the array or record on top of the stack into a given type, if it
+	 * has a different representation. This happens for arrays whose element
+	 * type was inferred from the empty array literal, and which therefore hold
+	 * no values of that element type. The empty array is simply replaced,
+	 * whilst any other array is converted element by element. It also happens
+	 * for a record assigned to a record type with fewer fields (see
+	 * <code>TypeChecker.isSubtype()</code>). Since every record class has a
+	 * fixed set of fields, a record of the target class is constructed from
+	 * the fields it shares with the source.
 	 * 
 	 * @param from
-	 *            The type of the element we are converting from (i.e. on the
-	 *            top of the stack).
+	 *            The type of the element on the top of the stack.
+	 * @param to
+	 *            The type it must be converted to.
 	 * @param context
 	 *            The current translation context
 	 * @param bytecodes
 	 *            The list of bytecodes being accumulated
 	 */
-	private void boxAsNecessary(Type from, List<Bytecode> bytecodes) {
-		JvmType.Clazz owner;		
-		JvmType jvmType = toJvmType(from);
-		
-		if(jvmType instanceof JvmType.Reference) {
-			// Only need to box primitive types
+	private void coerceAsNecessary(JvmType from, JvmType to, Context context, List<Bytecode> bytecodes) {
+		if (from.equals(to)) {
+			return;
+		} else if (shapeOf(from) != null && shapeOf(to) != null) {
+			RecordShape fromShape = shapeOf(from);
+			RecordShape toShape = shapeOf(to);
+			int source = context.freshRegister(fromShape.type);
+			bytecodes.add(new Bytecode.Store(source, fromShape.type));
+			constructObject(toShape.type, bytecodes);
+			for (Pair<String,JvmType> field : toShape.fields) {
+				JvmType fieldType = fromShape.typeOf(field.first());
+				bytecodes.add(new Bytecode.Dup(toShape.type));
+				bytecodes.add(new Bytecode.Load(source, fromShape.type));
+				bytecodes.add(new Bytecode.GetField(fromShape.type, field.first(), fieldType,
+						Bytecode.FieldMode.NONSTATIC));
+				coerceAsNecessary(fieldType, field.second(), context, bytecodes);
+				bytecodes.add(new Bytecode.PutField(toShape.type, field.first(), field.second(),
+						Bytecode.FieldMode.NONSTATIC));
+			}
+			return;
+		} else if (!(from instanceof JvmType.Array) || !(to instanceof JvmType.Array)) {
 			return;
-		} else if(jvmType instanceof JvmType.Bool) {
-			owner = JvmTypes.JAVA_LANG_BOOLEAN;
-		} else if(jvmType instanceof JvmType.Char) {
-			owner = JvmTypes.JAVA_LANG_CHARACTER;
-		} else if(jvmType instanceof JvmType.Int) {
-			owner = JvmTypes.JAVA_LANG_INTEGER;
+		}
+		JvmType.Array fromType = (JvmType.Array) from;
+		JvmType.Array toType = (JvmType.Array) to;
+		if (fromType.element().equals(JvmTypes.JAVA_LANG_OBJECT)) {
+			bytecodes.add(new Bytecode.Pop(fromType));
+			bytecodes.add(new Bytecode.LoadConst(0));
+			bytecodes.add(new Bytecode.New(toType));
 		} else {
-			throw new IllegalArgumentException("unknown primitive type encountered: " + jvmType);
+			int source = context.freshRegister(fromType);
+			int array = context.freshRegister(toType);
+			int index = context.freshRegister(JvmTypes.T_INT);
+			bytecodes.add(new Bytecode.Dup(fromType));
+			bytecodes.add(new Bytecode.Store(source, fromType));
+			bytecodes.add(new Bytecode.ArrayLength());
+			bytecodes.add(new Bytecode.New(toType));
+			bytecodes.add(new Bytecode.Store(array, toType));
+			String[] loop = translateLoopHeader(index, bytecodes);
+			bytecodes.add(new Bytecode.Load(array, toType));
+			bytecodes.add(new Bytecode.Load(index, JvmTypes.T_INT));
+			bytecodes.add(new Bytecode.Load(source, fromType));
+			bytecodes.add(new Bytecode.Load(index, JvmTypes.T_INT));
+			bytecodes.add(new Bytecode.ArrayLoad(fromType));
+			coerceAsNecessary(fromType.element(), toType.element(), context, bytecodes);
+			bytecodes.add(new Bytecode.ArrayStore(toType));
+			translateLoopFooter(loop, array, toType, index, bytecodes);
+			bytecodes.add(new Bytecode.Load(array, toType));
 		}
-		
-		String boxMethodName = "valueOf";
-		JvmType.Function boxMethodType = new JvmType.Function(owner,jvmType);
-		bytecodes.add(new Bytecode.Invoke(owner, boxMethodName, boxMethodType,
-				Bytecode.InvokeMode.STATIC));
 	}
 	
 	/**
-	 * The element on the top of the stack has been read out of a compound data
-	 * structure, such as an ArrayList or HashMap representing an array or
-	 * record. This value has type Object, and we want to convert it into its
-	 * correct form. At a minimum, this requires casting it into the expected
-	 * type. This may also require unboxing the element if it is representing a
-	 * primitive type.
+	 * Begin a loop which visits every index of an array, starting from zero.
+	 * The loop condition is placed at the bottom (see
+	 * <code>translateLoopFooter()</code>), and the loop body follows this
+	 * header directly.
 	 * 
-	 * @param to
-	 *            The type of the element we are converting to (i.e. that we
-	 *            want to be on the top of the stack).
+	 * @param index
+	 *            The register holding the current index
 	 * @param bytecodes
 	 *            The list of bytecodes being accumulated
+	 * @return The labels of the loop body and the loop condition
 	 */
-	private void addReadConversion(Type to, List<Bytecode> bytecodes) {
-		// First cast to the boxed jvm type
-		JvmType.Reference boxedJvmType = toBoxedJvmType(to);
-		bytecodes.add(new Bytecode.CheckCast(boxedJvmType));
-		// Second, unbox as necessary
-		unboxAsNecessary(boxedJvmType,bytecodes);				
+	private String[] translateLoopHeader(int index, List<Bytecode> bytecodes) {
+		String body = freshLabel();
+		String condition = freshLabel();
+		bytecodes.add(new Bytecode.LoadConst(0));
+		bytecodes.add(new Bytecode.Store(index, JvmTypes.T_INT));
+		bytecodes.add(new Bytecode.Goto(condition));
+		bytecodes.add(new Bytecode.Label(body));
+		return new String[] { body, condition };
 	}
 	
 	/**
-	 * Unbox a reference type when appropriate. That is, when it represented a
-	 * boxed primitive type.
+	 * End a loop begun by <code>translateLoopHeader()</code>, which continues
+	 * whilst the index is within the bounds of the given array.
 	 * 
-	 * @param jvmType
+	 * @param labels
+	 *            The labels returned by the loop header
+	 * @param array
+	 *            The register holding the array being visited
+	 * @param type
+	 *            The type of the array being visited
+	 * @param index
+	 *            The register holding the current index
 	 * @param bytecodes
+	 *            The list of bytecodes being accumulated
 	 */
-	private void unboxAsNecessary(JvmType.Reference jvmType, List<Bytecode> bytecodes) {
-		String unboxMethodName;
-		JvmType.Primitive unboxedJvmType;
-
-		if (jvmType.equals(JvmTypes.JAVA_LANG_BOOLEAN)) {
-			unboxMethodName = "booleanValue";
-			unboxedJvmType = JvmTypes.T_BOOL;
-		} else if (jvmType.equals(JvmTypes.JAVA_LANG_CHARACTER)) {
-			unboxMethodName = "charValue";
-			unboxedJvmType = JvmTypes.T_CHAR;
-		} else if (jvmType.equals(JvmTypes.JAVA_LANG_INTEGER)) {
-			unboxMethodName = "intValue";
-			unboxedJvmType = JvmTypes.T_INT;
-		} else {
-			return; // not necessary to unbox
-		}
-		JvmType.Function unboxMethodType = new JvmType.Function(unboxedJvmType);
-		bytecodes.add(new Bytecode.Invoke(jvmType, unboxMethodName, unboxMethodType, Bytecode.InvokeMode.VIRTUAL));
+	private void translateLoopFooter(String[] labels, int array, JvmType.Array type, int index,
+			List<Bytecode> bytecodes) {
+		bytecodes.add(new Bytecode.Iinc(index, 1));
+		bytecodes.add(new Bytecode.Label(labels[1]));
+		bytecodes.add(new Bytecode.Load(index, JvmTypes.T_INT));
+		bytecodes.add(new Bytecode.Load(array, type));
+		bytecodes.add(new Bytecode.ArrayLength());
+		bytecodes.add(new Bytecode.IfCmp(Bytecode.IfCmp.LT, JvmTypes.T_INT, labels[0]));
 	}
 	
 	/**
@@ -685,38 +1761,72 @@ public class ClassFileWriter {
 		return ft;
 	}
 	
+	/**
+	 * Construct an initial context for an instance method of a record class,
+	 * whose receiver occupies the first register.
+	 * 
+	 * @param shape
+	 * @param returnType
+	 * @return
+	 */
+	private Context constructRecordContext(RecordShape shape, JvmType returnType) {
+		Context context = new Context(shape.type, returnType);
+		context.declareRegister("this", shape.type);
+		return context;
+	}
+	
 	/**
 	 * Construct an initial context for the given method. In essence, this
 	 * just maps every parameter to the corresponding JVM register, as these are
 	 * automatically assigned by the JVM when the method is in invoked.
 	 * 
 	 * @param method
+	 * @param owner
+	 * @param ft
 	 * @return
 	 */
-	private Map<String,Integer> constructMethodEnvironment(WhileFile.MethodDecl method) {
-		HashMap<String,Integer> environment = new HashMap<String,Integer>();
-		int index = 0;
-		for(WhileFile.Parameter p : method.getParameters()) {
-			environment.put(p.getName(), index++);
+	private Context constructMethodContext(WhileFile.MethodDecl method, JvmType.Clazz owner, JvmType.Function ft) {
+		Context context = new Context(owner, ft.returnType());
+		List<WhileFile.Parameter> parameters = method.getParameters();
+		for(int i = 0; i != parameters.size(); ++i) {
+			context.declareRegister(parameters.get(i).getName(), ft.parameterTypes().get(i));
 		}
-		return environment;
+		return context;
 	}
 	
 	
 	/**
-	 * Check whether a While type is a primitive or not
+	 * Check whether values of a given JVM type are immutable, and hence never
+	 * need to be cloned. The elements of an array of type
+	 * <code>Object[]</code> have type <code>void</code>, and so do not exist.
+	 * 
+	 * @param type
+	 * @return
+	 */
+	private static boolean isAtomic(JvmType type) {
+		return type instanceof JvmType.Primitive || type.equals(JvmTypes.JAVA_LANG_STRING)
+				|| type.equals(JvmTypes.JAVA_LANG_OBJECT);
+	}
+	
+	/**
+	 * Check whether a given JVM type involves an array whose element type was
+	 * inferred from the empty array literal (see <code>toJvmType()</code>).
 	 * 
 	 * @param type
 	 * @return
 	 */
-	private boolean isPrimitive(Type type) {
-		if(type instanceof Type.Record || type instanceof Type.Array) {
+	private boolean containsVoid(JvmType type) {
+		if (type instanceof JvmType.Array) {
+			return containsVoid(((JvmType.Array) type).element());
+		} else if (shapeOf(type) != null) {
+			for (Pair<String,JvmType> field : shapeOf(type).fields) {
+				if (containsVoid(field.second())) {
+					return true;
+				}
+			}
 			return false;
-		} else if(type instanceof Type.Named) {
-			Type.Named d = (Type.Named) type;
-			return isPrimitive(declaredTypes.get(d.getName()));
 		} else {
-			return true;
+			return type.equals(JvmTypes.JAVA_LANG_OBJECT);
 		}
 	}
 	
@@ -752,47 +1862,112 @@ public class ClassFileWriter {
 			Type.Named d = (Type.Named) t;
 			return toJvmType(declaredTypes.get(d.getName()));
 		} else if(t instanceof Type.Array) {
-			return JAVA_UTIL_ARRAYLIST;
+			Type element = ((Type.Array) t).getElement();
+			if(element instanceof Type.Void) {
+				// The empty array literal has no elements, and so any
+				// reference type will do.
+				return JAVA_LANG_OBJECT_ARRAY;
+			}
+			return new JvmType.Array(toJvmType(element));
 		} else if(t instanceof Type.Record) {
-			return JAVA_UTIL_HASHMAP;
+			return toJvmType((Type.Record) t);
 		} else {
 			throw new IllegalArgumentException("Unknown type encountered: " + t);
 		}
 	}
 	
 	/**
-	 * Convert a While type into its boxed JVM type.
+	 * Convert a While record type into the class which represents it. Record
+	 * types with the same fields (regardless of the order in which they were
+	 * declared) share the same class, which is generated on first use.
 	 * 
 	 * @param t
 	 * @return
 	 */
-	private JvmType.Reference toBoxedJvmType(Type t) {
-		if(t instanceof Type.Bool) {
-			return JvmTypes.JAVA_LANG_BOOLEAN;
-		} else if(t instanceof Type.Char) {
-			return JvmTypes.JAVA_LANG_CHARACTER;
-		} else if(t instanceof Type.Int) {
-			return JvmTypes.JAVA_LANG_INTEGER;
-		} else if(t instanceof Type.Strung) {
-			return JvmTypes.JAVA_LANG_STRING;
-		} else if(t instanceof Type.Named) {
-			Type.Named d = (Type.Named) t;
-			return toBoxedJvmType(declaredTypes.get(d.getName()));
-		} else if(t instanceof Type.Array) {
-			return JAVA_UTIL_ARRAYLIST;
-		} else if(t instanceof Type.Record) {
-			return JAVA_UTIL_HASHMAP;
-		} else {
-			throw new IllegalArgumentException("Unknown type encountered: " + t);
+	private JvmType.Clazz toJvmType(Type.Record t) {
+		ArrayList<Pair<String,JvmType>> fields = new ArrayList<Pair<String,JvmType>>();
+		for (Pair<Type,String> field : t.getFields()) {
+			fields.add(new Pair<String,JvmType>(field.second(), toJvmType(field.first())));
+		}
+		Collections.sort(fields, FIELD_ORDER);
+		String key = fields.toString();
+		RecordShape shape = recordShapes.get(key);
+		if (shape == null) {
+			shape = new RecordShape(moduleName + "$Record" + recordShapes.size(), fields);
+			recordShapes.put(key, shape);
 		}
+		return shape.type;
 	}
-
+	
+	/**
+	 * Get the record shape represented by a given JVM type, or
+	 * <code>null</code> if it does not represent a record.
+	 * 
+	 * @param type
+	 * @return
+	 */
+	private RecordShape shapeOf(JvmType type) {
+		for (RecordShape shape : recordShapes.values()) {
+			if (shape.type.equals(type)) {
+				return shape;
+			}
+		}
+		return null;
+	}
+	
 	// A few helpful constants not defined in JvmTypes	
-	private static final JvmType.Clazz JAVA_UTIL_LIST = new JvmType.Clazz("java.util","List");
-	private static final JvmType.Clazz JAVA_UTIL_ARRAYLIST = new JvmType.Clazz("java.util","ArrayList");
-	private static final JvmType.Clazz JAVA_UTIL_HASHMAP = new JvmType.Clazz("java.util","HashMap");
-	private static final JvmType.Clazz JAVA_UTIL_COLLECTION = new JvmType.Clazz("java.util","Collection");
-	private static final JvmType.Clazz JAVA_UTIL_COLLECTIONS = new JvmType.Clazz("java.util","Collections");
+	private static final JvmType.Clazz JAVA_UTIL_ARRAYS = new JvmType.Clazz("java.util","Arrays");
+	private static final JvmType.Clazz JAVA_LANG_STRINGBUILDER = new JvmType.Clazz("java.lang","StringBuilder");
+	private static final JvmType.Clazz WHILELANG_UTIL_PROFILER = new JvmType.Clazz("whilelang.util","Profiler");
+	private static final JvmType.Array JAVA_LANG_OBJECT_ARRAY = new JvmType.Array(JvmTypes.JAVA_LANG_OBJECT);
+	
+	/**
+	 * Orders the fields of a record by name.
+	 */
+	private static final Comparator<Pair<String,JvmType>> FIELD_ORDER = new Comparator<Pair<String,JvmType>>() {
+		public int compare(Pair<String,JvmType> f1, Pair<String,JvmType> f2) {
+			return f1.first().compareTo(f2.first());
+		}
+	};
+	
+	/**
+	 * Describes the class generated to represent a given record shape.
+	 * 
+	 */
+	private static class RecordShape {
+		/**
+		 * The name of the generated class
+		 */
+		private final String name;
+		
+		private final JvmType.Clazz type;
+		
+		/**
+		 * The name and type of each field, in sorted order
+		 */
+		private final List<Pair<String,JvmType>> fields;
+		
+		public RecordShape(String name, List<Pair<String,JvmType>> fields) {
+			this.name = name;
+			this.type = new JvmType.Clazz(name);
+			this.fields = fields;
+		}
+		
+		/**
+		 * Get the type of a given field.
+		 * 
+		 * @param field
+		 * @return
+		 */
+		public JvmType typeOf(String field) {
+			for (Pair<String,JvmType> f : fields) {
+				if (f.first().equals(field)) {
+					return f.second();
+				}
+			}
+			throw new IllegalArgumentException("unknown field encountered: " + field);
+		}
+	}
 	
 	/**
 	 * Provides useful contextual information which passed down through the
@@ -808,19 +1983,64 @@ public class ClassFileWriter {
 		 */
 		private final JvmType.Clazz enclosingClass;
 		
+		/**
+		 * The return type of the enclosing method.
+		 */
+		private final JvmType returnType;
+		
 		/**
 		 * Maps each declared variable to a jvm register index
 		 */
 		private final Map<String,Integer> environment;
 		
-		public Context(JvmType.Clazz enclosingClass, Map<String,Integer> environment) {
-			this.enclosingClass = enclosingClass;
-			this.environment = environment;
-		}
+		/**
+		 * The type of the value held in each register allocated so far. Every
+		 * type used by the generated code occupies a single register.
+		 */
+		private final ArrayList<JvmType> registers;
+		
+		/**
+		 * The registers whose variables have gone out of scope, and which may
+		 * be reused for another variable of the same type.
+		 */
+		private final ArrayList<Integer> free;
+		
+		/**
+		 * The variables declared in each enclosing scope, innermost last
+		 */
+		private final ArrayList<ArrayList<String>> scopes;
+		
+		/**
+		 * The number of temporary registers allocated so far, which is used
+		 * to give each a distinct name.
+		 */
+		private int temporaries;
+		
+		/**
+		 * The number of clones avoided so far in the enclosing method
+		 */
+		private int clonesAvoided;
+		
+		/**
+		 * The labels branched to by a break statement, innermost last
+		 */
+		private final ArrayList<String> breakLabels;
+		
+		/**
+		 * The labels branched to by a continue statement, innermost last
+		 */
+		private final ArrayList<String> continueLabels;
 		
-		public Context(Context context) {
-			this.enclosingClass = context.enclosingClass;
-			this.environment = new HashMap<String,Integer>(context.environment);
+		public Context(JvmType.Clazz enclosingClass, JvmType returnType) {
+			this.enclosingClass = enclosingClass;
+			this.returnType = returnType;
+			this.environment = new HashMap<String,Integer>();
+			this.registers = new ArrayList<JvmType>();
+			this.free = new ArrayList<Integer>();
+			this.scopes = new ArrayList<ArrayList<String>>();
+			this.scopes.add(new ArrayList<String>());
+			this.breakLabels = new ArrayList<String>();
+			this.continueLabels = new ArrayList<String>();
 		}
 		
 		/**
@@ -833,16 +2053,39 @@ public class ClassFileWriter {
 		}
 		
 		/**
-		 * Declare a new variable in the given context. This basically allocated
-		 * the given variable to the next available register slot.
+		 * Get the return type of the enclosing method.
+		 * 
+		 * @return
+		 */
+		public JvmType getReturnType() {
+			return returnType;
+		}
+		
+		/**
+		 * Declare a new variable of a given type in the innermost scope. This
+		 * reuses a register of the same type which is no longer in scope, if
+		 * there is one, and otherwise allocates the next available register.
+		 * Since a register is only ever reused at the same type, each
+		 * variable keeps the (unboxed) type it was declared with.
 		 * 
 		 * @param var
-		 * @param environment
+		 * @param type
 		 * @return
 		 */
-		public int declareRegister(String var) {
-			int register = environment.size();
+		public int declareRegister(String var, JvmType type) {
+			int register = -1;
+			for (int i = 0; i != free.size(); ++i) {
+				if (registers.get(free.get(i)).equals(type)) {
+					register = free.remove(i);
+					break;
+				}
+			}
+			if (register == -1) {
+				register = registers.size();
+				registers.add(type);
+			}
 			environment.put(var, register);
+			scopes.get(scopes.size() - 1).add(var);
 			return register;
 		}
 		
@@ -857,5 +2100,97 @@ public class ClassFileWriter {
 			return environment.get(var);
 		}
 		
+		/**
+		 * Allocate a register to hold a temporary value of a given type. Such
+		 * registers are named so as not to clash with any declared variable,
+		 * and are released along with the innermost scope.
+		 * 
+		 * @param type
+		 * @return
+		 */
+		public int freshRegister(JvmType type) {
+			return declareRegister("$" + temporaries++, type);
+		}
+		
+		/**
+		 * Enter a new scope, such as the body of a loop or a branch of a
+		 * conditional.
+		 */
+		public void enterScope() {
+			scopes.add(new ArrayList<String>());
+		}
+		
+		/**
+		 * Exit the innermost scope. The registers of the variables declared
+		 * within it become free to be reused.
+		 */
+		public void exitScope() {
+			for (String var : scopes.remove(scopes.size() - 1)) {
+				free.add(environment.remove(var));
+			}
+		}
+		
+		/**
+		 * Enter a switch statement, which is exited by branching to the given
+		 * label.
+		 * 
+		 * @param label
+		 */
+		public void pushBreakLabel(String label) {
+			breakLabels.add(label);
+		}
+		
+		public void popBreakLabel() {
+			breakLabels.remove(breakLabels.size() - 1);
+		}
+		
+		/**
+		 * Get the label branched to by a break statement within the innermost
+		 * enclosing loop or switch.
+		 * 
+		 * @return
+		 */
+		public String getBreakLabel() {
+			return breakLabels.get(breakLabels.size() - 1);
+		}
+		
+		/**
+		 * Enter a loop, which is exited by branching to the first label and
+		 * continued by branching to the second.
+		 * 
+		 * @param breakLabel
+		 * @param continueLabel
+		 */
+		public void pushLoop(String breakLabel, String continueLabel) {
+			breakLabels.add(breakLabel);
+			continueLabels.add(continueLabel);
+		}
+		
+		public void popLoop() {
+			breakLabels.remove(breakLabels.size() - 1);
+			continueLabels.remove(continueLabels.size() - 1);
+		}
+		
+		/**
+		 * Get the label branched to by a continue statement within the
+		 * innermost enclosing loop.
+		 * 
+		 * @return
+		 */
+		public String getContinueLabel() {
+			return continueLabels.get(continueLabels.size() - 1);
+		}
+		
+		/**
+		 * Record that an unaliased value was stored without being cloned.
+		 */
+		public void avoidClone() {
+			clonesAvoided++;
+		}
+		
+		public int getClonesAvoided() {
+			return clonesAvoided;
+		}
+		
 	}
 }
@@ -0,0 +1,328 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.compiler;
+
+import static whilelang.util.SyntaxError.internalFailure;
+
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import whilelang.ast.*;
+import whilelang.util.Pair;
+
+/**
+ * <p>
+ * Responsible for determining which values can be stored (i.e. assigned to a
+ * variable, array element or record field, or passed as an argument) without
+ * first being copied. Since arrays and records have value semantics, a
+ * compiled program which represents them as mutable objects must normally
+ * copy a value whenever it is stored, so that no two holders share it.
+ * However, a copy is unnecessary when the value stored is <i>unaliased</i>.
+ * That is, when the value has just been constructed (e.g. by an array
+ * initialiser or a method call), or when it is read from a variable (or part
+ * of one) which is <i>dead</i> afterwards, since the variable is then never
+ * read again before being reassigned.
+ * </p>
+ * <p>
+ * Dead variables are determined by a standard backwards liveness analysis
+ * over the body of each method. This is computed as a fixed point for loops.
+ * Observe that an assignment to an element of an array (or a field of a
+ * record) updates the variable holding it in place. Hence, that variable is
+ * live whilst the assigned value is evaluated.
+ * </p>
+ *
+ */
+public class OwnershipAnalysis {
+	private WhileFile file;
+
+	/**
+	 * The outcome for each value stored, which is true if it is unaliased.
+	 * Since the body of a loop is analysed repeatedly, the last outcome
+	 * recorded (which is that for the fixed point) is the one which holds.
+	 */
+	private IdentityHashMap<Expr, Boolean> unaliased;
+
+	public void apply(WhileFile wf) {
+		this.file = wf;
+		this.unaliased = new IdentityHashMap<Expr, Boolean>();
+
+		for (WhileFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WhileFile.MethodDecl) {
+				WhileFile.MethodDecl md = (WhileFile.MethodDecl) declaration;
+				live(md.getBody(), new HashSet<String>(), null);
+			}
+		}
+	}
+
+	/**
+	 * Check whether a given value can be stored without being copied. The
+	 * value must be one stored by the analysed file.
+	 *
+	 * @param expr
+	 * @return
+	 */
+	public boolean isUnaliased(Expr expr) {
+		Boolean r = unaliased.get(expr);
+		return r != null && r;
+	}
+
+	/**
+	 * Determine the set of variables live before a given list of statements,
+	 * given the set of variables live after them.
+	 *
+	 * @param statements
+	 *            The list of statements to analyse.
+	 * @param live
+	 *            The set of variables live after the statements.
+	 * @param loop
+	 *            The sets of variables live at the targets of a break or
+	 *            continue statement, or null if not within a loop or switch.
+	 * @return
+	 */
+	private Set<String> live(List<Stmt> statements, Set<String> live, Loop loop) {
+		for (int i = statements.size() - 1; i >= 0; --i) {
+			live = live(statements.get(i), live, loop);
+		}
+		return live;
+	}
+
+	private Set<String> live(Stmt stmt, Set<String> live, Loop loop) {
+		if (stmt instanceof Stmt.Assert) {
+			return live(((Stmt.Assert) stmt).getExpr(), live);
+		} else if (stmt instanceof Stmt.Assign) {
+			return live((Stmt.Assign) stmt, live);
+		} else if (stmt instanceof Stmt.Print) {
+			return live(((Stmt.Print) stmt).getExpr(), live);
+		} else if (stmt instanceof Stmt.Return) {
+			// Nothing is live after a return, and the value returned is not
+			// stored.
+			Expr e = ((Stmt.Return) stmt).getExpr();
+			return e == null ? new HashSet<String>() : live(e, new HashSet<String>());
+		} else if (stmt instanceof Stmt.Break) {
+			return new HashSet<String>(loop.breakLive);
+		} else if (stmt instanceof Stmt.Continue) {
+			return new HashSet<String>(loop.continueLive);
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			return live((Stmt.VariableDeclaration) stmt, live);
+		} else if (stmt instanceof Expr.Invoke) {
+			return live((Expr.Invoke) stmt, live);
+		} else if (stmt instanceof Stmt.IfElse) {
+			Stmt.IfElse s = (Stmt.IfElse) stmt;
+			Set<String> r = new HashSet<String>(live(s.getTrueBranch(), live, loop));
+			r.addAll(live(s.getFalseBranch(), live, loop));
+			return live(s.getCondition(), r);
+		} else if (stmt instanceof Stmt.For) {
+			return live((Stmt.For) stmt, live);
+		} else if (stmt instanceof Stmt.While) {
+			return live((Stmt.While) stmt, live);
+		} else if (stmt instanceof Stmt.Switch) {
+			return live((Stmt.Switch) stmt, live, loop);
+		} else {
+			internalFailure("unknown statement encountered (" + stmt + ")", file.filename, stmt);
+			return null;
+		}
+	}
+
+	private Set<String> live(Stmt.Assign stmt, Set<String> live) {
+		Expr.LVal lhs = stmt.getLhs();
+		if (lhs instanceof Expr.Variable) {
+			live = new HashSet<String>(live);
+			live.remove(((Expr.Variable) lhs).getName());
+			return store(stmt.getRhs(), live);
+		} else {
+			// The variable being updated in place is live until the store,
+			// which happens after the right-hand side is evaluated.
+			live = new HashSet<String>(live);
+			if (root(lhs) != null) {
+				live.add(root(lhs).getName());
+			}
+			live = store(stmt.getRhs(), live);
+			return live(lhs, live);
+		}
+	}
+
+	private Set<String> live(Stmt.VariableDeclaration stmt, Set<String> live) {
+		live = new HashSet<String>(live);
+		live.remove(stmt.getName());
+		if (stmt.getExpr() != null) {
+			live = store(stmt.getExpr(), live);
+		}
+		return live;
+	}
+
+	private Set<String> live(Stmt.While stmt, Set<String> live) {
+		Set<String> head = live(stmt.getCondition(), live);
+		while (true) {
+			Set<String> body = new HashSet<String>(live(stmt.getBody(), head, new Loop(live, head)));
+			body.addAll(live);
+			Set<String> next = live(stmt.getCondition(), body);
+			if (next.equals(head)) {
+				return head;
+			}
+			head = next;
+		}
+	}
+
+	private Set<String> live(Stmt.For stmt, Set<String> live) {
+		Set<String> head = live(stmt.getCondition(), live);
+		while (true) {
+			Set<String> increment = live(stmt.getIncrement(), head, null);
+			Set<String> body = new HashSet<String>(live(stmt.getBody(), increment, new Loop(live, increment)));
+			body.addAll(live);
+			Set<String> next = live(stmt.getCondition(), body);
+			if (next.equals(head)) {
+				return live(stmt.getDeclaration(), head);
+			}
+			head = next;
+		}
+	}
+
+	private Set<String> live(Stmt.Switch stmt, Set<String> live, Loop loop) {
+		// Each case falls through into the next. A break leaves the switch,
+		// whilst a continue refers to the enclosing loop.
+		Loop inner = new Loop(live, loop == null ? null : loop.continueLive);
+		Set<String> next = live;
+		Set<String> r = new HashSet<String>(live);
+		List<Stmt.Case> cases = stmt.getCases();
+		for (int i = cases.size() - 1; i >= 0; --i) {
+			next = live(cases.get(i).getBody(), next, inner);
+			r.addAll(next);
+		}
+		// Case values are always constants, so only the switched value matters
+		return live(stmt.getExpr(), r);
+	}
+
+	/**
+	 * Determine the set of variables live before a value is evaluated and
+	 * then stored, given the set of variables live after it is stored. The
+	 * value is recorded as unaliased if it is freshly constructed, or read
+	 * from a variable which is not live afterwards. A value read from part of
+	 * a freshly constructed value (e.g. <code>f(x)[0]</code>) is also
+	 * unaliased.
+	 *
+	 * @param expr
+	 *            The value being stored.
+	 * @param live
+	 *            The set of variables live afterwards.
+	 * @return
+	 */
+	private Set<String> store(Expr expr, Set<String> live) {
+		if (expr instanceof Expr.LVal) {
+			Expr.Variable root = root((Expr.LVal) expr);
+			unaliased.put(expr, root == null || !live.contains(root.getName()));
+		} else {
+			unaliased.put(expr, true);
+		}
+		return live(expr, live);
+	}
+
+	/**
+	 * Determine the set of variables live before a given expression is
+	 * evaluated, given the set of variables live after it. Subexpressions are
+	 * considered in the reverse of the order in which they are evaluated.
+	 *
+	 * @param expr
+	 * @param live
+	 * @return
+	 */
+	private Set<String> live(Expr expr, Set<String> live) {
+		if (expr instanceof Expr.Variable) {
+			live = new HashSet<String>(live);
+			live.add(((Expr.Variable) expr).getName());
+			return live;
+		} else if (expr instanceof Expr.Constant) {
+			return live;
+		} else if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			return live(e.getLhs(), live(e.getRhs(), live));
+		} else if (expr instanceof Expr.Unary) {
+			return live(((Expr.Unary) expr).getExpr(), live);
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			return live(e.getSource(), live(e.getIndex(), live));
+		} else if (expr instanceof Expr.RecordAccess) {
+			return live(((Expr.RecordAccess) expr).getSource(), live);
+		} else if (expr instanceof Expr.ArrayGenerator) {
+			// The value is copied into every element, so is not recorded
+			Expr.ArrayGenerator e = (Expr.ArrayGenerator) expr;
+			return live(e.getValue(), live(e.getSize(), live));
+		} else if (expr instanceof Expr.ArrayInitialiser) {
+			List<Expr> arguments = ((Expr.ArrayInitialiser) expr).getArguments();
+			for (int i = arguments.size() - 1; i >= 0; --i) {
+				live = store(arguments.get(i), live);
+			}
+			return live;
+		} else if (expr instanceof Expr.RecordConstructor) {
+			List<Pair<String, Expr>> fields = ((Expr.RecordConstructor) expr).getFields();
+			for (int i = fields.size() - 1; i >= 0; --i) {
+				live = store(fields.get(i).second(), live);
+			}
+			return live;
+		} else if (expr instanceof Expr.Invoke) {
+			return live((Expr.Invoke) expr, live);
+		} else {
+			internalFailure("unknown expression encountered (" + expr + ")", file.filename, expr);
+			return null;
+		}
+	}
+
+	private Set<String> live(Expr.Invoke expr, Set<String> live) {
+		List<Expr> arguments = expr.getArguments();
+		for (int i = arguments.size() - 1; i >= 0; --i) {
+			live = store(arguments.get(i), live);
+		}
+		return live;
+	}
+
+	/**
+	 * Determine the variable from which a given lval is read, or null if it
+	 * is read from a value which is not held in a variable.
+	 *
+	 * @param lval
+	 * @return
+	 */
+	private static Expr.Variable root(Expr.LVal lval) {
+		Expr e = lval;
+		while (true) {
+			if (e instanceof Expr.Variable) {
+				return (Expr.Variable) e;
+			} else if (e instanceof Expr.IndexOf) {
+				e = ((Expr.IndexOf) e).getSource();
+			} else if (e instanceof Expr.RecordAccess) {
+				e = ((Expr.RecordAccess) e).getSource();
+			} else {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * The sets of variables live at the targets of the break and continue
+	 * statements within a loop (or switch).
+	 */
+	private static final class Loop {
+		public final Set<String> breakLive;
+		public final Set<String> continueLive;
+
+		public Loop(Set<String> breakLive, Set<String> continueLive) {
+			this.breakLive = breakLive;
+			this.continueLive = continueLive;
+		}
+	}
+}
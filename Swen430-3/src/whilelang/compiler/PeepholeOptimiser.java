@@ -0,0 +1,188 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.compiler;
+
+import java.util.List;
+
+import jasm.lang.Bytecode;
+import jasm.lang.JvmTypes;
+
+/**
+ * <p>
+ * Responsible for removing redundant bytecodes from the body of a method
+ * generated by the <code>ClassFileWriter</code>, before its
+ * <code>Code</code> attribute is constructed. The translation of each
+ * statement and expression is made without regard to the code around it and,
+ * hence, sometimes produces sequences which can be shortened or removed (e.g.
+ * a branch to the very next bytecode).
+ * </p>
+ * <p>
+ * The optimisations made are given by a set of rules, each of which rewrites
+ * a short sequence of bytecodes in place. The rules are applied at every
+ * position, repeatedly, until none applies anywhere. Since the ClassFileWriter
+ * branches only to labels, any rule which keeps every label is safe to apply
+ * anywhere. Smaller methods are more likely to fit within the JVM's inlining
+ * thresholds.
+ * </p>
+ *
+ */
+public class PeepholeOptimiser {
+
+	/**
+	 * A rewrite of a short sequence of bytecodes.
+	 */
+	public interface Rule {
+		/**
+		 * Attempt to rewrite the sequence of bytecodes beginning at a given
+		 * position.
+		 *
+		 * @param bytecodes
+		 *            The body of the method being optimised
+		 * @param index
+		 *            The position of the first bytecode in the sequence
+		 * @return True if the bytecodes were changed
+		 */
+		public boolean apply(List<Bytecode> bytecodes, int index);
+	}
+
+	/**
+	 * Remove a goto which branches to a label immediately following it.
+	 */
+	public static final Rule GOTO_NEXT = new Rule() {
+		public boolean apply(List<Bytecode> bytecodes, int index) {
+			if (!(bytecodes.get(index) instanceof Bytecode.Goto)) {
+				return false;
+			}
+			String target = ((Bytecode.Goto) bytecodes.get(index)).label;
+			for (int i = index + 1; i < bytecodes.size() && bytecodes.get(i) instanceof Bytecode.Label; ++i) {
+				if (((Bytecode.Label) bytecodes.get(i)).name.equals(target)) {
+					bytecodes.remove(index);
+					return true;
+				}
+			}
+			return false;
+		}
+	};
+
+	/**
+	 * Remove the bytecodes following a goto, return, throw or switch up to
+	 * the next label, since these can never be reached.
+	 */
+	public static final Rule UNREACHABLE = new Rule() {
+		public boolean apply(List<Bytecode> bytecodes, int index) {
+			Bytecode b = bytecodes.get(index);
+			if (!(b instanceof Bytecode.Goto || b instanceof Bytecode.Return || b instanceof Bytecode.Throw
+					|| b instanceof Bytecode.Switch)) {
+				return false;
+			}
+			boolean changed = false;
+			while (index + 1 < bytecodes.size() && !(bytecodes.get(index + 1) instanceof Bytecode.Label)) {
+				bytecodes.remove(index + 1);
+				changed = true;
+			}
+			return changed;
+		}
+	};
+
+	/**
+	 * Replace an assignment which adds a small constant to an int variable
+	 * (e.g. <code>i = i + 1</code>) with a single <code>iinc</code>.
+	 */
+	public static final Rule INCREMENT = new Rule() {
+		public boolean apply(List<Bytecode> bytecodes, int index) {
+			if (index + 3 >= bytecodes.size() || !(bytecodes.get(index) instanceof Bytecode.Load)
+					|| !(bytecodes.get(index + 1) instanceof Bytecode.LoadConst)
+					|| !(bytecodes.get(index + 2) instanceof Bytecode.BinOp)
+					|| !(bytecodes.get(index + 3) instanceof Bytecode.Store)) {
+				return false;
+			}
+			Bytecode.Load load = (Bytecode.Load) bytecodes.get(index);
+			Object constant = ((Bytecode.LoadConst) bytecodes.get(index + 1)).constant;
+			Bytecode.BinOp op = (Bytecode.BinOp) bytecodes.get(index + 2);
+			Bytecode.Store store = (Bytecode.Store) bytecodes.get(index + 3);
+			if (!load.type.equals(JvmTypes.T_INT) || !(constant instanceof Integer) || !op.type.equals(JvmTypes.T_INT)
+					|| !store.type.equals(JvmTypes.T_INT) || load.slot != store.slot) {
+				return false;
+			}
+			int increment;
+			if (op.op == Bytecode.BinOp.ADD) {
+				increment = (Integer) constant;
+			} else if (op.op == Bytecode.BinOp.SUB) {
+				increment = -(Integer) constant;
+			} else {
+				return false;
+			}
+			if (increment < Byte.MIN_VALUE || increment > Byte.MAX_VALUE) {
+				return false;
+			}
+			bytecodes.subList(index, index + 4).clear();
+			bytecodes.add(index, new Bytecode.Iinc(load.slot, increment));
+			return true;
+		}
+	};
+
+	/**
+	 * The rules applied by default.
+	 */
+	public static final Rule[] DEFAULT_RULES = { UNREACHABLE, GOTO_NEXT, INCREMENT };
+
+	private final Rule[] rules;
+
+	public PeepholeOptimiser() {
+		this(DEFAULT_RULES);
+	}
+
+	public PeepholeOptimiser(Rule... rules) {
+		this.rules = rules;
+	}
+
+	/**
+	 * Optimise the body of a given method in place.
+	 *
+	 * @param bytecodes
+	 */
+	public void optimise(List<Bytecode> bytecodes) {
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i = 0; i < bytecodes.size(); ++i) {
+				for (Rule rule : rules) {
+					if (i < bytecodes.size() && rule.apply(bytecodes, i)) {
+						changed = true;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Count the number of instructions in the body of a method. Labels are
+	 * not counted, since they do not appear in the generated code.
+	 *
+	 * @param bytecodes
+	 * @return
+	 */
+	public static int countInstructions(List<Bytecode> bytecodes) {
+		int count = 0;
+		for (Bytecode b : bytecodes) {
+			if (!(b instanceof Bytecode.Label)) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,181 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.compiler;
+
+import static whilelang.util.SyntaxError.internalFailure;
+
+import java.util.HashMap;
+import java.util.List;
+
+import whilelang.ast.*;
+import whilelang.util.Pair;
+
+/**
+ * <p>
+ * Responsible for determining which methods are <i>pure</i>. That is, methods
+ * whose result is determined solely by the values of their arguments, and
+ * whose execution has no other observable effect. Every method is annotated
+ * with the outcome (see <code>WhileFile.MethodDecl.isPure()</code>), which
+ * allows an execution engine to reuse the result of an earlier call with the
+ * same arguments.
+ * </p>
+ * <p>
+ * Since arrays and records have value semantics, a method cannot affect its
+ * caller through its arguments. Hence, the only impure statement is a print
+ * statement, and a method is pure unless it prints or calls an impure method.
+ * A method which fails an assertion is still pure, since the failure is
+ * determined by its arguments. Purity is computed as a greatest fixed point,
+ * starting with every method assumed pure, so that (mutually) recursive
+ * methods are handled correctly.
+ * </p>
+ *
+ */
+public class PurityAnalysis {
+	private WhileFile file;
+	private HashMap<String, WhileFile.MethodDecl> methods;
+
+	public void apply(WhileFile wf) {
+		this.file = wf;
+		this.methods = new HashMap<String, WhileFile.MethodDecl>();
+
+		for (WhileFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WhileFile.MethodDecl) {
+				WhileFile.MethodDecl md = (WhileFile.MethodDecl) declaration;
+				methods.put(md.getName(), md);
+				md.setPure(true);
+			}
+		}
+
+		// Keep marking methods impure until nothing changes
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (WhileFile.MethodDecl md : methods.values()) {
+				if (md.isPure() && !isPure(md.getBody())) {
+					md.setPure(false);
+					changed = true;
+				}
+			}
+		}
+	}
+
+	public boolean isPure(List<Stmt> statements) {
+		for (Stmt s : statements) {
+			if (!isPure(s)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public boolean isPure(Stmt stmt) {
+		if (stmt instanceof Stmt.Assert) {
+			return isPure(((Stmt.Assert) stmt).getExpr());
+		} else if (stmt instanceof Stmt.Assign) {
+			Stmt.Assign s = (Stmt.Assign) stmt;
+			return isPure(s.getLhs()) && isPure(s.getRhs());
+		} else if (stmt instanceof Stmt.Print) {
+			return false;
+		} else if (stmt instanceof Stmt.Return) {
+			Expr e = ((Stmt.Return) stmt).getExpr();
+			return e == null || isPure(e);
+		} else if (stmt instanceof Stmt.Break || stmt instanceof Stmt.Continue) {
+			return true;
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			Expr e = ((Stmt.VariableDeclaration) stmt).getExpr();
+			return e == null || isPure(e);
+		} else if (stmt instanceof Expr.Invoke) {
+			return isPure((Expr.Invoke) stmt);
+		} else if (stmt instanceof Stmt.IfElse) {
+			Stmt.IfElse s = (Stmt.IfElse) stmt;
+			return isPure(s.getCondition()) && isPure(s.getTrueBranch()) && isPure(s.getFalseBranch());
+		} else if (stmt instanceof Stmt.For) {
+			Stmt.For s = (Stmt.For) stmt;
+			return isPure(s.getDeclaration()) && isPure(s.getCondition()) && isPure(s.getIncrement())
+					&& isPure(s.getBody());
+		} else if (stmt instanceof Stmt.While) {
+			Stmt.While s = (Stmt.While) stmt;
+			return isPure(s.getCondition()) && isPure(s.getBody());
+		} else if (stmt instanceof Stmt.Switch) {
+			Stmt.Switch s = (Stmt.Switch) stmt;
+			if (!isPure(s.getExpr())) {
+				return false;
+			}
+			for (Stmt.Case c : s.getCases()) {
+				// Case values are always constants, so only bodies matter
+				if (!isPure(c.getBody())) {
+					return false;
+				}
+			}
+			return true;
+		} else {
+			internalFailure("unknown statement encountered (" + stmt + ")", file.filename, stmt);
+			return false;
+		}
+	}
+
+	public boolean isPure(Expr expr) {
+		if (expr instanceof Expr.Variable || expr instanceof Expr.Constant) {
+			return true;
+		} else if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			return isPure(e.getLhs()) && isPure(e.getRhs());
+		} else if (expr instanceof Expr.Unary) {
+			return isPure(((Expr.Unary) expr).getExpr());
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			return isPure(e.getSource()) && isPure(e.getIndex());
+		} else if (expr instanceof Expr.Invoke) {
+			return isPure((Expr.Invoke) expr);
+		} else if (expr instanceof Expr.ArrayGenerator) {
+			Expr.ArrayGenerator e = (Expr.ArrayGenerator) expr;
+			return isPure(e.getValue()) && isPure(e.getSize());
+		} else if (expr instanceof Expr.ArrayInitialiser) {
+			for (Expr e : ((Expr.ArrayInitialiser) expr).getArguments()) {
+				if (!isPure(e)) {
+					return false;
+				}
+			}
+			return true;
+		} else if (expr instanceof Expr.RecordAccess) {
+			return isPure(((Expr.RecordAccess) expr).getSource());
+		} else if (expr instanceof Expr.RecordConstructor) {
+			for (Pair<String, Expr> p : ((Expr.RecordConstructor) expr).getFields()) {
+				if (!isPure(p.second())) {
+					return false;
+				}
+			}
+			return true;
+		} else {
+			internalFailure("unknown expression encountered (" + expr + ")", file.filename, expr);
+			return false;
+		}
+	}
+
+	public boolean isPure(Expr.Invoke expr) {
+		WhileFile.MethodDecl target = methods.get(expr.getName());
+		if (target == null || !target.isPure()) {
+			return false;
+		}
+		for (Expr e : expr.getArguments()) {
+			if (!isPure(e)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,189 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.compiler;
+
+import static whilelang.util.SyntaxError.internalFailure;
+
+import java.util.HashMap;
+import java.util.List;
+
+import whilelang.ast.*;
+import whilelang.util.Pair;
+
+/**
+ * <p>
+ * Responsible for giving every parameter and local variable of a method a
+ * fixed slot index in its stack frame. Every occurrence of a variable (i.e.
+ * each <code>Expr.Variable</code> and <code>Stmt.VariableDeclaration</code>)
+ * is annotated with its slot, whilst each method is annotated with the total
+ * number of slots its frame requires. This allows an execution engine to
+ * represent a frame as a flat array, rather than a map from names to values.
+ * </p>
+ * <p>
+ * Parameters occupy the first slots in the order they are declared. Thereafter,
+ * each distinct variable name is given the next available slot. Since the type
+ * checker prevents a variable from being redeclared whilst in scope, this gives
+ * exactly the same behaviour as a frame keyed on variable names.
+ * </p>
+ *
+ */
+public class SlotResolver {
+	private WhileFile file;
+
+	public void resolve(WhileFile wf) {
+		this.file = wf;
+
+		for (WhileFile.Decl declaration : wf.declarations) {
+			if (declaration instanceof WhileFile.MethodDecl) {
+				resolve((WhileFile.MethodDecl) declaration);
+			}
+		}
+	}
+
+	public void resolve(WhileFile.MethodDecl fd) {
+		// First, allocate slots for the parameters
+		HashMap<String, Integer> slots = new HashMap<String, Integer>();
+		for (WhileFile.Parameter p : fd.getParameters()) {
+			slots.put(p.name(), slots.size());
+		}
+
+		// Second, allocate slots for all variables used in the method body
+		resolve(fd.getBody(), slots);
+
+		fd.setFrameSize(slots.size());
+	}
+
+	public void resolve(List<Stmt> statements, HashMap<String, Integer> slots) {
+		for (Stmt s : statements) {
+			resolve(s, slots);
+		}
+	}
+
+	public void resolve(Stmt stmt, HashMap<String, Integer> slots) {
+		if (stmt instanceof Stmt.Assert) {
+			resolve(((Stmt.Assert) stmt).getExpr(), slots);
+		} else if (stmt instanceof Stmt.Assign) {
+			Stmt.Assign s = (Stmt.Assign) stmt;
+			resolve(s.getLhs(), slots);
+			resolve(s.getRhs(), slots);
+		} else if (stmt instanceof Stmt.Print) {
+			resolve(((Stmt.Print) stmt).getExpr(), slots);
+		} else if (stmt instanceof Stmt.Return) {
+			Expr e = ((Stmt.Return) stmt).getExpr();
+			if (e != null) {
+				resolve(e, slots);
+			}
+		} else if (stmt instanceof Stmt.Break || stmt instanceof Stmt.Continue) {
+			// nothing to do
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			resolve((Stmt.VariableDeclaration) stmt, slots);
+		} else if (stmt instanceof Expr.Invoke) {
+			resolve((Expr.Invoke) stmt, slots);
+		} else if (stmt instanceof Stmt.IfElse) {
+			Stmt.IfElse s = (Stmt.IfElse) stmt;
+			resolve(s.getCondition(), slots);
+			resolve(s.getTrueBranch(), slots);
+			resolve(s.getFalseBranch(), slots);
+		} else if (stmt instanceof Stmt.For) {
+			Stmt.For s = (Stmt.For) stmt;
+			resolve(s.getDeclaration(), slots);
+			resolve(s.getCondition(), slots);
+			resolve(s.getIncrement(), slots);
+			resolve(s.getBody(), slots);
+		} else if (stmt instanceof Stmt.While) {
+			Stmt.While s = (Stmt.While) stmt;
+			resolve(s.getCondition(), slots);
+			resolve(s.getBody(), slots);
+		} else if (stmt instanceof Stmt.Switch) {
+			Stmt.Switch s = (Stmt.Switch) stmt;
+			resolve(s.getExpr(), slots);
+			for (Stmt.Case c : s.getCases()) {
+				// Case values are always constants, so only bodies matter
+				resolve(c.getBody(), slots);
+			}
+		} else {
+			internalFailure("unknown statement encountered (" + stmt + ")", file.filename, stmt);
+		}
+	}
+
+	public void resolve(Stmt.VariableDeclaration stmt, HashMap<String, Integer> slots) {
+		if (stmt.getExpr() != null) {
+			resolve(stmt.getExpr(), slots);
+		}
+		stmt.setSlot(allocate(stmt.getName(), slots));
+	}
+
+	public void resolve(Expr expr, HashMap<String, Integer> slots) {
+		if (expr instanceof Expr.Variable) {
+			Expr.Variable v = (Expr.Variable) expr;
+			v.setSlot(allocate(v.getName(), slots));
+		} else if (expr instanceof Expr.Constant) {
+			// nothing to do
+		} else if (expr instanceof Expr.Binary) {
+			Expr.Binary e = (Expr.Binary) expr;
+			resolve(e.getLhs(), slots);
+			resolve(e.getRhs(), slots);
+		} else if (expr instanceof Expr.Unary) {
+			resolve(((Expr.Unary) expr).getExpr(), slots);
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			resolve(e.getSource(), slots);
+			resolve(e.getIndex(), slots);
+		} else if (expr instanceof Expr.Invoke) {
+			resolve((Expr.Invoke) expr, slots);
+		} else if (expr instanceof Expr.ArrayGenerator) {
+			Expr.ArrayGenerator e = (Expr.ArrayGenerator) expr;
+			resolve(e.getValue(), slots);
+			resolve(e.getSize(), slots);
+		} else if (expr instanceof Expr.ArrayInitialiser) {
+			for (Expr e : ((Expr.ArrayInitialiser) expr).getArguments()) {
+				resolve(e, slots);
+			}
+		} else if (expr instanceof Expr.RecordAccess) {
+			resolve(((Expr.RecordAccess) expr).getSource(), slots);
+		} else if (expr instanceof Expr.RecordConstructor) {
+			for (Pair<String, Expr> p : ((Expr.RecordConstructor) expr).getFields()) {
+				resolve(p.second(), slots);
+			}
+		} else {
+			internalFailure("unknown expression encountered (" + expr + ")", file.filename, expr);
+		}
+	}
+
+	public void resolve(Expr.Invoke expr, HashMap<String, Integer> slots) {
+		for (Expr e : expr.getArguments()) {
+			resolve(e, slots);
+		}
+	}
+
+	/**
+	 * Get the slot allocated to a given variable name, allocating the next
+	 * available slot if this name has not been seen before.
+	 *
+	 * @param name
+	 * @param slots
+	 * @return
+	 */
+	private int allocate(String name, HashMap<String, Integer> slots) {
+		Integer slot = slots.get(name);
+		if (slot == null) {
+			slot = slots.size();
+			slots.put(name, slot);
+		}
+		return slot;
+	}
+}
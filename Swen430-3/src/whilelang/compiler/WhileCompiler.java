@@ -52,6 +52,9 @@ public class WhileCompiler {
 
 		// Fourth, definite assignment
 		new DefiniteAssignment().check(ast);
+
+		// Fifth, resolve variables to frame slots
+		new SlotResolver().resolve(ast);
 		
 		// Done
 		return ast;
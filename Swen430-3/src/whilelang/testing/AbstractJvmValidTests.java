@@ -7,11 +7,13 @@ import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.Map;
 
 import org.junit.*;
 import org.junit.runners.Parameterized.Parameters;
 
 import whilelang.ast.WhileFile;
+import whilelang.compiler.ClassFileLoader;
 import whilelang.compiler.ClassFileWriter;
 import whilelang.compiler.WhileCompiler;
 import whilelang.util.Interpreter;
@@ -51,27 +53,29 @@ public abstract class AbstractJvmValidTests {
 	@Test
 	public void valid() throws IOException, ClassNotFoundException, NoSuchMethodException, SecurityException,
 			IllegalAccessException, IllegalArgumentException, InvocationTargetException {
-		compileTest(this.testName);
-		executeTest(this.testName);
+		Map<String,byte[]> classes = compileTest(this.testName);
+		executeTest(this.testName, classes);
 	}
 	
 	/**
-	 * Compiler the source file into a JVM classfile
+	 * Compiler the source file into JVM classes, which are held in memory
+	 * rather than written to disk.
 	 * 
 	 * @param filename
 	 * @throws IOException 
 	 */
-	private void compileTest(String testname) throws IOException {
+	private Map<String,byte[]> compileTest(String testname) throws IOException {
 		// First, compile the source file into a class file
 		String sourceFilename = WHILE_SRC_DIR + testname + ".while";
-		String classFilename = WHILE_SRC_DIR + testname + ".class";
 		WhileCompiler compiler = new WhileCompiler(sourceFilename);
 		WhileFile ast = compiler.compile();
-		new ClassFileWriter(classFilename).write(ast);
+		return new ClassFileWriter().generate(ast);
 	}
 	
 	/**
-	 * Execute the generate class file on the JVM using reflection.
+	 * Execute the generated classes on the JVM using reflection. These are
+	 * defined by a class loader of their own, so that no test can see the
+	 * classes of another.
 	 * 
 	 * @param filename
 	 * @throws IOException
@@ -82,11 +86,11 @@ public abstract class AbstractJvmValidTests {
 	 * @throws IllegalArgumentException
 	 * @throws IllegalAccessException
 	 */
-	private void executeTest(String testname) throws IOException, ClassNotFoundException, NoSuchMethodException,
-			SecurityException, IllegalAccessException, IllegalArgumentException, InvocationTargetException {
+	private void executeTest(String testname, Map<String,byte[]> classes) throws IOException,
+			ClassNotFoundException, NoSuchMethodException, SecurityException, IllegalAccessException,
+			IllegalArgumentException, InvocationTargetException {
 		// Now, we attempt to run the test using reflection
-		Class testClass = Class.forName(testname);
-		Method m = testClass.getMethod("main");
+		Method m = new ClassFileLoader(classes).getMain(testname);
 		m.invoke(null);
 	}	
 }
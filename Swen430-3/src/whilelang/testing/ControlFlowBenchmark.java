@@ -0,0 +1,126 @@
+package whilelang.testing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import whilelang.ast.WhileFile;
+import whilelang.compiler.WhileCompiler;
+import whilelang.util.Interpreter;
+
+/**
+ * A benchmark harness for the handling of non-local control flow (i.e.
+ * <code>break</code>, <code>continue</code> and <code>return</code>) in the
+ * <code>Interpreter</code>. This executes the <code>For_*</code> and
+ * <code>While_*</code> programs from <code>tests/valid</code>, along with the
+ * nested loop benchmarks in <code>tests/benchmarks</code>. Since the test
+ * programs are small, each is executed many times per measurement, and the
+ * best of several measurements is reported.
+ *
+ * <pre>
+ * java whilelang.testing.ControlFlowBenchmark [files...]
+ * </pre>
+ *
+ */
+public class ControlFlowBenchmark {
+	private static final String VALID_DIR = "tests/valid/".replace('/', File.separatorChar);
+	private static final String BENCHMARK_DIR = "tests/benchmarks/".replace('/', File.separatorChar);
+
+	private static final int WARMUP_ITERATIONS = 2000;
+	public static final int ITERATIONS = 2000;
+
+	/**
+	 * The number of times each program is measured. The fastest measurement
+	 * is reported, since slower ones are usually the result of interference
+	 * (e.g. from the JIT compiler or garbage collector).
+	 */
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) throws IOException {
+		List<String> files = args.length > 0 ? Arrays.asList(args) : programs();
+		ArrayList<WhileFile> asts = new ArrayList<WhileFile>();
+		for (String filename : files) {
+			asts.add(new WhileCompiler(filename).compile());
+		}
+		double total = 0;
+		for (int i = 0; i != asts.size(); ++i) {
+			final WhileFile ast = asts.get(i);
+			// Larger programs need fewer iterations to be measured accurately
+			int iterations = files.get(i).startsWith(BENCHMARK_DIR) ? 20 : ITERATIONS;
+			double time = measure(new Runnable() {
+				public void run() {
+					Interpreter interpreter = new Interpreter();
+					interpreter.setSlotFrames(true);
+					interpreter.run(ast);
+				}
+			}, iterations);
+			total += time;
+			System.out.printf("  %-32s %12.2f us%n", new File(files.get(i)).getName(), time);
+		}
+		System.out.printf("  %-32s %12.2f us%n", "total", total);
+	}
+
+	/**
+	 * Determine the best time taken (in microseconds) for a single execution
+	 * of a given program. The program is first executed a number of times to
+	 * warm up, and then measured <code>ROUNDS</code> times.
+	 *
+	 * @param program
+	 * @param iterations
+	 *            The number of executions in each measurement.
+	 * @return
+	 */
+	public static double measure(Runnable program, int iterations) {
+		for (int j = 0; j != Math.min(iterations, WARMUP_ITERATIONS); ++j) {
+			program.run();
+		}
+		double time = Double.MAX_VALUE;
+		for (int r = 0; r != ROUNDS; ++r) {
+			long start = System.nanoTime();
+			for (int j = 0; j != iterations; ++j) {
+				program.run();
+			}
+			time = Math.min(time, (System.nanoTime() - start) / (iterations * 1000.0));
+		}
+		return time;
+	}
+
+	/**
+	 * Determine the default list of programs, which are the loop tests and the
+	 * loop benchmarks.
+	 *
+	 * @return
+	 */
+	private static List<String> programs() {
+		List<String> files = loopTests();
+		File[] benchmarks = new File(BENCHMARK_DIR).listFiles();
+		Arrays.sort(benchmarks);
+		for (File f : benchmarks) {
+			if (f.getName().startsWith("Loops_") && f.getName().endsWith(".while")) {
+				files.add(f.getPath());
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Determine the loop tests, which are the <code>For_*</code> and
+	 * <code>While_*</code> programs in <code>tests/valid</code>.
+	 *
+	 * @return
+	 */
+	public static List<String> loopTests() {
+		ArrayList<String> files = new ArrayList<String>();
+		File[] tests = new File(VALID_DIR).listFiles();
+		Arrays.sort(tests);
+		for (File f : tests) {
+			String name = f.getName();
+			if ((name.startsWith("For_") || name.startsWith("While_")) && name.endsWith(".while")) {
+				files.add(f.getPath());
+			}
+		}
+		return files;
+	}
+}
@@ -0,0 +1,170 @@
+package whilelang.testing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import whilelang.ast.WhileFile;
+import whilelang.compiler.BytecodeWriter;
+import whilelang.compiler.WhileCompiler;
+import whilelang.util.ClosureInterpreter;
+import whilelang.util.Interpreter;
+import whilelang.util.MemoCache;
+import whilelang.vm.VirtualMachine;
+
+/**
+ * A simple benchmark harness which compares the execution engines available
+ * for While programs. Each benchmark program is compiled once, and then
+ * executed repeatedly by each engine in turn. The average time per execution
+ * is reported after an initial warm-up period, which gives the JVM a chance to
+ * compile the engines themselves.
+ *
+ * <pre>
+ * java whilelang.testing.InterpreterBenchmark [files...]
+ * </pre>
+ *
+ * If no files are given, then every program in <code>tests/benchmarks</code>
+ * is used.
+ *
+ */
+public class InterpreterBenchmark {
+	private static final String BENCHMARK_DIR = "tests/benchmarks/".replace('/', File.separatorChar);
+
+	private static final int WARMUP_ITERATIONS = 30;
+	private static final int ITERATIONS = 20;
+
+	/**
+	 * Represents an execution engine being benchmarked.
+	 */
+	public interface Engine {
+		public String name();
+
+		public void run(WhileFile wf);
+	}
+
+	/**
+	 * The list of engines being compared.
+	 */
+	private static final Engine[] ENGINES = {
+		new Engine() {
+			public String name() {
+				return "interpreter (map frames)";
+			}
+
+			public void run(WhileFile wf) {
+				new Interpreter().run(wf);
+			}
+		},
+		new Engine() {
+			public String name() {
+				return "interpreter (slot frames)";
+			}
+
+			public void run(WhileFile wf) {
+				Interpreter interpreter = new Interpreter();
+				interpreter.setSlotFrames(true);
+				interpreter.run(wf);
+			}
+		},
+		new Engine() {
+			public String name() {
+				return "interpreter (memoized)";
+			}
+
+			public void run(WhileFile wf) {
+				Interpreter interpreter = new Interpreter();
+				interpreter.setSlotFrames(true);
+				interpreter.setMemoCache(new MemoCache(1024));
+				interpreter.run(wf);
+			}
+		},
+		new Engine() {
+			public String name() {
+				return "closure interpreter";
+			}
+
+			public void run(WhileFile wf) {
+				new ClosureInterpreter().run(wf);
+			}
+		},
+		new Engine() {
+			public String name() {
+				return "register VM (incl. translation)";
+			}
+
+			public void run(WhileFile wf) {
+				new VirtualMachine(new BytecodeWriter().write(wf)).run();
+			}
+		},
+		new Engine() {
+			public String name() {
+				return "register VM (heap stack)";
+			}
+
+			public void run(WhileFile wf) {
+				VirtualMachine vm = new VirtualMachine(new BytecodeWriter().write(wf));
+				vm.setHeapStack(true);
+				vm.run();
+			}
+		},
+	};
+
+	public static void main(String[] args) throws IOException {
+		for (String filename : benchmarks(args)) {
+			WhileFile ast = new WhileCompiler(filename).compile();
+			System.out.println(new File(filename).getName());
+			double baseline = 0;
+			for (int i = 0; i != ENGINES.length; ++i) {
+				double time = measure(ENGINES[i], ast);
+				if (i == 0) {
+					baseline = time;
+				}
+				System.out.printf("  %-32s %10.3f ms  (x%.2f)%n", ENGINES[i].name(), time, baseline / time);
+			}
+		}
+	}
+
+	/**
+	 * Determine the average time taken (in milliseconds) for a given engine to
+	 * execute a given program.
+	 *
+	 * @param engine
+	 * @param ast
+	 * @return
+	 */
+	public static double measure(Engine engine, WhileFile ast) {
+		for (int i = 0; i != WARMUP_ITERATIONS; ++i) {
+			engine.run(ast);
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i != ITERATIONS; ++i) {
+			engine.run(ast);
+		}
+		return (System.nanoTime() - start) / (ITERATIONS * 1000000.0);
+	}
+
+	/**
+	 * Determine the list of benchmark programs to run. These are either those
+	 * given on the command-line, or all programs in the benchmark directory.
+	 *
+	 * @param args
+	 * @return
+	 */
+	public static List<String> benchmarks(String[] args) {
+		ArrayList<String> files = new ArrayList<String>();
+		if (args.length > 0) {
+			files.addAll(Arrays.asList(args));
+		} else {
+			File[] contents = new File(BENCHMARK_DIR).listFiles();
+			Arrays.sort(contents);
+			for (File f : contents) {
+				if (f.isFile() && f.getName().endsWith(".while")) {
+					files.add(f.getPath());
+				}
+			}
+		}
+		return files;
+	}
+}
@@ -27,6 +27,7 @@ public class JvmCompoundValidTests extends AbstractJvmValidTests {
 			"ArrayAssign_Valid_6",
 			"ArrayEmpty_Valid_1",
 			"ArrayEquals_Valid_1",
+			"ArrayEquals_Valid_4",
 			"ArrayGenerator_Valid_1",
 			"ArrayGenerator_Valid_2",
 			"ArrayInitialiser_Valid_1",
@@ -42,6 +43,8 @@ public class JvmCompoundValidTests extends AbstractJvmValidTests {
 			"Char_Valid_2",
 			"Char_Valid_3",
 			"For_Valid_4",						
+			"IfElse_Valid_5",
+			"Ownership_Valid_1",
 			"RecordAccess_Valid_2",
 			"RecordAssign_Valid_1",
 			"RecordAssign_Valid_2",
@@ -22,6 +22,7 @@ public class JvmControlValidTests extends AbstractJvmValidTests {
 			"For_Valid_5",
 			"While_Valid_7",
 			"While_Valid_8",
+			"While_Valid_9",
 			"Switch_Valid_10",
 			"Switch_Valid_11",
 			"Switch_Valid_12",
@@ -36,6 +37,8 @@ public class JvmControlValidTests extends AbstractJvmValidTests {
 			"Switch_Valid_22",
 			"Switch_Valid_23",
 			"Switch_Valid_24",
+			"Switch_Valid_25",
+			"Switch_Valid_26",
 			"Switch_Valid_2",
 			"Switch_Valid_3",
 			"Switch_Valid_6",
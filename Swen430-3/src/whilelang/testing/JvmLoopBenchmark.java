@@ -0,0 +1,74 @@
+package whilelang.testing;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+
+import whilelang.ast.WhileFile;
+import whilelang.compiler.ClassFileLoader;
+import whilelang.compiler.ClassFileWriter;
+import whilelang.compiler.WhileCompiler;
+import whilelang.util.Interpreter;
+
+/**
+ * A benchmark harness comparing the loop programs (i.e. <code>For_*</code> and
+ * <code>While_*</code>) from <code>tests/valid</code> when compiled to JVM
+ * bytecode against the <code>Interpreter</code>. Each program is compiled in
+ * memory and loaded by its own class loader, after which its
+ * <code>main</code> method is executed repeatedly. The programs are chosen
+ * and timed by the harness of <code>ControlFlowBenchmark</code>, and so the
+ * best of several measurements is reported.
+ *
+ * <pre>
+ * java whilelang.testing.JvmLoopBenchmark [files...]
+ * </pre>
+ *
+ */
+public class JvmLoopBenchmark {
+	public static void main(String[] args) throws Exception {
+		List<String> files = args.length > 0 ? Arrays.asList(args) : ControlFlowBenchmark.loopTests();
+		double interpreted = 0;
+		double compiled = 0;
+		System.out.printf("  %-32s %12s %12s%n", "", "interpreter", "jvm");
+		for (String filename : files) {
+			WhileFile ast = new WhileCompiler(filename).compile();
+			final Method main = compile(ast);
+			final WhileFile program = ast;
+			double i = ControlFlowBenchmark.measure(new Runnable() {
+				public void run() {
+					Interpreter interpreter = new Interpreter();
+					interpreter.setSlotFrames(true);
+					interpreter.run(program);
+				}
+			}, ControlFlowBenchmark.ITERATIONS);
+			double c = ControlFlowBenchmark.measure(new Runnable() {
+				public void run() {
+					try {
+						main.invoke(null);
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			}, ControlFlowBenchmark.ITERATIONS);
+			interpreted += i;
+			compiled += c;
+			System.out.printf("  %-32s %9.2f us %9.2f us  (x%.2f)%n", new File(filename).getName(), i, c, i / c);
+		}
+		System.out.printf("  %-32s %9.2f us %9.2f us  (x%.2f)%n", "total", interpreted, compiled,
+				interpreted / compiled);
+	}
+
+	/**
+	 * Compile a given program into memory, and then load it and return its
+	 * <code>main</code> method.
+	 *
+	 * @param ast
+	 * @return
+	 * @throws Exception
+	 */
+	private static Method compile(WhileFile ast) throws Exception {
+		String name = new File(ast.filename).getName().replace(".while", "");
+		return new ClassFileLoader(new ClassFileWriter().generate(ast)).getMain(name);
+	}
+}
@@ -0,0 +1,160 @@
+package whilelang.testing;
+
+import static org.junit.Assert.*;
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.Future;
+
+import whilelang.ast.WhileFile;
+import whilelang.compiler.*;
+import whilelang.util.Interpreter;
+import whilelang.util.InterpreterService;
+import whilelang.util.LimitExceeded;
+
+@RunWith(Parameterized.class)
+public class LimitTests {
+	private static final String WHILE_SRC_DIR = "tests/invalid-limits/".replace('/', File.separatorChar);
+
+	/**
+	 * The time after which <code>Time_*</code> tests should run out of time,
+	 * and <code>Cancelled_*</code> tests are cancelled, in milliseconds.
+	 */
+	private static final int DELAY = 200;
+
+	private final String testName;
+
+	public LimitTests(String testName) {
+		this.testName = testName;
+	}
+
+	// Here we enumerate all available test cases.
+	@Parameters(name = "{0}")
+	public static Collection<Object[]> data() {
+		ArrayList<Object[]> testcases = new ArrayList<Object[]>();
+		for (File f : new File(WHILE_SRC_DIR).listFiles()) {
+			if (f.isFile()) {
+				String name = f.getName();
+				if (name.endsWith(".while")) {
+					// Get rid of ".while" extension
+					String testName = name.substring(0, name.length() - 6);
+					testcases.add(new Object[] { testName });
+				}
+			}
+		}
+		return testcases;
+	}
+
+	@Test
+	public void invalid() throws IOException {
+		runTest(this.testName, false);
+	}
+
+	@Test
+	public void invalidSlotFrames() throws IOException {
+		runTest(this.testName, true);
+	}
+
+	@Test
+	public void invalidService() throws Exception {
+		runServiceTest(this.testName);
+	}
+
+	/**
+	 * Run the interpreter over a given source file with limits on its
+	 * execution. Every test should exceed the limit named by the first part of
+	 * its name (e.g. <code>Steps_Invalid_1</code> exceeds the step limit).
+	 * Tests which exceed the time limit, or are cancelled, run without a step
+	 * limit, since they would otherwise exceed it first.
+	 *
+	 * @param testname
+	 * @param slotFrames
+	 *            Whether or not to use slot-based stack frames
+	 * @throws IOException
+	 */
+	private void runTest(String testname, boolean slotFrames) throws IOException {
+		WhileCompiler compiler = new WhileCompiler(WHILE_SRC_DIR + testname + ".while");
+		WhileFile ast = compiler.compile();
+		LimitExceeded.Limit expected = expectedLimit(testname);
+		final Interpreter interpreter = new Interpreter();
+		interpreter.setSlotFrames(slotFrames);
+		interpreter.setStepLimit(stepLimit(expected));
+		interpreter.setMemoryLimit(64 * 1024 * 1024);
+		interpreter.setTimeLimit(timeLimit(expected));
+		if (expected == LimitExceeded.Limit.CANCELLED) {
+			new Thread() {
+				public void run() {
+					try {
+						Thread.sleep(DELAY);
+					} catch (InterruptedException e) {
+					}
+					interpreter.cancel();
+				}
+			}.start();
+		}
+		try {
+			interpreter.run(ast);
+			fail("limit not exceeded");
+		} catch (LimitExceeded e) {
+			assertEquals(expected, e.limit());
+			assertTrue(e.start() >= 0);
+		}
+	}
+
+	/**
+	 * Run a given source file on an <code>InterpreterService</code> with the
+	 * same limits as <code>runTest()</code>. A <code>Cancelled_*</code> test
+	 * is cancelled through its future, and the service must then be able to
+	 * shut down, which it can only do once the execution has stopped.
+	 *
+	 * @param testname
+	 * @throws Exception
+	 */
+	private void runServiceTest(String testname) throws Exception {
+		WhileCompiler compiler = new WhileCompiler(WHILE_SRC_DIR + testname + ".while");
+		WhileFile ast = compiler.compile();
+		LimitExceeded.Limit expected = expectedLimit(testname);
+		InterpreterService service = new InterpreterService(1);
+		service.setStepLimit(stepLimit(expected));
+		service.setMemoryLimit(64 * 1024 * 1024);
+		service.setTimeLimit(timeLimit(expected));
+		try {
+			Future<InterpreterService.Result> result = service.submit(ast);
+			if (expected == LimitExceeded.Limit.CANCELLED) {
+				Thread.sleep(DELAY);
+				assertTrue(result.cancel(true));
+			} else {
+				RuntimeException failure = result.get().failure;
+				assertTrue(failure instanceof LimitExceeded);
+				assertEquals(expected, ((LimitExceeded) failure).limit());
+			}
+		} finally {
+			service.shutdown();
+		}
+		assertTrue("execution not stopped", service.awaitTermination(10000));
+	}
+
+	private static LimitExceeded.Limit expectedLimit(String testname) {
+		return LimitExceeded.Limit.valueOf(testname.substring(0, testname.indexOf('_')).toUpperCase());
+	}
+
+	private static long stepLimit(LimitExceeded.Limit expected) {
+		switch (expected) {
+		case TIME:
+		case CANCELLED:
+			return Long.MAX_VALUE;
+		default:
+			return 1000000;
+		}
+	}
+
+	private static long timeLimit(LimitExceeded.Limit expected) {
+		return expected == LimitExceeded.Limit.TIME ? DELAY : 60000;
+	}
+}
@@ -0,0 +1,229 @@
+package whilelang.testing;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+
+import whilelang.ast.WhileFile;
+import whilelang.compiler.WhileCompiler;
+import whilelang.testing.InterpreterBenchmark.Engine;
+import whilelang.util.ArrayValue;
+import whilelang.util.Interpreter;
+import whilelang.util.RecordLayout;
+import whilelang.util.RecordValue;
+
+/**
+ * A simple benchmark harness which compares the memory used by different
+ * representations of values in the <code>Interpreter</code>. This first
+ * reports the heap retained by a large array of each primitive type, and by a
+ * large number of records, under each representation. Then, for each benchmark program, it reports the number of
+ * bytes allocated by a single execution and the time spent in garbage
+ * collection over several executions. Measuring allocation requires a JVM
+ * which supports this per-thread (such as HotSpot), and is otherwise omitted.
+ *
+ * <pre>
+ * java whilelang.testing.MemoryBenchmark [files...]
+ * </pre>
+ *
+ * If no files are given, then every program in <code>tests/benchmarks</code>
+ * is used.
+ *
+ */
+public class MemoryBenchmark {
+	private static final int WARMUP_ITERATIONS = 5;
+	private static final int ITERATIONS = 10;
+
+	/**
+	 * The number of elements in each array whose footprint is measured.
+	 */
+	private static final int FOOTPRINT_ELEMENTS = 1000000;
+
+	/**
+	 * The list of configurations being compared.
+	 */
+	private static final Engine[] ENGINES = {
+		new Engine() {
+			public String name() {
+				return "boxed arrays";
+			}
+
+			public void run(WhileFile wf) {
+				Interpreter interpreter = new Interpreter();
+				interpreter.setSlotFrames(true);
+				interpreter.setPrimitiveArrays(false);
+				interpreter.run(wf);
+			}
+		},
+		new Engine() {
+			public String name() {
+				return "primitive arrays";
+			}
+
+			public void run(WhileFile wf) {
+				Interpreter interpreter = new Interpreter();
+				interpreter.setSlotFrames(true);
+				interpreter.setPrimitiveArrays(true);
+				interpreter.run(wf);
+			}
+		},
+	};
+
+	public static void main(String[] args) throws IOException {
+		System.out.println("Retained heap per array of " + FOOTPRINT_ELEMENTS + " elements");
+		String[] kinds = { "int", "bool", "char" };
+		for (String kind : kinds) {
+			long boxed = footprint(kind, false);
+			long primitive = footprint(kind, true);
+			System.out.printf("  %-6s boxed %10s  primitive %10s%n", kind + "[]", kilobytes(boxed),
+					kilobytes(primitive));
+		}
+		System.out.println("Retained heap per " + FOOTPRINT_ELEMENTS + " records of type {int x, int y, int z}");
+		System.out.printf("  hash maps %10s  record layouts %10s%n", kilobytes(recordFootprint(false)),
+				kilobytes(recordFootprint(true)));
+
+		for (String filename : InterpreterBenchmark.benchmarks(args)) {
+			WhileFile ast = new WhileCompiler(filename).compile();
+			System.out.println(new File(filename).getName());
+			for (Engine engine : ENGINES) {
+				for (int i = 0; i != WARMUP_ITERATIONS; ++i) {
+					engine.run(ast);
+				}
+				long allocated = allocatedBytes();
+				engine.run(ast);
+				allocated = allocatedBytes() - allocated;
+				long gcTime = collectionTime();
+				for (int i = 0; i != ITERATIONS; ++i) {
+					engine.run(ast);
+				}
+				gcTime = collectionTime() - gcTime;
+				System.out.printf("  %-32s %10s allocated  %6d ms in GC%n", engine.name(),
+						allocated < 0 ? "-" : kilobytes(allocated), gcTime);
+			}
+		}
+	}
+
+	/**
+	 * Determine the heap retained (in bytes) by an array of a given primitive
+	 * type, whose elements are distinct values. Boxed arrays hold one object
+	 * per element, except where the JVM caches boxes (e.g. for
+	 * <code>bool</code>).
+	 *
+	 * @param kind
+	 *            One of "int", "bool" or "char".
+	 * @param primitive
+	 *            Whether to use the primitive representation.
+	 * @return
+	 */
+	public static long footprint(String kind, boolean primitive) {
+		long before = usedHeap();
+		ArrayValue array;
+		if (!primitive) {
+			array = new ArrayValue.ObjectArray(FOOTPRINT_ELEMENTS);
+		} else if (kind.equals("int")) {
+			array = new ArrayValue.IntArray(FOOTPRINT_ELEMENTS);
+		} else if (kind.equals("bool")) {
+			array = new ArrayValue.BoolArray(FOOTPRINT_ELEMENTS);
+		} else {
+			array = new ArrayValue.CharArray(FOOTPRINT_ELEMENTS);
+		}
+		for (int i = 0; i != FOOTPRINT_ELEMENTS; ++i) {
+			Object value;
+			if (kind.equals("int")) {
+				value = Integer.valueOf(i);
+			} else if (kind.equals("bool")) {
+				value = (i & 1) == 0;
+			} else {
+				value = Character.valueOf((char) i);
+			}
+			array.set(i, value);
+		}
+		long after = usedHeap();
+		// Ensure the array remains reachable until after the measurement
+		if (array.size() != FOOTPRINT_ELEMENTS) {
+			throw new IllegalStateException();
+		}
+		return after - before;
+	}
+
+	/**
+	 * Determine the heap retained (in bytes) by a number of records with three
+	 * fields, either represented as hash maps or using a shared record layout.
+	 * Field values are shared between records, so that only the records
+	 * themselves are measured.
+	 *
+	 * @param layouts
+	 * @return
+	 */
+	public static long recordFootprint(boolean layouts) {
+		Integer[] values = { 1000, 2000, 3000 };
+		String[] fields = { "x", "y", "z" };
+		RecordLayout layout = RecordLayout.get(fields);
+		long before = usedHeap();
+		Object[] records = new Object[FOOTPRINT_ELEMENTS];
+		for (int i = 0; i != FOOTPRINT_ELEMENTS; ++i) {
+			if (layouts) {
+				RecordValue r = new RecordValue(layout);
+				for (int j = 0; j != fields.length; ++j) {
+					r.set(j, values[j]);
+				}
+				records[i] = r;
+			} else {
+				HashMap<String, Object> r = new HashMap<String, Object>();
+				for (int j = 0; j != fields.length; ++j) {
+					r.put(fields[j], values[j]);
+				}
+				records[i] = r;
+			}
+		}
+		long after = usedHeap();
+		// Ensure the records remain reachable until after the measurement
+		if (records[FOOTPRINT_ELEMENTS - 1] == null) {
+			throw new IllegalStateException();
+		}
+		// Exclude the array holding the records
+		return after - before - 16 - 4L * FOOTPRINT_ELEMENTS;
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i != 3; ++i) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * Determine the total time (in milliseconds) spent in garbage collection
+	 * so far.
+	 *
+	 * @return
+	 */
+	private static long collectionTime() {
+		long total = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			total += Math.max(0, gc.getCollectionTime());
+		}
+		return total;
+	}
+
+	/**
+	 * Determine the total number of bytes allocated so far by the current
+	 * thread, or a negative value if this is not supported.
+	 *
+	 * @return
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	private static String kilobytes(long bytes) {
+		return (bytes / 1024) + " KB";
+	}
+}
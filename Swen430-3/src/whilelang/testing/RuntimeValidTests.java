@@ -5,8 +5,10 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameters;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -14,6 +16,8 @@ import java.util.Collections;
 import whilelang.ast.WhileFile;
 import whilelang.compiler.*;
 import whilelang.util.Interpreter;
+import whilelang.util.MemoCache;
+import whilelang.util.Profiler;
 
 @RunWith(Parameterized.class)
 public class RuntimeValidTests {
@@ -44,7 +48,38 @@ public class RuntimeValidTests {
 	
 	@Test
 	public void valid() throws IOException {
-		runTest(this.testName);
+		runTest(this.testName, false);
+	}
+	
+	@Test
+	public void validSlotFrames() throws IOException {
+		runTest(this.testName, true);
+	}
+	
+	@Test
+	public void validProfiled() throws IOException {
+		WhileCompiler compiler = new WhileCompiler(WHILE_SRC_DIR + testName + ".while");
+		WhileFile ast = compiler.compile();
+		Profiler profiler = new Profiler();
+		Interpreter interpreter = new Interpreter();
+		interpreter.setSlotFrames(true);
+		interpreter.setProfiler(profiler);
+		interpreter.run(ast);
+		// Check the reports can be written
+		PrintStream out = new PrintStream(new ByteArrayOutputStream());
+		profiler.writeCollapsedStacks(out);
+		profiler.writeHotSpots(out, 10);
+	}
+	
+	@Test
+	public void validMemoized() throws IOException {
+		WhileCompiler compiler = new WhileCompiler(WHILE_SRC_DIR + testName + ".while");
+		WhileFile ast = compiler.compile();
+		Interpreter interpreter = new Interpreter();
+		interpreter.setSlotFrames(true);
+		// A small cache, so that evictions are exercised as well
+		interpreter.setMemoCache(new MemoCache(4));
+		interpreter.run(ast);
 	}
 	
 	/**
@@ -52,11 +87,15 @@ public class RuntimeValidTests {
 	 * exceptions.
 	 * 
 	 * @param filename
+	 * @param slotFrames
+	 *            Whether or not to use slot-based stack frames
 	 * @throws IOException 
 	 */
-	private void runTest(String testname) throws IOException {
+	private void runTest(String testname, boolean slotFrames) throws IOException {
 		WhileCompiler compiler = new WhileCompiler(WHILE_SRC_DIR + testname + ".while");
 		WhileFile ast = compiler.compile();
-		new Interpreter().run(ast);
+		Interpreter interpreter = new Interpreter();
+		interpreter.setSlotFrames(slotFrames);
+		interpreter.run(ast);
 	}	
 }
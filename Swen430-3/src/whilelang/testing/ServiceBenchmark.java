@@ -0,0 +1,108 @@
+package whilelang.testing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import whilelang.ast.WhileFile;
+import whilelang.compiler.WhileCompiler;
+import whilelang.util.InterpreterService;
+
+/**
+ * A simple benchmark harness which measures the throughput of the
+ * <code>InterpreterService</code> as the number of threads grows. Each round
+ * submits every benchmark program a fixed number of times, and reports the
+ * number of executions completed per second, along with the speedup over a
+ * single thread.
+ *
+ * <pre>
+ * java whilelang.testing.ServiceBenchmark [threads] [files...]
+ * </pre>
+ *
+ * By default, the number of threads goes from 1 to the number of available
+ * processors (doubling each time), and every program in
+ * <code>tests/benchmarks</code> is used.
+ *
+ */
+public class ServiceBenchmark {
+	private static final int WARMUP_ROUNDS = 3;
+	private static final int ROUNDS = 5;
+
+	/**
+	 * The number of times each program is submitted per round.
+	 */
+	private static final int COPIES = 8;
+
+	public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+		int maxThreads = Runtime.getRuntime().availableProcessors();
+		String[] files = args;
+		if (args.length > 0 && args[0].matches("[0-9]+")) {
+			maxThreads = Integer.parseInt(args[0]);
+			files = new String[args.length - 1];
+			System.arraycopy(args, 1, files, 0, files.length);
+		}
+		ArrayList<WhileFile> programs = new ArrayList<WhileFile>();
+		for (String filename : InterpreterBenchmark.benchmarks(files)) {
+			programs.add(new WhileCompiler(filename).compile());
+		}
+		System.out.println(programs.size() + " programs, " + COPIES + " copies each, up to " + maxThreads
+				+ " threads");
+		double baseline = 0;
+		for (int threads = 1; threads <= maxThreads; threads = threads * 2) {
+			double throughput = measure(threads, programs);
+			if (threads == 1) {
+				baseline = throughput;
+			}
+			System.out.printf("  %3d threads %10.1f runs/s  (x%.2f)%n", threads, throughput, throughput / baseline);
+			if (threads < maxThreads && threads * 2 > maxThreads) {
+				// Always finish with the maximum number of threads
+				threads = maxThreads / 2;
+			}
+		}
+	}
+
+	/**
+	 * Determine the best throughput (in executions per second) of a service
+	 * with a given number of threads.
+	 *
+	 * @param threads
+	 * @param programs
+	 * @return
+	 */
+	public static double measure(int threads, List<WhileFile> programs) throws InterruptedException,
+			ExecutionException {
+		InterpreterService service = new InterpreterService(threads);
+		try {
+			for (int i = 0; i != WARMUP_ROUNDS; ++i) {
+				round(service, programs);
+			}
+			long best = Long.MAX_VALUE;
+			for (int i = 0; i != ROUNDS; ++i) {
+				long start = System.nanoTime();
+				round(service, programs);
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			return (programs.size() * COPIES) / (best / 1000000000.0);
+		} finally {
+			service.shutdown();
+		}
+	}
+
+	private static void round(InterpreterService service, List<WhileFile> programs) throws InterruptedException,
+			ExecutionException {
+		ArrayList<Future<InterpreterService.Result>> results = new ArrayList<Future<InterpreterService.Result>>();
+		for (int i = 0; i != COPIES; ++i) {
+			for (WhileFile wf : programs) {
+				results.add(service.submit(wf));
+			}
+		}
+		for (Future<InterpreterService.Result> result : results) {
+			InterpreterService.Result r = result.get();
+			if (r.failure != null) {
+				throw new RuntimeException("benchmark failed: " + r.file.filename, r.failure);
+			}
+		}
+	}
+}
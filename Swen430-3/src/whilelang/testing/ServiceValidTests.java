@@ -0,0 +1,103 @@
+package whilelang.testing;
+
+import static org.junit.Assert.*;
+import org.junit.*;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.Future;
+
+import whilelang.ast.WhileFile;
+import whilelang.compiler.*;
+import whilelang.util.Interpreter;
+import whilelang.util.InterpreterService;
+
+@RunWith(Parameterized.class)
+public class ServiceValidTests {
+	private static final String WHILE_SRC_DIR = "tests/valid/".replace('/', File.separatorChar);
+
+	/**
+	 * The number of times each program is executed concurrently.
+	 */
+	private static final int COPIES = 4;
+
+	private static InterpreterService service;
+
+	private final String testName;
+
+	public ServiceValidTests(String testName) {
+		this.testName = testName;
+	}
+
+	// Here we enumerate all available test cases.
+	@Parameters(name = "{0}")
+	public static Collection<Object[]> data() {
+		ArrayList<Object[]> testcases = new ArrayList<Object[]>();
+		for (File f : new File(WHILE_SRC_DIR).listFiles()) {
+			if (f.isFile()) {
+				String name = f.getName();
+				if (name.endsWith(".while")) {
+					// Get rid of ".while" extension
+					String testName = name.substring(0, name.length() - 6);
+					testcases.add(new Object[] { testName });
+				}
+			}
+		}
+		return testcases;
+	}
+
+	@BeforeClass
+	public static void startService() {
+		service = new InterpreterService(COPIES);
+	}
+
+	@AfterClass
+	public static void stopService() {
+		service.shutdown();
+	}
+
+	@Test
+	public void valid() throws Exception {
+		runTest(this.testName);
+	}
+
+	/**
+	 * Execute a given source file several times at once on the service. Every
+	 * execution should complete normally, and print exactly what a single
+	 * interpreter prints.
+	 *
+	 * @param testname
+	 * @throws Exception
+	 */
+	private void runTest(String testname) throws Exception {
+		WhileCompiler compiler = new WhileCompiler(WHILE_SRC_DIR + testname + ".while");
+		WhileFile ast = compiler.compile();
+		ArrayList<Future<InterpreterService.Result>> results = new ArrayList<Future<InterpreterService.Result>>();
+		for (int i = 0; i != COPIES; ++i) {
+			results.add(service.submit(ast));
+		}
+		String expected = expectedOutput(testname);
+		for (Future<InterpreterService.Result> result : results) {
+			InterpreterService.Result r = result.get();
+			if (r.failure != null) {
+				throw r.failure;
+			}
+			assertEquals(expected, r.output);
+		}
+	}
+
+	private String expectedOutput(String testname) throws IOException {
+		WhileCompiler compiler = new WhileCompiler(WHILE_SRC_DIR + testname + ".while");
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Interpreter interpreter = new Interpreter();
+		interpreter.setOutput(output);
+		interpreter.run(compiler.compile());
+		return output.toString("UTF-8");
+	}
+}
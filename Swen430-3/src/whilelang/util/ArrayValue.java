@@ -0,0 +1,253 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.util;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * <p>
+ * An array value used by the <code>Interpreter</code>. Array values are
+ * reference counted so that they can be shared, rather than copied, when
+ * assigned to a variable or passed as an argument. A shared array is only
+ * copied when it is about to be written (see <code>unshare()</code>), which
+ * preserves the value semantics of While.
+ * </p>
+ * <p>
+ * Arrays of <code>int</code>, <code>bool</code> and <code>char</code> are
+ * backed by the corresponding primitive array, whilst all others are backed by
+ * an array of objects. Elements are still read and written as objects, but
+ * only transiently boxed. Every representation is a <code>List</code>, and so
+ * arrays with the same elements are equal regardless of their representation.
+ * </p>
+ * 
+ */
+public abstract class ArrayValue extends AbstractList<Object> implements RandomAccess {
+
+	/**
+	 * The number of variables, arrays and records currently holding this
+	 * value. This may overestimate the true number, in which case an
+	 * unnecessary copy may be made, but must never underestimate it.
+	 */
+	private int references;
+
+	/**
+	 * Record that this value has acquired another holder.
+	 * 
+	 * @return
+	 */
+	public ArrayValue share() {
+		references++;
+		return this;
+	}
+
+	/**
+	 * Record that this value has lost one of its holders.
+	 */
+	public void release() {
+		references--;
+	}
+
+	/**
+	 * Determine whether this value has more than one holder, in which case
+	 * <code>unshare()</code> will make a copy.
+	 * 
+	 * @return
+	 */
+	public boolean isShared() {
+		return references > 1;
+	}
+
+	/**
+	 * Obtain a version of this value which can be written by one particular
+	 * holder without affecting any others. If that holder is the only one,
+	 * this value is returned as is. Otherwise, the holder is moved to a fresh
+	 * copy, which shares the elements of this value.
+	 * 
+	 * @return
+	 */
+	public ArrayValue unshare() {
+		if (references <= 1) {
+			return this;
+		}
+		ArrayValue copy = copy();
+		copy.references = 1;
+		references--;
+		return copy;
+	}
+
+	/**
+	 * Create an unshared copy of this value with the same representation.
+	 * 
+	 * @return
+	 */
+	protected abstract ArrayValue copy();
+
+	/**
+	 * An array of arbitrary values, such as strings, arrays or records.
+	 */
+	public static final class ObjectArray extends ArrayValue {
+		private final Object[] elements;
+
+		public ObjectArray(int size) {
+			this.elements = new Object[size];
+		}
+
+		public Object get(int index) {
+			return elements[index];
+		}
+
+		public Object set(int index, Object value) {
+			Object old = elements[index];
+			elements[index] = value;
+			return old;
+		}
+
+		public int size() {
+			return elements.length;
+		}
+
+		protected ArrayValue copy() {
+			ObjectArray copy = new ObjectArray(elements.length);
+			for (int i = 0; i != elements.length; ++i) {
+				copy.elements[i] = Interpreter.share(elements[i]);
+			}
+			return copy;
+		}
+	}
+
+	/**
+	 * An array of <code>int</code> values.
+	 */
+	public static final class IntArray extends ArrayValue {
+		private final int[] elements;
+
+		public IntArray(int size) {
+			this.elements = new int[size];
+		}
+
+		private IntArray(int[] elements) {
+			this.elements = elements;
+		}
+
+		public Object get(int index) {
+			return elements[index];
+		}
+
+		public Object set(int index, Object value) {
+			int old = elements[index];
+			elements[index] = (Integer) value;
+			return old;
+		}
+
+		public int size() {
+			return elements.length;
+		}
+
+		public boolean equals(Object o) {
+			if (o instanceof IntArray) {
+				return Arrays.equals(elements, ((IntArray) o).elements);
+			}
+			return super.equals(o);
+		}
+
+		protected ArrayValue copy() {
+			return new IntArray(elements.clone());
+		}
+	}
+
+	/**
+	 * An array of <code>bool</code> values.
+	 */
+	public static final class BoolArray extends ArrayValue {
+		private final boolean[] elements;
+
+		public BoolArray(int size) {
+			this.elements = new boolean[size];
+		}
+
+		private BoolArray(boolean[] elements) {
+			this.elements = elements;
+		}
+
+		public Object get(int index) {
+			return elements[index];
+		}
+
+		public Object set(int index, Object value) {
+			boolean old = elements[index];
+			elements[index] = (Boolean) value;
+			return old;
+		}
+
+		public int size() {
+			return elements.length;
+		}
+
+		public boolean equals(Object o) {
+			if (o instanceof BoolArray) {
+				return Arrays.equals(elements, ((BoolArray) o).elements);
+			}
+			return super.equals(o);
+		}
+
+		protected ArrayValue copy() {
+			return new BoolArray(elements.clone());
+		}
+	}
+
+	/**
+	 * An array of <code>char</code> values.
+	 */
+	public static final class CharArray extends ArrayValue {
+		private final char[] elements;
+
+		public CharArray(int size) {
+			this.elements = new char[size];
+		}
+
+		private CharArray(char[] elements) {
+			this.elements = elements;
+		}
+
+		public Object get(int index) {
+			return elements[index];
+		}
+
+		public Object set(int index, Object value) {
+			char old = elements[index];
+			elements[index] = (Character) value;
+			return old;
+		}
+
+		public int size() {
+			return elements.length;
+		}
+
+		public boolean equals(Object o) {
+			if (o instanceof CharArray) {
+				return Arrays.equals(elements, ((CharArray) o).elements);
+			}
+			return super.equals(o);
+		}
+
+		protected ArrayValue copy() {
+			return new CharArray(elements.clone());
+		}
+	}
+}
@@ -0,0 +1,63 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+
+package whilelang.util;
+
+import whilelang.ast.WhileFile;
+
+/**
+ * The binding of a function invocation to the function it calls. This is
+ * determined the first time the invocation is executed, and cached on the
+ * invocation itself, so that later executions neither look up the function by
+ * name nor re-check the number of arguments supplied.
+ * 
+ */
+public final class CallSite {
+	private final WhileFile.MethodDecl target;
+
+	/**
+	 * Indicates, for each argument, whether its value may be an array or
+	 * record, and so must be shared with the callee. Values of any other type
+	 * are immutable, and can be passed as is.
+	 */
+	private final boolean[] shared;
+
+	public CallSite(WhileFile.MethodDecl target, boolean[] shared) {
+		this.target = target;
+		this.shared = shared;
+	}
+
+	/**
+	 * Get the function called from this site.
+	 * 
+	 * @return
+	 */
+	public WhileFile.MethodDecl getTarget() {
+		return target;
+	}
+
+	/**
+	 * Determine whether the value of a given argument must be shared with the
+	 * callee.
+	 * 
+	 * @param argument
+	 * @return
+	 */
+	public boolean isShared(int argument) {
+		return shared[argument];
+	}
+}
@@ -0,0 +1,966 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.util;
+
+import static whilelang.util.SyntaxError.internalFailure;
+
+import java.io.OutputStream;
+import java.util.*;
+
+import whilelang.ast.*;
+import whilelang.compiler.SlotResolver;
+
+/**
+ * <p>
+ * An alternative to the <code>Interpreter</code> which first converts each
+ * method body into a tree of pre-built executable nodes, and then executes
+ * those. Each node corresponds to exactly one node in the Abstract Syntax Tree,
+ * and calls its children directly. Therefore, the cost of determining what kind
+ * of statement or expression is being executed is paid once when the method
+ * is compiled, rather than every time it is executed.
+ * </p>
+ * <p>
+ * Stack frames are flat arrays indexed by the slots computed by
+ * <code>SlotResolver</code>. The semantics is that of the
+ * <code>Interpreter</code>, although values are represented as they were
+ * before it adopted copy-on-write values: arrays are <code>ArrayList</code>s
+ * and records are <code>HashMap</code>s, and both are copied eagerly (see
+ * <code>Interpreter.deepClone()</code>) whenever they are assigned or passed.
+ * Likewise, <code>break</code> and <code>continue</code> are signalled by
+ * returning a sentinel object from a statement node, rather than a completion
+ * code, and returning from a function without a value is signalled by
+ * <code>Collections.EMPTY_SET</code>.
+ * </p>
+ *
+ */
+public class ClosureInterpreter {
+	private HashMap<String, Function> functions;
+	private WhileFile file;
+
+	/**
+	 * The sink for the output of print statements.
+	 */
+	private PrintBuffer output;
+
+	/**
+	 * Direct the output of print statements to a given stream, rather than to
+	 * <code>System.out</code> (the default).
+	 *
+	 * @param out
+	 */
+	public void setOutput(OutputStream out) {
+		this.output = new PrintBuffer(out);
+	}
+
+	public void run(WhileFile wf) {
+		if (output == null) {
+			output = new PrintBuffer(System.out);
+		}
+		this.file = wf;
+		this.functions = new HashMap<String, Function>();
+
+		// First, make sure every variable has been resolved to a frame slot
+		for (WhileFile.Decl decl : wf.declarations) {
+			if (decl instanceof WhileFile.MethodDecl && ((WhileFile.MethodDecl) decl).getFrameSize() < 0) {
+				new SlotResolver().resolve(wf);
+				break;
+			}
+		}
+
+		// Second, create a function for each method. These are created before
+		// any body is compiled so that invocations can bind directly to them.
+		for (WhileFile.Decl decl : wf.declarations) {
+			if (decl instanceof WhileFile.MethodDecl) {
+				WhileFile.MethodDecl md = (WhileFile.MethodDecl) decl;
+				functions.put(md.getName(), new Function(md));
+			}
+		}
+
+		// Third, compile the body of each function
+		for (Function f : functions.values()) {
+			f.body = compile(f.method.getBody());
+		}
+
+		// Finally, pick the main method (if one exits) and execute it
+		Function main = functions.get("main");
+		try {
+			if (main != null) {
+				main.invoke(new Object[main.frameSize]);
+			} else {
+				output.println("Cannot find a main() function");
+			}
+		} finally {
+			output.flush();
+		}
+	}
+
+	// =========================================================================
+	// Compilation
+	// =========================================================================
+
+	private Block compile(List<Stmt> stmts) {
+		StmtNode[] nodes = new StmtNode[stmts.size()];
+		for (int i = 0; i != nodes.length; ++i) {
+			nodes[i] = compile(stmts.get(i));
+		}
+		return new Block(nodes);
+	}
+
+	private StmtNode compile(Stmt stmt) {
+		if (stmt instanceof Stmt.Assert) {
+			return compile((Stmt.Assert) stmt);
+		} else if (stmt instanceof Stmt.Assign) {
+			return compile((Stmt.Assign) stmt);
+		} else if (stmt instanceof Stmt.For) {
+			return compile((Stmt.For) stmt);
+		} else if (stmt instanceof Stmt.While) {
+			return compile((Stmt.While) stmt);
+		} else if (stmt instanceof Stmt.Switch) {
+			return compile((Stmt.Switch) stmt);
+		} else if (stmt instanceof Stmt.Break) {
+			return new Break();
+		} else if (stmt instanceof Stmt.Continue) {
+			return new Continue();
+		} else if (stmt instanceof Stmt.IfElse) {
+			return compile((Stmt.IfElse) stmt);
+		} else if (stmt instanceof Stmt.Return) {
+			return compile((Stmt.Return) stmt);
+		} else if (stmt instanceof Stmt.VariableDeclaration) {
+			return compile((Stmt.VariableDeclaration) stmt);
+		} else if (stmt instanceof Stmt.Print) {
+			return new Print(compile(((Stmt.Print) stmt).getExpr()), output);
+		} else if (stmt instanceof Expr.Invoke) {
+			return new InvokeStmt(compile((Expr.Invoke) stmt));
+		} else {
+			internalFailure("unknown statement encountered (" + stmt + ")", file.filename, stmt);
+			return null;
+		}
+	}
+
+	private StmtNode compile(Stmt.Assert stmt) {
+		return new Assert(compile(stmt.getExpr()));
+	}
+
+	private StmtNode compile(Stmt.Assign stmt) {
+		Expr lhs = stmt.getLhs();
+		ExprNode rhs = compile(stmt.getRhs());
+		if (lhs instanceof Expr.Variable) {
+			return new AssignVariable(((Expr.Variable) lhs).getSlot(), rhs);
+		} else if (lhs instanceof Expr.RecordAccess) {
+			Expr.RecordAccess ra = (Expr.RecordAccess) lhs;
+			return new AssignField(compile(ra.getSource()), ra.getName(), rhs);
+		} else if (lhs instanceof Expr.IndexOf) {
+			Expr.IndexOf io = (Expr.IndexOf) lhs;
+			return new AssignElement(compile(io.getSource()), compile(io.getIndex()), rhs);
+		} else {
+			internalFailure("unknown lval encountered (" + lhs + ")", file.filename, stmt);
+			return null;
+		}
+	}
+
+	private StmtNode compile(Stmt.For stmt) {
+		return new For(compile(stmt.getDeclaration()), compile(stmt.getCondition()), compile(stmt.getIncrement()),
+				compile(stmt.getBody()));
+	}
+
+	private StmtNode compile(Stmt.While stmt) {
+		return new While(compile(stmt.getCondition()), compile(stmt.getBody()));
+	}
+
+	private StmtNode compile(Stmt.Switch stmt) {
+		List<Stmt.Case> cases = stmt.getCases();
+		ExprNode[] values = new ExprNode[cases.size()];
+		Block[] bodies = new Block[cases.size()];
+		for (int i = 0; i != values.length; ++i) {
+			Stmt.Case c = cases.get(i);
+			values[i] = c.isDefault() ? null : compile(c.getValue());
+			bodies[i] = compile(c.getBody());
+		}
+		return new Switch(compile(stmt.getExpr()), values, bodies);
+	}
+
+	private StmtNode compile(Stmt.IfElse stmt) {
+		return new IfElse(compile(stmt.getCondition()), compile(stmt.getTrueBranch()),
+				compile(stmt.getFalseBranch()));
+	}
+
+	private StmtNode compile(Stmt.Return stmt) {
+		Expr re = stmt.getExpr();
+		return new Return(re == null ? null : compile(re));
+	}
+
+	private StmtNode compile(Stmt.VariableDeclaration stmt) {
+		Expr re = stmt.getExpr();
+		return new Declare(stmt.getSlot(), re == null ? null : compile(re));
+	}
+
+	private ExprNode compile(Expr expr) {
+		if (expr instanceof Expr.Binary) {
+			return compile((Expr.Binary) expr);
+		} else if (expr instanceof Expr.Constant) {
+			return new Constant(((Expr.Constant) expr).getValue());
+		} else if (expr instanceof Expr.Invoke) {
+			return compile((Expr.Invoke) expr);
+		} else if (expr instanceof Expr.IndexOf) {
+			Expr.IndexOf e = (Expr.IndexOf) expr;
+			return new IndexOf(compile(e.getSource()), compile(e.getIndex()));
+		} else if (expr instanceof Expr.ArrayGenerator) {
+			Expr.ArrayGenerator e = (Expr.ArrayGenerator) expr;
+			return new ArrayGenerator(compile(e.getValue()), compile(e.getSize()));
+		} else if (expr instanceof Expr.ArrayInitialiser) {
+			return new ArrayInitialiser(compile(((Expr.ArrayInitialiser) expr).getArguments()));
+		} else if (expr instanceof Expr.RecordAccess) {
+			Expr.RecordAccess e = (Expr.RecordAccess) expr;
+			return new RecordAccess(compile(e.getSource()), e.getName());
+		} else if (expr instanceof Expr.RecordConstructor) {
+			return compile((Expr.RecordConstructor) expr);
+		} else if (expr instanceof Expr.Unary) {
+			return compile((Expr.Unary) expr);
+		} else if (expr instanceof Expr.Variable) {
+			return new Variable(((Expr.Variable) expr).getSlot());
+		} else {
+			internalFailure("unknown expression encountered (" + expr + ")", file.filename, expr);
+			return null;
+		}
+	}
+
+	private ExprNode[] compile(Collection<Expr> exprs) {
+		ExprNode[] nodes = new ExprNode[exprs.size()];
+		int i = 0;
+		for (Expr e : exprs) {
+			nodes[i++] = compile(e);
+		}
+		return nodes;
+	}
+
+	private ExprNode compile(Expr.Binary expr) {
+		ExprNode lhs = compile(expr.getLhs());
+		ExprNode rhs = compile(expr.getRhs());
+		switch (expr.getOp()) {
+		case AND:
+			return new And(lhs, rhs);
+		case OR:
+			return new Or(lhs, rhs);
+		case ADD:
+			return new Add(lhs, rhs);
+		case SUB:
+			return new Sub(lhs, rhs);
+		case MUL:
+			return new Mul(lhs, rhs);
+		case DIV:
+			return new Div(lhs, rhs);
+		case REM:
+			return new Rem(lhs, rhs);
+		case EQ:
+			return new Equals(lhs, rhs);
+		case NEQ:
+			return new NotEquals(lhs, rhs);
+		case LT:
+			return new LessThan(lhs, rhs);
+		case LTEQ:
+			return new LessThanEquals(lhs, rhs);
+		case GT:
+			return new GreaterThan(lhs, rhs);
+		case GTEQ:
+			return new GreaterThanEquals(lhs, rhs);
+		}
+		internalFailure("unknown binary expression encountered (" + expr + ")", file.filename, expr);
+		return null;
+	}
+
+	private Invoke compile(Expr.Invoke expr) {
+		Function fn = functions.get(expr.getName());
+		ExprNode[] arguments = compile(expr.getArguments());
+		// The number of arguments can be checked once here, rather than every
+		// time the function is called.
+		if (fn.method.getParameters().size() != arguments.length) {
+			throw new RuntimeException("invalid number of arguments supplied to execution of function \""
+					+ fn.method.getName() + "\"");
+		}
+		return new Invoke(fn, arguments);
+	}
+
+	private ExprNode compile(Expr.RecordConstructor expr) {
+		List<Pair<String, Expr>> fields = expr.getFields();
+		String[] names = new String[fields.size()];
+		ExprNode[] values = new ExprNode[fields.size()];
+		for (int i = 0; i != names.length; ++i) {
+			names[i] = fields.get(i).first();
+			values[i] = compile(fields.get(i).second());
+		}
+		return new RecordConstructor(names, values);
+	}
+
+	private ExprNode compile(Expr.Unary expr) {
+		ExprNode operand = compile(expr.getExpr());
+		switch (expr.getOp()) {
+		case NOT:
+			return new Not(operand);
+		case NEG:
+			return new Neg(operand);
+		case LENGTHOF:
+			return new LengthOf(operand);
+		}
+		internalFailure("unknown unary expression encountered (" + expr + ")", file.filename, expr);
+		return null;
+	}
+
+	// =========================================================================
+	// Functions
+	// =========================================================================
+
+	/**
+	 * A compiled method, which is bound directly into every invocation of it.
+	 */
+	private static final class Function {
+		final WhileFile.MethodDecl method;
+		final int frameSize;
+		Block body;
+
+		Function(WhileFile.MethodDecl method) {
+			this.method = method;
+			this.frameSize = method.getFrameSize();
+		}
+
+		/**
+		 * Execute this function in a given frame, whose first slots already
+		 * hold the argument values.
+		 *
+		 * @param frame
+		 * @return
+		 */
+		Object invoke(Object[] frame) {
+			return body.execute(frame);
+		}
+	}
+
+	// =========================================================================
+	// Statement Nodes
+	// =========================================================================
+
+	/**
+	 * An executable statement. The result indicates how control leaves the
+	 * statement: <code>null</code> for normal completion,
+	 * <code>BREAK_CONSTANT</code> or <code>CONTINUE_CONSTANT</code> for a
+	 * <code>break</code> or <code>continue</code>, and otherwise the value
+	 * being returned from the enclosing function.
+	 */
+	private static abstract class StmtNode {
+		public abstract Object execute(Object[] frame);
+	}
+
+	private static final class Block extends StmtNode {
+		private final StmtNode[] stmts;
+
+		Block(StmtNode[] stmts) {
+			this.stmts = stmts;
+		}
+
+		public Object execute(Object[] frame) {
+			for (int i = 0; i != stmts.length; ++i) {
+				Object r = stmts[i].execute(frame);
+				if (r != null) {
+					return r;
+				}
+			}
+			return null;
+		}
+	}
+
+	private static final class Assert extends StmtNode {
+		private final ExprNode condition;
+
+		Assert(ExprNode condition) {
+			this.condition = condition;
+		}
+
+		public Object execute(Object[] frame) {
+			if (!(Boolean) condition.evaluate(frame)) {
+				throw new RuntimeException("assertion failure");
+			}
+			return null;
+		}
+	}
+
+	private static final class AssignVariable extends StmtNode {
+		private final int slot;
+		private final ExprNode rhs;
+
+		AssignVariable(int slot, ExprNode rhs) {
+			this.slot = slot;
+			this.rhs = rhs;
+		}
+
+		public Object execute(Object[] frame) {
+			// We need to perform a deep clone here to ensure the value
+			// semantics used in While are preserved.
+			frame[slot] = Interpreter.deepClone(rhs.evaluate(frame));
+			return null;
+		}
+	}
+
+	private static final class AssignField extends StmtNode {
+		private final ExprNode source;
+		private final String field;
+		private final ExprNode rhs;
+
+		AssignField(ExprNode source, String field, ExprNode rhs) {
+			this.source = source;
+			this.field = field;
+			this.rhs = rhs;
+		}
+
+		public Object execute(Object[] frame) {
+			// Record values are only ever constructed as Map<String, Object>
+			@SuppressWarnings("unchecked")
+			Map<String, Object> src = (Map<String, Object>) source.evaluate(frame);
+			src.put(field, Interpreter.deepClone(rhs.evaluate(frame)));
+			return null;
+		}
+	}
+
+	private static final class AssignElement extends StmtNode {
+		private final ExprNode source;
+		private final ExprNode index;
+		private final ExprNode rhs;
+
+		AssignElement(ExprNode source, ExprNode index, ExprNode rhs) {
+			this.source = source;
+			this.index = index;
+			this.rhs = rhs;
+		}
+
+		public Object execute(Object[] frame) {
+			// Array values are only ever constructed as ArrayList<Object>
+			@SuppressWarnings("unchecked")
+			ArrayList<Object> src = (ArrayList<Object>) source.evaluate(frame);
+			int idx = (Integer) index.evaluate(frame);
+			src.set(idx, Interpreter.deepClone(rhs.evaluate(frame)));
+			return null;
+		}
+	}
+
+	private static final class For extends StmtNode {
+		private final StmtNode declaration;
+		private final ExprNode condition;
+		private final StmtNode increment;
+		private final Block body;
+
+		For(StmtNode declaration, ExprNode condition, StmtNode increment, Block body) {
+			this.declaration = declaration;
+			this.condition = condition;
+			this.increment = increment;
+			this.body = body;
+		}
+
+		public Object execute(Object[] frame) {
+			declaration.execute(frame);
+			while ((Boolean) condition.evaluate(frame)) {
+				Object ret = body.execute(frame);
+				if (ret == BREAK_CONSTANT) {
+					break;
+				} else if (ret == CONTINUE_CONSTANT) {
+					// continue :)
+				} else if (ret != null) {
+					return ret;
+				}
+				increment.execute(frame);
+			}
+			return null;
+		}
+	}
+
+	private static final class While extends StmtNode {
+		private final ExprNode condition;
+		private final Block body;
+
+		While(ExprNode condition, Block body) {
+			this.condition = condition;
+			this.body = body;
+		}
+
+		public Object execute(Object[] frame) {
+			while ((Boolean) condition.evaluate(frame)) {
+				Object ret = body.execute(frame);
+				if (ret == BREAK_CONSTANT) {
+					break;
+				} else if (ret == CONTINUE_CONSTANT) {
+					// continue :)
+				} else if (ret != null) {
+					return ret;
+				}
+			}
+			return null;
+		}
+	}
+
+	private static final class IfElse extends StmtNode {
+		private final ExprNode condition;
+		private final Block trueBranch;
+		private final Block falseBranch;
+
+		IfElse(ExprNode condition, Block trueBranch, Block falseBranch) {
+			this.condition = condition;
+			this.trueBranch = trueBranch;
+			this.falseBranch = falseBranch;
+		}
+
+		public Object execute(Object[] frame) {
+			if ((Boolean) condition.evaluate(frame)) {
+				return trueBranch.execute(frame);
+			} else {
+				return falseBranch.execute(frame);
+			}
+		}
+	}
+
+	private static final class Break extends StmtNode {
+		public Object execute(Object[] frame) {
+			return BREAK_CONSTANT;
+		}
+	}
+
+	private static final class Continue extends StmtNode {
+		public Object execute(Object[] frame) {
+			return CONTINUE_CONSTANT;
+		}
+	}
+
+	private static final class Switch extends StmtNode {
+		private final ExprNode expr;
+		private final ExprNode[] values;
+		private final Block[] bodies;
+
+		/**
+		 * Construct a switch node. A <code>null</code> entry in values
+		 * identifies the default case.
+		 */
+		Switch(ExprNode expr, ExprNode[] values, Block[] bodies) {
+			this.expr = expr;
+			this.values = values;
+			this.bodies = bodies;
+		}
+
+		public Object execute(Object[] frame) {
+			boolean fallThru = false;
+			Object value = expr.evaluate(frame);
+			for (int i = 0; i != values.length; ++i) {
+				ExprNode e = values[i];
+				if (fallThru || e == null || value.equals(e.evaluate(frame))) {
+					Object ret = bodies[i].execute(frame);
+					if (ret == BREAK_CONSTANT) {
+						break;
+					} else if (ret != null) {
+						return ret;
+					}
+					fallThru = true;
+				}
+			}
+			return null;
+		}
+	}
+
+	private static final class Return extends StmtNode {
+		private final ExprNode expr;
+
+		Return(ExprNode expr) {
+			this.expr = expr;
+		}
+
+		public Object execute(Object[] frame) {
+			if (expr != null) {
+				return expr.evaluate(frame);
+			} else {
+				return Collections.EMPTY_SET; // used to indicate a function has returned
+			}
+		}
+	}
+
+	private static final class Declare extends StmtNode {
+		private final int slot;
+		private final ExprNode expr;
+
+		Declare(int slot, ExprNode expr) {
+			this.slot = slot;
+			this.expr = expr;
+		}
+
+		public Object execute(Object[] frame) {
+			if (expr != null) {
+				// We need to perform a deep clone here to ensure the value
+				// semantics used in While are preserved.
+				frame[slot] = Interpreter.deepClone(expr.evaluate(frame));
+			} else {
+				frame[slot] = Collections.EMPTY_SET; // used to indicate a variable has been declared
+			}
+			return null;
+		}
+	}
+
+	private static final class Print extends StmtNode {
+		private final ExprNode expr;
+		private final PrintBuffer output;
+
+		Print(ExprNode expr, PrintBuffer output) {
+			this.expr = expr;
+			this.output = output;
+		}
+
+		public Object execute(Object[] frame) {
+			output.println(expr.evaluate(frame));
+			return null;
+		}
+	}
+
+	private static final class InvokeStmt extends StmtNode {
+		private final Invoke invoke;
+
+		InvokeStmt(Invoke invoke) {
+			this.invoke = invoke;
+		}
+
+		public Object execute(Object[] frame) {
+			// The returned value is discarded
+			invoke.evaluate(frame);
+			return null;
+		}
+	}
+
+	// =========================================================================
+	// Expression Nodes
+	// =========================================================================
+
+	/**
+	 * An executable expression, which produces a value.
+	 */
+	private static abstract class ExprNode {
+		public abstract Object evaluate(Object[] frame);
+	}
+
+	private static final class Constant extends ExprNode {
+		private final Object value;
+
+		Constant(Object value) {
+			this.value = value;
+		}
+
+		public Object evaluate(Object[] frame) {
+			return value;
+		}
+	}
+
+	private static final class Variable extends ExprNode {
+		private final int slot;
+
+		Variable(int slot) {
+			this.slot = slot;
+		}
+
+		public Object evaluate(Object[] frame) {
+			return frame[slot];
+		}
+	}
+
+	private static abstract class BinaryNode extends ExprNode {
+		protected final ExprNode lhs;
+		protected final ExprNode rhs;
+
+		BinaryNode(ExprNode lhs, ExprNode rhs) {
+			this.lhs = lhs;
+			this.rhs = rhs;
+		}
+	}
+
+	private static final class And extends BinaryNode {
+		And(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object evaluate(Object[] frame) {
+			return ((Boolean) lhs.evaluate(frame)) && ((Boolean) rhs.evaluate(frame));
+		}
+	}
+
+	private static final class Or extends BinaryNode {
+		Or(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object evaluate(Object[] frame) {
+			return ((Boolean) lhs.evaluate(frame)) || ((Boolean) rhs.evaluate(frame));
+		}
+	}
+
+	private static final class Add extends BinaryNode {
+		Add(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object evaluate(Object[] frame) {
+			return ((Integer) lhs.evaluate(frame)) + ((Integer) rhs.evaluate(frame));
+		}
+	}
+
+	private static final class Sub extends BinaryNode {
+		Sub(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object evaluate(Object[] frame) {
+			return ((Integer) lhs.evaluate(frame)) - ((Integer) rhs.evaluate(frame));
+		}
+	}
+
+	private static final class Mul extends BinaryNode {
+		Mul(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object evaluate(Object[] frame) {
+			return ((Integer) lhs.evaluate(frame)) * ((Integer) rhs.evaluate(frame));
+		}
+	}
+
+	private static final class Div extends BinaryNode {
+		Div(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object evaluate(Object[] frame) {
+			return ((Integer) lhs.evaluate(frame)) / ((Integer) rhs.evaluate(frame));
+		}
+	}
+
+	private static final class Rem extends BinaryNode {
+		Rem(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object evaluate(Object[] frame) {
+			return ((Integer) lhs.evaluate(frame)) % ((Integer) rhs.evaluate(frame));
+		}
+	}
+
+	private static final class Equals extends BinaryNode {
+		Equals(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object evaluate(Object[] frame) {
+			return lhs.evaluate(frame).equals(rhs.evaluate(frame));
+		}
+	}
+
+	private static final class NotEquals extends BinaryNode {
+		NotEquals(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object evaluate(Object[] frame) {
+			return !lhs.evaluate(frame).equals(rhs.evaluate(frame));
+		}
+	}
+
+	private static final class LessThan extends BinaryNode {
+		LessThan(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object evaluate(Object[] frame) {
+			return ((Integer) lhs.evaluate(frame)) < ((Integer) rhs.evaluate(frame));
+		}
+	}
+
+	private static final class LessThanEquals extends BinaryNode {
+		LessThanEquals(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object evaluate(Object[] frame) {
+			return ((Integer) lhs.evaluate(frame)) <= ((Integer) rhs.evaluate(frame));
+		}
+	}
+
+	private static final class GreaterThan extends BinaryNode {
+		GreaterThan(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object evaluate(Object[] frame) {
+			return ((Integer) lhs.evaluate(frame)) > ((Integer) rhs.evaluate(frame));
+		}
+	}
+
+	private static final class GreaterThanEquals extends BinaryNode {
+		GreaterThanEquals(ExprNode lhs, ExprNode rhs) {
+			super(lhs, rhs);
+		}
+
+		public Object evaluate(Object[] frame) {
+			return ((Integer) lhs.evaluate(frame)) >= ((Integer) rhs.evaluate(frame));
+		}
+	}
+
+	private static final class Not extends ExprNode {
+		private final ExprNode operand;
+
+		Not(ExprNode operand) {
+			this.operand = operand;
+		}
+
+		public Object evaluate(Object[] frame) {
+			return !((Boolean) operand.evaluate(frame));
+		}
+	}
+
+	private static final class Neg extends ExprNode {
+		private final ExprNode operand;
+
+		Neg(ExprNode operand) {
+			this.operand = operand;
+		}
+
+		public Object evaluate(Object[] frame) {
+			return -((Integer) operand.evaluate(frame));
+		}
+	}
+
+	private static final class LengthOf extends ExprNode {
+		private final ExprNode operand;
+
+		LengthOf(ExprNode operand) {
+			this.operand = operand;
+		}
+
+		public Object evaluate(Object[] frame) {
+			return ((ArrayList) operand.evaluate(frame)).size();
+		}
+	}
+
+	private static final class IndexOf extends ExprNode {
+		private final ExprNode source;
+		private final ExprNode index;
+
+		IndexOf(ExprNode source, ExprNode index) {
+			this.source = source;
+			this.index = index;
+		}
+
+		public Object evaluate(Object[] frame) {
+			Object src = source.evaluate(frame);
+			int idx = (Integer) index.evaluate(frame);
+			if (src instanceof String) {
+				return ((String) src).charAt(idx);
+			} else {
+				return ((ArrayList<?>) src).get(idx);
+			}
+		}
+	}
+
+	private static final class ArrayGenerator extends ExprNode {
+		private final ExprNode value;
+		private final ExprNode size;
+
+		ArrayGenerator(ExprNode value, ExprNode size) {
+			this.value = value;
+			this.size = size;
+		}
+
+		public Object evaluate(Object[] frame) {
+			Object v = value.evaluate(frame);
+			int n = (Integer) size.evaluate(frame);
+			ArrayList<Object> ls = new ArrayList<Object>(Math.max(n, 0));
+			for (int i = 0; i < n; ++i) {
+				ls.add(v);
+			}
+			return ls;
+		}
+	}
+
+	private static final class ArrayInitialiser extends ExprNode {
+		private final ExprNode[] elements;
+
+		ArrayInitialiser(ExprNode[] elements) {
+			this.elements = elements;
+		}
+
+		public Object evaluate(Object[] frame) {
+			ArrayList<Object> ls = new ArrayList<Object>(elements.length);
+			for (int i = 0; i != elements.length; ++i) {
+				ls.add(elements[i].evaluate(frame));
+			}
+			return ls;
+		}
+	}
+
+	private static final class RecordAccess extends ExprNode {
+		private final ExprNode source;
+		private final String field;
+
+		RecordAccess(ExprNode source, String field) {
+			this.source = source;
+			this.field = field;
+		}
+
+		public Object evaluate(Object[] frame) {
+			return ((HashMap) source.evaluate(frame)).get(field);
+		}
+	}
+
+	private static final class RecordConstructor extends ExprNode {
+		private final String[] fields;
+		private final ExprNode[] values;
+
+		RecordConstructor(String[] fields, ExprNode[] values) {
+			this.fields = fields;
+			this.values = values;
+		}
+
+		public Object evaluate(Object[] frame) {
+			HashMap<String, Object> rs = new HashMap<String, Object>();
+			for (int i = 0; i != fields.length; ++i) {
+				rs.put(fields[i], values[i].evaluate(frame));
+			}
+			return rs;
+		}
+	}
+
+	private static final class Invoke extends ExprNode {
+		private final Function function;
+		private final ExprNode[] arguments;
+
+		Invoke(Function function, ExprNode[] arguments) {
+			this.function = function;
+			this.arguments = arguments;
+		}
+
+		public Object evaluate(Object[] frame) {
+			// Arguments are written directly into the slots of the callee's
+			// frame, which parameters always occupy first.
+			Object[] callee = new Object[function.frameSize];
+			for (int i = 0; i != arguments.length; ++i) {
+				// We need to perform a deep clone here to ensure the value
+				// semantics used in While are preserved.
+				callee[i] = Interpreter.deepClone(arguments[i].evaluate(frame));
+			}
+			return function.invoke(callee);
+		}
+	}
+
+	private static final Object BREAK_CONSTANT = new Object() {};
+	private static final Object CONTINUE_CONSTANT = new Object() {};
+}
@@ -18,11 +18,17 @@
 
 package whilelang.util;
 
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.util.*;
 
 import whilelang.ast.*;
+import whilelang.compiler.PurityAnalysis;
+import whilelang.compiler.SlotResolver;
 
 import static whilelang.util.SyntaxError.*;
+import static whilelang.util.LimitExceeded.limitExceeded;
 
 /**
  * A simple interpreter for WhileLang programs, which executes them in their
@@ -37,7 +43,192 @@ public class Interpreter {
 	private HashMap<String, WhileFile.Decl> declarations;
 	private WhileFile file;
 	
+	/**
+	 * Indicates whether stack frames are flat arrays indexed by the slots
+	 * computed by <code>SlotResolver</code>, or maps keyed on variable names.
+	 */
+	private boolean slotFrames;
+	
+	/**
+	 * The slot frames allocated so far, indexed by call depth. Each call
+	 * reuses the frame left by the last call at the same depth, rather than
+	 * allocating a new one. Since an interpreter executes a program on a
+	 * single thread, this is the call stack of that thread.
+	 */
+	private SlotFrame[] frameStack = new SlotFrame[16];
+	private int depth;
+	
+	/**
+	 * Select whether stack frames are flat arrays indexed by variable slots,
+	 * or maps from variable names to their values (the default). Slot-based
+	 * frames avoid hashing a variable's name on every read and write.
+	 * 
+	 * @param enabled
+	 */
+	public void setSlotFrames(boolean enabled) {
+		this.slotFrames = enabled;
+	}
+	
+	/**
+	 * Indicates whether arrays of <code>int</code>, <code>bool</code> and
+	 * <code>char</code> are backed by primitive arrays, as determined by the
+	 * types computed by <code>TypeChecker</code>.
+	 */
+	private boolean primitiveArrays = true;
+	
+	/**
+	 * Select whether arrays of <code>int</code>, <code>bool</code> and
+	 * <code>char</code> are backed by primitive arrays (the default), or by
+	 * arrays of boxed values.
+	 * 
+	 * @param enabled
+	 */
+	public void setPrimitiveArrays(boolean enabled) {
+		this.primitiveArrays = enabled;
+	}
+	
+	/**
+	 * The sink for the output of print statements.
+	 */
+	private PrintBuffer output;
+	
+	/**
+	 * Direct the output of print statements to a given stream, rather than
+	 * to <code>System.out</code> (the default). Output is buffered, and only
+	 * written to the stream once the program has finished.
+	 * 
+	 * @param out
+	 */
+	public void setOutput(OutputStream out) {
+		this.output = new PrintBuffer(out);
+	}
+	
+	/**
+	 * The limits placed on execution. By default, there are none. Steps are
+	 * counted at loop back-edges and calls, so that every non-terminating
+	 * program is eventually stopped, whilst straight-line code pays nothing.
+	 * Limits other than the number of steps are only checked every
+	 * <code>CHECK_INTERVAL</code> steps.
+	 */
+	private long stepLimit = Long.MAX_VALUE;
+	private long memoryLimit = Long.MAX_VALUE;
+	private long timeLimit;
+	private volatile boolean cancelled;
+	
+	private static final int CHECK_INTERVAL = 1024;
+	
+	/**
+	 * The approximate number of bytes used by an array or record, excluding
+	 * its elements or fields (which are counted as four bytes per reference).
+	 */
+	private static final int ARRAY_HEADER = 32;
+	private static final int RECORD_HEADER = 32;
+	
+	/**
+	 * The steps taken and bytes allocated by the current execution, the step
+	 * at which limits are next checked, and the time (as given by
+	 * <code>System.nanoTime()</code>) by which it must finish.
+	 */
+	private long steps;
+	private long allocated;
+	private long checkpoint;
+	private long deadline;
+	
+	/**
+	 * Limit the number of steps taken by a program, where a step is an
+	 * iteration of a loop or a call.
+	 * 
+	 * @param steps
+	 */
+	public void setStepLimit(long steps) {
+		this.stepLimit = steps;
+	}
+	
+	/**
+	 * Limit the (approximate) number of bytes allocated for arrays and
+	 * records by a program. This counts every array and record created, not
+	 * only those still live.
+	 * 
+	 * @param bytes
+	 */
+	public void setMemoryLimit(long bytes) {
+		this.memoryLimit = bytes;
+	}
+	
+	/**
+	 * Limit the time for which a program can execute, in milliseconds. Zero
+	 * indicates there is no limit.
+	 * 
+	 * @param millis
+	 */
+	public void setTimeLimit(long millis) {
+		this.timeLimit = millis;
+	}
+	
+	/**
+	 * Cancel the execution of this interpreter's program. This may be called
+	 * from any thread, and execution stops at its next check of the limits.
+	 * Once cancelled, an interpreter cannot run any further programs.
+	 * Interrupting the thread executing a program also cancels it.
+	 */
+	public void cancel() {
+		this.cancelled = true;
+	}
+	
+	/**
+	 * The profiler to which calls and statements are reported, if any.
+	 */
+	private Profiler profiler;
+	
+	/**
+	 * Profile the execution of programs with a given profiler, or stop
+	 * profiling if null.
+	 * 
+	 * @param profiler
+	 */
+	public void setProfiler(Profiler profiler) {
+		this.profiler = profiler;
+	}
+	
+	/**
+	 * The cache of results from calls to pure methods, if any.
+	 */
+	private MemoCache memoCache;
+	
+	/**
+	 * Reuse the results of earlier calls to pure methods (as determined by
+	 * <code>PurityAnalysis</code>) from a given cache, or stop doing so if
+	 * null. Since a call which hits the cache is not executed, it takes no
+	 * steps and allocates nothing.
+	 * 
+	 * @param cache
+	 */
+	public void setMemoCache(MemoCache cache) {
+		this.memoCache = cache;
+	}
+	
 	public void run(WhileFile wf) {
+		if(output == null) {
+			output = new PrintBuffer(System.out);
+		}
+		if(profiler != null) {
+			profiler.start(wf.filename);
+		}
+		steps = 0;
+		allocated = 0;
+		checkpoint = 0;
+		deadline = timeLimit > 0 ? System.nanoTime() + timeLimit * 1000000 : Long.MAX_VALUE;
+		try {
+			execute(wf);
+		} finally {
+			output.flush();
+			if(profiler != null) {
+				profiler.stop();
+			}
+		}
+	}
+	
+	private void execute(WhileFile wf) {
 		// First, initialise the map of declaration names to their bodies.
 		declarations = new HashMap<String,WhileFile.Decl>();
 		for(WhileFile.Decl decl : wf.declarations) {
@@ -45,13 +236,30 @@ public class Interpreter {
 		}
 		this.file = wf;
 		
+		// Slot-based frames require every variable to have been resolved to a
+		// slot beforehand.
+		if(slotFrames) {
+			for(WhileFile.Decl decl : wf.declarations) {
+				if(decl instanceof WhileFile.MethodDecl
+						&& ((WhileFile.MethodDecl) decl).getFrameSize() < 0) {
+					new SlotResolver().resolve(wf);
+					break;
+				}
+			}
+		}
+		
+		// Memoisation requires every method to have been checked for purity.
+		if(memoCache != null) {
+			new PurityAnalysis().apply(wf);
+		}
+		
 		// Second, pick the main method (if one exits) and execute it
 		WhileFile.Decl main = declarations.get("main");
 		if(main instanceof WhileFile.MethodDecl) {
 			WhileFile.MethodDecl fd = (WhileFile.MethodDecl) main;
 			execute(fd);
 		} else {
-			System.out.println("Cannot find a main() function");
+			output.println("Cannot find a main() function");
 		}
 	}
 	
@@ -67,32 +275,198 @@ public class Interpreter {
 	private Object execute(WhileFile.MethodDecl function, Object... arguments) {
 		
 		// First, sanity check the number of arguments
-		if(function.getParameters().size() != arguments.length){
-			throw new RuntimeException(
-					"invalid number of arguments supplied to execution of function \""
-							+ function.getName() + "\"");
-		}
+		checkArity(function, arguments.length);
 		
 		// Second, construct the stack frame in which this function will
 		// execute.
-		HashMap<String,Object> frame = new HashMap<String,Object>();
+		Frame frame;
+		if(slotFrames) {
+			frame = pushFrame(function);
+		} else {
+			frame = new MapFrame();
+		}
+		try {
+			for(int i=0;i!=arguments.length;++i) {
+				WhileFile.Parameter parameter = function.getParameters().get(i);
+				// Parameters always occupy the first slots of a frame
+				frame.put(parameter.getName(),i,arguments[i]);
+			}
+			// Third, execute the function body!
+			return invoke(function, frame);
+		} finally {
+			if(slotFrames) {
+				popFrame();
+			}
+		}
+	}
+	
+	/**
+	 * Execute the body of a given function in a given frame, which already
+	 * holds its arguments. Should the function end with a tail call, then that
+	 * call replaces this one: the frame is reused for the function being
+	 * called, whose body is then executed here. Hence, a chain of tail calls
+	 * does not consume any more of the Java stack than a single call.
+	 * 
+	 * @param function
+	 * @param frame
+	 * @return
+	 */
+	private Object invoke(WhileFile.MethodDecl function, Frame frame) {
+		while(true) {
+			if(profiler != null) {
+				profiler.enter(function.getName());
+			}
+			int r;
+			try {
+				r = execute(function.getBody(),frame);
+			} finally {
+				if(profiler != null) {
+					profiler.exit();
+				}
+			}
+			CallSite tail = frame.tailCall;
+			if(tail == null) {
+				return r == RETURN ? frame.result : null;
+			}
+			function = tail.getTarget();
+			frame = reuseFrame(frame, function);
+		}
+	}
+	
+	/**
+	 * Prepare the frame of a call which has ended with a tail call for the
+	 * function being called. The variables of the call are released, and the
+	 * arguments of the tail call put in their place.
+	 * 
+	 * @param frame
+	 * @param function
+	 * @return
+	 */
+	private Frame reuseFrame(Frame frame, WhileFile.MethodDecl function) {
+		Object[] arguments = frame.tailArguments;
+		if(frame instanceof SlotFrame) {
+			SlotFrame slots = (SlotFrame) frame;
+			for(int i=0;i!=slots.size;++i) {
+				release(slots.values[i]);
+				slots.values[i] = null;
+			}
+			if(slots.values.length < function.getFrameSize()) {
+				slots = new SlotFrame(function.getFrameSize());
+				frameStack[depth - 1] = slots;
+			}
+			slots.size = function.getFrameSize();
+			frame = slots;
+		} else {
+			frame = new MapFrame();
+		}
+		frame.result = null;
+		frame.tailCall = null;
+		frame.tailArguments = null;
 		for(int i=0;i!=arguments.length;++i) {
-			WhileFile.Parameter parameter = function.getParameters().get(i);
-			frame.put(parameter.getName(),arguments[i]);
+			frame.put(function.getParameters().get(i).getName(), i, arguments[i]);
 		}
-		
-		// Third, execute the function body!
-		return execute(function.getBody(),frame);
+		return frame;
+	}
+	
+	/**
+	 * Account for one step (i.e. a loop iteration or call) at a given point in
+	 * the program, and check the limits on execution when due.
+	 * 
+	 * @param element
+	 */
+	private void step(SyntacticElement element) {
+		if(++steps >= checkpoint) {
+			checkLimits(element);
+		}
+	}
+	
+	private void checkLimits(SyntacticElement element) {
+		if(steps > stepLimit) {
+			limitExceeded(LimitExceeded.Limit.STEPS, "step limit exceeded (" + stepLimit + " steps)",
+					file.filename, element);
+		} else if(cancelled || Thread.currentThread().isInterrupted()) {
+			limitExceeded(LimitExceeded.Limit.CANCELLED, "execution cancelled", file.filename, element);
+		} else if(System.nanoTime() > deadline) {
+			limitExceeded(LimitExceeded.Limit.TIME, "time limit exceeded (" + timeLimit + "ms)",
+					file.filename, element);
+		}
+		// Check again after the next interval, or just beyond the step limit
+		// if that comes first.
+		if(stepLimit - steps < CHECK_INTERVAL) {
+			checkpoint = stepLimit + 1;
+		} else {
+			checkpoint = steps + CHECK_INTERVAL;
+		}
+	}
+	
+	/**
+	 * Account for the allocation of a given number of bytes at a given point
+	 * in the program. This is checked before the allocation is made, so that
+	 * an oversized array is never actually allocated.
+	 * 
+	 * @param bytes
+	 * @param element
+	 */
+	private void allocate(long bytes, SyntacticElement element) {
+		allocated += bytes;
+		if(allocated > memoryLimit) {
+			limitExceeded(LimitExceeded.Limit.MEMORY, "memory limit exceeded (" + memoryLimit + " bytes)",
+					file.filename, element);
+		}
+	}
+	
+	private void checkArity(WhileFile.MethodDecl function, int count) {
+		if(function.getParameters().size() != count){
+			throw new RuntimeException(
+					"invalid number of arguments supplied to execution of function \""
+							+ function.getName() + "\"");
+		}
+	}
+	
+	/**
+	 * Obtain the slot frame for a call to a given function, reusing the frame
+	 * last used at the same depth of the call stack where possible.
+	 * 
+	 * @param function
+	 * @return
+	 */
+	private SlotFrame pushFrame(WhileFile.MethodDecl function) {
+		if(depth == frameStack.length) {
+			frameStack = Arrays.copyOf(frameStack, depth * 2);
+		}
+		SlotFrame frame = frameStack[depth];
+		if(frame == null || frame.values.length < function.getFrameSize()) {
+			frame = new SlotFrame(function.getFrameSize());
+			frameStack[depth] = frame;
+		}
+		frame.size = function.getFrameSize();
+		depth++;
+		return frame;
 	}
 	
-	private Object execute(List<Stmt> block, HashMap<String,Object> frame) {
+	/**
+	 * Discard the slot frame of the most recent call, releasing the values
+	 * held by its variables.
+	 */
+	private void popFrame() {
+		depth--;
+		SlotFrame frame = frameStack[depth];
+		Object[] values = frame.values;
+		for(int i=0;i!=frame.size;++i) {
+			release(values[i]);
+			values[i] = null;
+		}
+		frame.result = null;
+	}
+	
+	private int execute(List<Stmt> block, Frame frame) {
 		for(int i=0;i!=block.size();i=i+1) {			
-			Object r = execute(block.get(i),frame);			
-			if(r != null) {
+			int r = execute(block.get(i),frame);			
+			if(r != NORMAL) {
 				return r;
 			}
 		}
-		return null;
+		return NORMAL;
 	}
 	
 	/**
@@ -101,10 +475,14 @@ public class Interpreter {
 	 * @param stmt
 	 *            Statement to execute.
 	 * @param frame
-	 *            Stack frame mapping variables to their current value.
-	 * @return
+	 *            Stack frame holding the current value of each variable.
+	 * @return The completion code for the statement, which indicates whether
+	 *         execution should continue normally.
 	 */
-	private Object execute(Stmt stmt, HashMap<String,Object> frame) {		
+	private int execute(Stmt stmt, Frame frame) {		
+		if(profiler != null) {
+			profiler.statement(stmt);
+		}
 		if(stmt instanceof Stmt.Assert) {
 			return execute((Stmt.Assert) stmt,frame);
 		} else if(stmt instanceof Stmt.Assign) {
@@ -128,83 +506,137 @@ public class Interpreter {
 		} else if(stmt instanceof Stmt.Print) {
 			return execute((Stmt.Print) stmt,frame);
 		} else if(stmt instanceof Expr.Invoke) {
-			return execute((Expr.Invoke) stmt,frame);
+			// The value returned from an invocation used as a statement is
+			// discarded, and must not be mistaken for a return.
+			execute((Expr.Invoke) stmt,frame);
+			return NORMAL;
 		} else {
 			internalFailure("unknown statement encountered (" + stmt + ")", file.filename,stmt);
-			return null;
+			return NORMAL;
 		} 
 	}
 	
-	private Object execute(Stmt.Assert stmt, HashMap<String,Object> frame) {
-		boolean b = (Boolean) execute(stmt.getExpr(),frame);
+	private int execute(Stmt.Assert stmt, Frame frame) {
+		boolean b = executeBool(stmt.getExpr(),frame);
 		if(!b) {
 			throw new RuntimeException("assertion failure");
 		}
-		return null;
+		return NORMAL;
 	}
 	
-	private Object execute(Stmt.Assign stmt, HashMap<String,Object> frame) {	
+	private int execute(Stmt.Assign stmt, Frame frame) {	
 		Expr lhs = stmt.getLhs();
 		if(lhs instanceof Expr.Variable) {
 			Expr.Variable ev = (Expr.Variable) lhs;
 			Object rhs = execute(stmt.getRhs(),frame);
-			// We need to perform a deep clone here to ensure the value
-			// semantics used in While are preserved.
-			frame.put(ev.getName(),deepClone(rhs));
+			// The variable becomes a holder of the new value, and stops being
+			// a holder of the old one.
+			Object old = frame.get(ev.getName(),ev.getSlot());
+			frame.put(ev.getName(),ev.getSlot(),share(rhs));
+			release(old);
 		} else if(lhs instanceof Expr.RecordAccess) {
 			Expr.RecordAccess ra = (Expr.RecordAccess) lhs;
-			Map<String,Object> src = (Map) execute(ra.getSource(),frame);
+			// The record is about to be written, so it must not be shared
+			RecordValue src = (RecordValue) executeForUpdate(ra.getSource(),frame);
 			Object rhs = execute(stmt.getRhs(),frame);
-			// We need to perform a deep clone here to ensure the value
-			// semantics used in While are preserved.
-			src.put(ra.getName(), deepClone(rhs));
+			release(src.set(offsetOf(ra,src), share(rhs)));
 		} else if(lhs instanceof Expr.IndexOf) {
 			Expr.IndexOf io = (Expr.IndexOf) lhs;
-			ArrayList<Object> src = (ArrayList) execute(io.getSource(),frame);
-			Integer idx = (Integer) execute(io.getIndex(),frame);
+			// The array is about to be written, so it must not be shared
+			ArrayValue src = (ArrayValue) executeForUpdate(io.getSource(),frame);
+			int idx = executeInt(io.getIndex(),frame);
 			Object rhs = execute(stmt.getRhs(),frame);
-			// We need to perform a deep clone here to ensure the value
-			// semantics used in While are preserved.
-			src.set(idx,deepClone(rhs));
+			release(src.set(idx,share(rhs)));
 		} else {
 			internalFailure("unknown lval encountered (" + lhs + ")", file.filename,stmt);
 		}
 		
-		return null;
+		return NORMAL;
+	}
+	
+	/**
+	 * Evaluate an lval whose value is about to be written through. Any array or
+	 * record along the way which is shared is first replaced by its own copy,
+	 * so that the write is not visible through any other holder.
+	 * 
+	 * @param lval
+	 *            Lval to evaluate.
+	 * @param frame
+	 *            Stack frame holding the current value of each variable.
+	 * @return
+	 */
+	private Object executeForUpdate(Expr lval, Frame frame) {
+		if(lval instanceof Expr.Variable) {
+			Expr.Variable ev = (Expr.Variable) lval;
+			Object value = frame.get(ev.getName(),ev.getSlot());
+			Object unshared = unshare(value,lval);
+			if(unshared != value) {
+				frame.put(ev.getName(),ev.getSlot(),unshared);
+			}
+			return unshared;
+		} else if(lval instanceof Expr.RecordAccess) {
+			Expr.RecordAccess ra = (Expr.RecordAccess) lval;
+			RecordValue src = (RecordValue) executeForUpdate(ra.getSource(),frame);
+			int offset = offsetOf(ra,src);
+			Object value = src.get(offset);
+			Object unshared = unshare(value,lval);
+			if(unshared != value) {
+				src.set(offset,unshared);
+			}
+			return unshared;
+		} else if(lval instanceof Expr.IndexOf) {
+			Expr.IndexOf io = (Expr.IndexOf) lval;
+			ArrayValue src = (ArrayValue) executeForUpdate(io.getSource(),frame);
+			int idx = executeInt(io.getIndex(),frame);
+			Object value = src.get(idx);
+			Object unshared = unshare(value,lval);
+			if(unshared != value) {
+				src.set(idx,unshared);
+			}
+			return unshared;
+		} else {
+			internalFailure("unknown lval encountered (" + lval + ")", file.filename,lval);
+			return null;
+		}
 	}
 	
-	private Object execute(Stmt.For stmt, HashMap<String,Object> frame) {
+	private int execute(Stmt.For stmt, Frame frame) {
 		execute(stmt.getDeclaration(),frame);
-		while((Boolean) execute(stmt.getCondition(),frame)) {
-			Object ret = execute(stmt.getBody(),frame);
-			if(ret == BREAK_CONSTANT) {
+		while(executeBool(stmt.getCondition(),frame)) {
+			step(stmt);
+			if(profiler != null) {
+				profiler.statement(stmt);
+			}
+			int ret = execute(stmt.getBody(),frame);
+			if(ret == BREAK) {
 				break;
-			} else if(ret == CONTINUE_CONSTANT) {
-				// continue :)
-			} else if(ret != null) {
+			} else if(ret == RETURN) {
 				return ret;
 			}
+			// Otherwise, the body completed normally or continued
 			execute(stmt.getIncrement(),frame);
 		}
-		return null;
+		return NORMAL;
 	}
 	
-	private Object execute(Stmt.While stmt, HashMap<String,Object> frame) {
-		while((Boolean) execute(stmt.getCondition(),frame)) {
-			Object ret = execute(stmt.getBody(),frame);
-			if(ret == BREAK_CONSTANT) {
+	private int execute(Stmt.While stmt, Frame frame) {
+		while(executeBool(stmt.getCondition(),frame)) {
+			step(stmt);
+			if(profiler != null) {
+				profiler.statement(stmt);
+			}
+			int ret = execute(stmt.getBody(),frame);
+			if(ret == BREAK) {
 				break;
-			} else if(ret == CONTINUE_CONSTANT) {
-				// continue :)
-			} else if(ret != null) {
+			} else if(ret == RETURN) {
 				return ret;
 			}
 		}
-		return null;
+		return NORMAL;
 	}
 	
-	private Object execute(Stmt.IfElse stmt, HashMap<String,Object> frame) {
-		boolean condition = (Boolean) execute(stmt.getCondition(),frame);
+	private int execute(Stmt.IfElse stmt, Frame frame) {
+		boolean condition = executeBool(stmt.getCondition(),frame);
 		if(condition) {
 			return execute(stmt.getTrueBranch(),frame);
 		} else {
@@ -212,43 +644,99 @@ public class Interpreter {
 		}
 	}
 	
-	private Object execute(Stmt.Break stmt, HashMap<String, Object> frame) {
-		return BREAK_CONSTANT;
+	private int execute(Stmt.Break stmt, Frame frame) {
+		return BREAK;
 	}
 	
-	private Object execute(Stmt.Continue stmt, HashMap<String, Object> frame) {
-		return CONTINUE_CONSTANT;
+	private int execute(Stmt.Continue stmt, Frame frame) {
+		return CONTINUE;
 	}
 	
-	private Object execute(Stmt.Switch stmt, HashMap<String, Object> frame) {
-		boolean fallThru = false;
+	private int execute(Stmt.Switch stmt, Frame frame) {
+		JumpTable table = stmt.getJumpTable();
+		if(table == null) {
+			table = compileJumpTable(stmt);
+		}
 		Object value = execute(stmt.getExpr(), frame);
+		if(table != null) {
+			// Begin at the case selected by the table, and fall through from
+			// there.
+			List<Stmt.Case> cases = stmt.getCases();
+			for (int i = table.lookup(value); i < cases.size(); ++i) {
+				int ret = execute(cases.get(i).getBody(), frame);
+				if(ret == BREAK) {
+					break;
+				} else if(ret != NORMAL) {
+					// A continue or return propagates out of the switch
+					return ret;
+				}
+			}
+			return NORMAL;
+		}
+		// Otherwise, test each case in turn
+		boolean fallThru = false;
 		for (Stmt.Case c : stmt.getCases()) {
 			Expr e = c.getValue();
 			if (fallThru || e == null || value.equals(execute(e, frame))) {
-				Object ret = execute(c.getBody(), frame);
-				if(ret == BREAK_CONSTANT) {
+				int ret = execute(c.getBody(), frame);
+				if(ret == BREAK) {
 					break;
-				} else if(ret != null) {
+				} else if(ret != NORMAL) {
+					// A continue or return propagates out of the switch
 					return ret;
 				}
 				fallThru = true;
 			}
 		}
-		return null;
+		return NORMAL;
 	}
 	
-	private Object execute(Stmt.Return stmt, HashMap<String,Object> frame) {
+	/**
+	 * Compile a jump table for a given switch statement, provided all of its
+	 * case labels are constants. The table is cached on the statement, so this
+	 * is only done once.
+	 * 
+	 * @param stmt
+	 * @return The jump table, or null if one could not be compiled.
+	 */
+	private static JumpTable compileJumpTable(Stmt.Switch stmt) {
+		ArrayList<Object> labels = new ArrayList<Object>();
+		for (Stmt.Case c : stmt.getCases()) {
+			Expr e = c.getValue();
+			if(e == null) {
+				labels.add(null);
+			} else if(e instanceof Expr.Constant && ((Expr.Constant) e).getValue() != null) {
+				labels.add(((Expr.Constant) e).getValue());
+			} else {
+				return null;
+			}
+		}
+		JumpTable table = new JumpTable(labels);
+		stmt.setJumpTable(table);
+		return table;
+	}
+	
+	private int execute(Stmt.Return stmt, Frame frame) {
 		Expr re = stmt.getExpr();
+		if(re instanceof Expr.Invoke) {
+			Expr.Invoke ie = (Expr.Invoke) re;
+			CallSite site = ie.getCallSite();
+			if(site == null) {
+				site = bind(ie);
+			}
+			// A call whose result could be memoised is made as normal
+			if(!memoizes(site.getTarget())) {
+				return tailCall(site, ie, frame);
+			}
+		}
 		if(re != null) {
-			return execute(re,frame);
-		} else {
-			return Collections.EMPTY_SET; // used to indicate a function has returned
+			frame.result = execute(re,frame);
 		}
+		return RETURN;
 	}
 	
-	private Object execute(Stmt.VariableDeclaration stmt,
-			HashMap<String, Object> frame) {
+	private int execute(Stmt.VariableDeclaration stmt,
+			Frame frame) {
 		Expr re = stmt.getExpr();
 		Object value;
 		if (re != null) {
@@ -257,16 +745,13 @@ public class Interpreter {
 			value = Collections.EMPTY_SET; // used to indicate a variable has
 											// been declared
 		}
-		// We need to perform a deep clone here to ensure the value
-		// semantics used in While are preserved.
-		frame.put(stmt.getName(), deepClone(value));
-		return null;
+		frame.put(stmt.getName(), stmt.getSlot(), share(value));
+		return NORMAL;
 	}
 	
-	private Object execute(Stmt.Print stmt, HashMap<String,Object> frame) {
-		String str = toString(execute(stmt.getExpr(),frame));
-		System.out.println(str);
-		return null;
+	private int execute(Stmt.Print stmt, Frame frame) {
+		output.println(execute(stmt.getExpr(),frame));
+		return NORMAL;
 	}
 	
 	/**
@@ -275,10 +760,10 @@ public class Interpreter {
 	 * @param expr
 	 *            Expression to execute.
 	 * @param frame
-	 *            Stack frame mapping variables to their current value.
+	 *            Stack frame holding the current value of each variable.
 	 * @return
 	 */
-	private Object execute(Expr expr, HashMap<String,Object> frame) {
+	private Object execute(Expr expr, Frame frame) {
 		if(expr instanceof Expr.Binary) {
 			return execute((Expr.Binary) expr,frame);
 		} else if(expr instanceof Expr.Constant) {
@@ -305,19 +790,87 @@ public class Interpreter {
 		} 
 	}
 	
-	private Object execute(Expr.Binary expr, HashMap<String,Object> frame) {
+	/**
+	 * Execute an expression which is known to produce an <code>int</code>.
+	 * Where the expression is implemented by a specialised node, its value is
+	 * computed without being boxed.
+	 * 
+	 * @param expr
+	 * @param frame
+	 * @return
+	 */
+	private int executeInt(Expr expr, Frame frame) {
+		if(expr instanceof Expr.Binary) {
+			Expr.Binary b = (Expr.Binary) expr;
+			BinaryNode node = b.getNode();
+			if(node != null) {
+				return node.executeInt(this, b, frame);
+			}
+		} else if(expr instanceof Expr.Variable) {
+			Expr.Variable v = (Expr.Variable) expr;
+			return (Integer) frame.get(v.getName(), v.getSlot());
+		} else if(expr instanceof Expr.Constant) {
+			return (Integer) ((Expr.Constant) expr).getValue();
+		}
+		return (Integer) execute(expr, frame);
+	}
+	
+	/**
+	 * Execute an expression which is known to produce a <code>bool</code>.
+	 * Where the expression is implemented by a specialised node, its value is
+	 * computed without being boxed.
+	 * 
+	 * @param expr
+	 * @param frame
+	 * @return
+	 */
+	private boolean executeBool(Expr expr, Frame frame) {
+		if(expr instanceof Expr.Binary) {
+			Expr.Binary b = (Expr.Binary) expr;
+			BinaryNode node = b.getNode();
+			if(node != null) {
+				return node.executeBool(this, b, frame);
+			}
+		} else if(expr instanceof Expr.Variable) {
+			Expr.Variable v = (Expr.Variable) expr;
+			return (Boolean) frame.get(v.getName(), v.getSlot());
+		} else if(expr instanceof Expr.Constant) {
+			return (Boolean) ((Expr.Constant) expr).getValue();
+		}
+		return (Boolean) execute(expr, frame);
+	}
+	
+	/**
+	 * Execute a binary expression. Once a binary expression has been executed,
+	 * it is implemented by a node specialised to its operator and the kind of
+	 * operands observed (see <code>BinaryNode</code>). Otherwise, it is
+	 * executed generically, and then specialised.
+	 * 
+	 * @param expr
+	 * @param frame
+	 * @return
+	 */
+	private Object execute(Expr.Binary expr, Frame frame) {
+		BinaryNode node = expr.getNode();
+		if(node != null) {
+			return node.execute(this, expr, frame);
+		}
+		
 		// First, deal with the short-circuiting operators first
 		Object lhs = execute(expr.getLhs(), frame);
 		
 		switch (expr.getOp()) {
 		case AND:
+			expr.setNode(BinaryNode.AND);
 			return ((Boolean)lhs) && ((Boolean)execute(expr.getRhs(), frame));
 		case OR:
+			expr.setNode(BinaryNode.OR);
 			return ((Boolean)lhs) || ((Boolean)execute(expr.getRhs(), frame));
 		}
 		
 		// Second, deal the rest.		
 		Object rhs = execute(expr.getRhs(), frame);
+		expr.setNode(BinaryNode.specialise(expr.getOp(), lhs, rhs));
 		
 		switch (expr.getOp()) {
 		case ADD:
@@ -349,72 +902,233 @@ public class Interpreter {
 		return null;
 	}
 	
-	private Object execute(Expr.Constant expr, HashMap<String,Object> frame) {
+	private Object execute(Expr.Constant expr, Frame frame) {
 		return expr.getValue();
 	}
 	
-	private Object execute(Expr.Invoke expr, HashMap<String, Object> frame) {
+	private Object execute(Expr.Invoke expr, Frame frame) {
+		CallSite site = expr.getCallSite();
+		if(site == null) {
+			site = bind(expr);
+		}
+		step(expr);
+		WhileFile.MethodDecl fun = site.getTarget();
+		if(memoizes(fun)) {
+			return memoize(site, expr, frame);
+		}
+		List<Expr> arguments = expr.getArguments();
+		// Arguments are shared with the caller, and only copied if the callee
+		// writes to them.
+		if(!slotFrames) {
+			MapFrame callee = new MapFrame();
+			for (int i = 0; i != arguments.size(); ++i) {
+				Object value = execute(arguments.get(i), frame);
+				callee.put(fun.getParameters().get(i).getName(), i,
+						site.isShared(i) ? share(value) : value);
+			}
+			return invoke(fun, callee);
+		}
+		// Arguments are evaluated directly into the callee's frame. This is
+		// safe because any calls made whilst evaluating them push and pop
+		// frames above it.
+		SlotFrame callee = pushFrame(fun);
+		try {
+			Object[] values = callee.values;
+			for (int i = 0; i != arguments.size(); ++i) {
+				Object value = execute(arguments.get(i), frame);
+				values[i] = site.isShared(i) ? share(value) : value;
+			}
+			return invoke(fun, callee);
+		} finally {
+			popFrame();
+		}
+	}
+	
+	/**
+	 * Determine whether the results of calls to a given function are reused
+	 * from the memoisation cache.
+	 * 
+	 * @param fun
+	 * @return
+	 */
+	private boolean memoizes(WhileFile.MethodDecl fun) {
+		return memoCache != null && fun.isPure() && !(fun.getRet() instanceof Type.Void)
+				&& memoCache.admits(fun);
+	}
+	
+	/**
+	 * Execute an invocation whose result is returned by the function making
+	 * it. The arguments are evaluated in the caller's frame, after which the
+	 * caller returns. The call itself is then made in place of the caller's
+	 * (see <code>invoke()</code>).
+	 * 
+	 * @param site
+	 * @param expr
+	 * @param frame
+	 * @return
+	 */
+	private int tailCall(CallSite site, Expr.Invoke expr, Frame frame) {
+		step(expr);
+		List<Expr> arguments = expr.getArguments();
+		Object[] values = new Object[arguments.size()];
+		for (int i = 0; i != values.length; ++i) {
+			Object value = execute(arguments.get(i), frame);
+			values[i] = site.isShared(i) ? share(value) : value;
+		}
+		frame.tailCall = site;
+		frame.tailArguments = values;
+		return RETURN;
+	}
+	
+	/**
+	 * Execute a given invocation of a pure function, reusing the result of an
+	 * earlier call with equal arguments if one is cached. Otherwise, the call
+	 * is made and its result cached.
+	 * 
+	 * @param site
+	 * @param expr
+	 * @param frame
+	 * @return
+	 */
+	private Object memoize(CallSite site, Expr.Invoke expr, Frame frame) {
+		WhileFile.MethodDecl fun = site.getTarget();
 		List<Expr> arguments = expr.getArguments();
 		Object[] values = new Object[arguments.size()];
 		for (int i = 0; i != values.length; ++i) {
-			// We need to perform a deep clone here to ensure the value
-			// semantics used in While are preserved.
-			values[i] = deepClone(execute(arguments.get(i), frame));
+			values[i] = execute(arguments.get(i), frame);
+		}
+		Object result = memoCache.get(fun, values);
+		if(result != null) {
+			return result;
 		}
-		WhileFile.MethodDecl fun = (WhileFile.MethodDecl) declarations.get(expr
-				.getName());
-		return execute(fun, values);
+		// The cache must hold the arguments before the call, since otherwise
+		// the callee could write to an argument in place.
+		for (int i = 0; i != values.length; ++i) {
+			values[i] = share(values[i]);
+		}
+		Frame callee = slotFrames ? pushFrame(fun) : new MapFrame();
+		try {
+			for (int i = 0; i != values.length; ++i) {
+				callee.put(fun.getParameters().get(i).getName(), i,
+						site.isShared(i) ? share(values[i]) : values[i]);
+			}
+			result = invoke(fun, callee);
+		} finally {
+			if(slotFrames) {
+				popFrame();
+			}
+		}
+		memoCache.put(fun, values, result);
+		return result;
+	}
+	
+	/**
+	 * Bind a given invocation to the function it calls. Since the number of
+	 * arguments supplied is checked here, it need not be checked again on
+	 * each call. Likewise, arguments whose declared type is neither an array
+	 * nor a record never need to be shared.
+	 * 
+	 * @param expr
+	 * @return
+	 */
+	private CallSite bind(Expr.Invoke expr) {
+		WhileFile.Decl decl = declarations.get(expr.getName());
+		if(!(decl instanceof WhileFile.MethodDecl)) {
+			internalFailure("unknown function encountered (" + expr.getName() + ")", file.filename, expr);
+		}
+		WhileFile.MethodDecl fun = (WhileFile.MethodDecl) decl;
+		checkArity(fun, expr.getArguments().size());
+		List<WhileFile.Parameter> parameters = fun.getParameters();
+		boolean[] shared = new boolean[parameters.size()];
+		for (int i = 0; i != shared.length; ++i) {
+			Type type = expand(parameters.get(i).getType());
+			shared[i] = !(type instanceof Type.Int || type instanceof Type.Bool
+					|| type instanceof Type.Char || type instanceof Type.Strung);
+		}
+		CallSite site = new CallSite(fun, shared);
+		expr.setCallSite(site);
+		return site;
 	}
 	
-	private Object execute(Expr.IndexOf expr, HashMap<String,Object> frame) {
+	private Object execute(Expr.IndexOf expr, Frame frame) {
 		Object _src = execute(expr.getSource(),frame);
-		int idx = (Integer) execute(expr.getIndex(),frame);
+		int idx = executeInt(expr.getIndex(),frame);
 		if(_src instanceof String) {
 			String src = (String) _src;
 			return src.charAt(idx);
 		} else {
-			ArrayList<Object> src = (ArrayList<Object>) _src;
+			List<Object> src = (List<Object>) _src;
 			return src.get(idx);
 		}
 	}
 	
-	private Object execute(Expr.ArrayGenerator expr, HashMap<String, Object> frame) {
+	private Object execute(Expr.ArrayGenerator expr, Frame frame) {
 		Object value = execute(expr.getValue(),frame);
-		int size = (Integer) execute(expr.getSize(),frame);
-		ArrayList<Object> ls = new ArrayList<Object>();
+		int size = executeInt(expr.getSize(),frame);
+		ArrayValue ls = newArray(expr, size);
 		for (int i = 0; i < size; ++i) {
-			ls.add(value);
+			ls.set(i, share(value));
 		}
 		return ls;
 	}
 	
 	private Object execute(Expr.ArrayInitialiser expr,
-			HashMap<String, Object> frame) {
+			Frame frame) {
 		List<Expr> es = expr.getArguments();
-		ArrayList<Object> ls = new ArrayList<Object>();
+		ArrayValue ls = newArray(expr, es.size());
 		for (int i = 0; i != es.size(); ++i) {
-			ls.add(execute(es.get(i), frame));
+			ls.set(i, share(execute(es.get(i), frame)));
 		}
 		return ls;
 	}
 	
-	private Object execute(Expr.RecordAccess expr, HashMap<String, Object> frame) {
-		HashMap<String, Object> src = (HashMap) execute(expr.getSource(), frame);
-		return src.get(expr.getName());
+	private Object execute(Expr.RecordAccess expr, Frame frame) {
+		RecordValue src = (RecordValue) execute(expr.getSource(), frame);
+		return src.get(offsetOf(expr,src));
+	}
+	
+	/**
+	 * Determine the offset of the field accessed by a given record access
+	 * within a given record. The offset found is cached, so that subsequent
+	 * accesses to records with the same layout need not search for it.
+	 * 
+	 * @param expr
+	 * @param record
+	 * @return
+	 */
+	private static int offsetOf(Expr.RecordAccess expr, RecordValue record) {
+		RecordLayout layout = record.getLayout();
+		RecordLayout.Offset cached = expr.getOffset();
+		if(cached != null && cached.layout == layout) {
+			return cached.offset;
+		}
+		int offset = layout.offsetOf(expr.getName());
+		expr.setOffset(new RecordLayout.Offset(layout,offset));
+		return offset;
 	}
 	
-	private Object execute(Expr.RecordConstructor expr, HashMap<String,Object> frame) {
+	private Object execute(Expr.RecordConstructor expr, Frame frame) {
 		List<Pair<String,Expr>> es = expr.getFields();
-		HashMap<String,Object> rs = new HashMap<String,Object>();
+		RecordLayout layout = expr.getLayout();
+		if(layout == null) {
+			String[] fields = new String[es.size()];
+			for(int i=0;i!=fields.length;++i) {
+				fields[i] = es.get(i).first();
+			}
+			layout = RecordLayout.get(fields);
+			expr.setLayout(layout);
+		}
 		
-		for(Pair<String,Expr> e : es) {
-			rs.put(e.first(),execute(e.second(),frame));
+		allocate(RECORD_HEADER + 4L * es.size(), expr);
+		RecordValue rs = new RecordValue(layout);
+		for(int i=0;i!=es.size();++i) {
+			rs.set(i,share(execute(es.get(i).second(),frame)));
 		}
 		
 		return rs;
 	}
 	
-	private Object execute(Expr.Unary expr, HashMap<String, Object> frame) {
+	private Object execute(Expr.Unary expr, Frame frame) {
 		Object value = execute(expr.getExpr(), frame);
 		switch (expr.getOp()) {
 		case NOT:
@@ -422,7 +1136,7 @@ public class Interpreter {
 		case NEG:
 			return -((Integer) value);
 		case LENGTHOF:
-			return ((ArrayList) value).size();			
+			return ((List) value).size();			
 		}
 
 		internalFailure("unknown unary expression encountered (" + expr + ")",
@@ -430,8 +1144,152 @@ public class Interpreter {
 		return null;
 	}
 	
-	private Object execute(Expr.Variable expr, HashMap<String,Object> frame) {
-		return frame.get(expr.getName());
+	private Object execute(Expr.Variable expr, Frame frame) {
+		return frame.get(expr.getName(), expr.getSlot());
+	}
+	
+	/**
+	 * Create an array value of a given size for a given array generator or
+	 * initialiser. The representation used is determined by the element type
+	 * of the expression.
+	 * 
+	 * @param expr
+	 * @param size
+	 * @return
+	 */
+	private ArrayValue newArray(Expr expr, int size) {
+		Attribute.Type attr = expr.attribute(Attribute.Type.class);
+		if(primitiveArrays && attr != null) {
+			Type type = expand(attr.type);
+			if(type instanceof Type.Array) {
+				Type element = expand(((Type.Array) type).getElement());
+				if(element instanceof Type.Int) {
+					allocate(ARRAY_HEADER + 4L * size, expr);
+					return new ArrayValue.IntArray(size);
+				} else if(element instanceof Type.Bool) {
+					allocate(ARRAY_HEADER + (long) size, expr);
+					return new ArrayValue.BoolArray(size);
+				} else if(element instanceof Type.Char) {
+					allocate(ARRAY_HEADER + 2L * size, expr);
+					return new ArrayValue.CharArray(size);
+				}
+			}
+		}
+		allocate(ARRAY_HEADER + 4L * size, expr);
+		return new ArrayValue.ObjectArray(size);
+	}
+	
+	/**
+	 * Expand a named type into its underlying definition.
+	 * 
+	 * @param type
+	 * @return
+	 */
+	private Type expand(Type type) {
+		while(type instanceof Type.Named) {
+			WhileFile.TypeDecl td = (WhileFile.TypeDecl) declarations.get(((Type.Named) type).getName());
+			type = td.getType();
+		}
+		return type;
+	}
+	
+	/**
+	 * Record that a given value has acquired another holder (i.e. a variable,
+	 * array element or record field). Arrays and records are not copied here;
+	 * instead, a shared array or record is copied only when it is written
+	 * (see <code>executeForUpdate()</code>). An <code>ArrayList</code> or
+	 * <code>HashMap</code> which did not originate from this interpreter (e.g.
+	 * a constant) is converted into an equivalent <code>ArrayValue</code> or
+	 * <code>RecordValue</code>.
+	 * 
+	 * @param o
+	 * @return
+	 */
+	public static Object share(Object o) {
+		if (o instanceof ArrayValue) {
+			return ((ArrayValue) o).share();
+		} else if (o instanceof RecordValue) {
+			return ((RecordValue) o).share();
+		} else if (o instanceof ArrayList) {
+			ArrayList<Object> l = (ArrayList) o;
+			ArrayValue n = new ArrayValue.ObjectArray(l.size());
+			for (int i = 0; i != l.size(); ++i) {
+				n.set(i, share(l.get(i)));
+			}
+			return n.share();
+		} else if (o instanceof HashMap) {
+			HashMap<String, Object> m = (HashMap) o;
+			ArrayList<String> fields = new ArrayList<String>(m.keySet());
+			Collections.sort(fields);
+			RecordValue n = new RecordValue(RecordLayout.get(fields.toArray(new String[fields.size()])));
+			for (int i = 0; i != fields.size(); ++i) {
+				n.set(i, share(m.get(fields.get(i))));
+			}
+			return n.share();
+		} else {
+			// other values are immutable
+			return o;
+		}
+	}
+	
+	/**
+	 * Record that a given value has lost one of its holders.
+	 * 
+	 * @param o
+	 */
+	static void release(Object o) {
+		if (o instanceof ArrayValue) {
+			((ArrayValue) o).release();
+		} else if (o instanceof RecordValue) {
+			((RecordValue) o).release();
+		}
+	}
+	
+	/**
+	 * Obtain a version of the given value which can be written by its holder
+	 * without affecting any other holder. Should this require a copy, then
+	 * the copy is accounted for like any other allocation.
+	 * 
+	 * @param o
+	 * @param element
+	 *            The lval being written, which is reported should the memory
+	 *            limit be exceeded.
+	 * @return
+	 */
+	private Object unshare(Object o, SyntacticElement element) {
+		if (o instanceof ArrayValue) {
+			ArrayValue array = (ArrayValue) o;
+			if (array.isShared()) {
+				allocate(sizeOf(array), element);
+			}
+			return array.unshare();
+		} else if (o instanceof RecordValue) {
+			RecordValue record = (RecordValue) o;
+			if (record.isShared()) {
+				allocate(RECORD_HEADER + 4L * record.size(), element);
+			}
+			return record.unshare();
+		} else {
+			return o;
+		}
+	}
+	
+	/**
+	 * Determine the (approximate) number of bytes used by a given array, as
+	 * accounted for when it was created (see <code>newArray()</code>).
+	 * 
+	 * @param array
+	 * @return
+	 */
+	private static long sizeOf(ArrayValue array) {
+		long size = array.size();
+		if (array instanceof ArrayValue.BoolArray) {
+			return ARRAY_HEADER + size;
+		} else if (array instanceof ArrayValue.CharArray) {
+			return ARRAY_HEADER + 2L * size;
+		} else {
+			return ARRAY_HEADER + 4L * size;
+		}
 	}
 	
 	/**
@@ -444,7 +1302,7 @@ public class Interpreter {
 	 * @param o
 	 * @return
 	 */
-	private Object deepClone(Object o) {
+	public static Object deepClone(Object o) {
 		if (o instanceof ArrayList) {
 			ArrayList<Object> l = (ArrayList) o;
 			ArrayList<Object> n = new ArrayList<Object>();
@@ -468,46 +1326,324 @@ public class Interpreter {
 	/**
 	 * Convert the given object value to a string. This is either a
 	 * <code>Boolean</code>, <code>Integer</code>, <code>Character</code>,
-	 * <code>String</code>, <code>ArrayList</code> (for lists) or
-	 * <code>HaspMap</code> (for records). The latter two must be treated
+	 * <code>String</code>, <code>List</code> (for lists) or
+	 * <code>Map</code> (for records). The latter two must be treated
 	 * recursively.
 	 * 
 	 * @param o
 	 * @return
 	 */
-	private String toString(Object o) {
-		if (o instanceof ArrayList) {
-			ArrayList<Object> l = (ArrayList) o;
-			String r = "[";
-			for (int i = 0; i != l.size(); ++i) {
-				if(i != 0) {
-					r = r + ", ";
+	public static String toString(Object o) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PrintBuffer buffer = new PrintBuffer(bytes, 256);
+		buffer.print(o);
+		buffer.flush();
+		try {
+			return bytes.toString("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * The completion codes returned from executing a statement. These indicate
+	 * whether execution should continue with the next statement, or transfer
+	 * control to an enclosing loop or the caller. In the latter case, the
+	 * value returned (if any) is held in the frame.
+	 */
+	private static final int NORMAL = 0;
+	private static final int BREAK = 1;
+	private static final int CONTINUE = 2;
+	private static final int RETURN = 3;
+	
+	/**
+	 * A stack frame holds the current value of each variable in scope during
+	 * the execution of a method. Variables are identified by both their name
+	 * and their slot, and each kind of frame uses whichever is appropriate.
+	 * 
+	 */
+	private static abstract class Frame {
+		/**
+		 * The value returned by a <code>return</code> statement, if any.
+		 */
+		public Object result;
+		
+		/**
+		 * The call made by a <code>return</code> statement in tail position,
+		 * if any, and its arguments.
+		 */
+		public CallSite tailCall;
+		public Object[] tailArguments;
+		
+		public abstract Object get(String name, int slot);
+		
+		public abstract void put(String name, int slot, Object value);
+	}
+	
+	/**
+	 * A frame which maps variable names to their values. This is the simplest
+	 * representation, though every access requires a hash lookup.
+	 */
+	private static final class MapFrame extends Frame {
+		private final HashMap<String,Object> values = new HashMap<String,Object>();
+		
+		public Object get(String name, int slot) {
+			return values.get(name);
+		}
+
+		public void put(String name, int slot, Object value) {
+			values.put(name, value);
+		}
+	}
+	
+	/**
+	 * <p>
+	 * A specialised implementation of a binary expression, which is cached on
+	 * the expression itself once it has been executed. Each node is
+	 * specialised to its operator, and the kind of operands first observed.
+	 * In particular, arithmetic and comparisons on <code>int</code>s, and the
+	 * logical operators, evaluate their operands as primitives whenever those
+	 * operands are themselves specialised, so that intermediate results are
+	 * never boxed.
+	 * </p>
+	 * <p>
+	 * The equality operators also specialise on the kind of their operands.
+	 * A node which compares arrays, records or characters checks this guess on
+	 * every execution and, if it turns out to be wrong (e.g. an array not
+	 * backed by the representation it expects), deoptimises by rewriting the
+	 * expression to use the generic comparison. Since the type checker
+	 * ensures that an <code>int</code> (or <code>bool</code>) is only ever
+	 * compared with another, that guess cannot be wrong.
+	 * </p>
+	 * <p>
+	 * Nodes are immutable, and an expression is only ever rewritten to
+	 * another node which implements it correctly. Hence, expressions can be
+	 * executed (and rewritten) by several interpreters concurrently.
+	 * </p>
+	 */
+	public static abstract class BinaryNode {
+		abstract Object execute(Interpreter interpreter, Expr.Binary expr, Frame frame);
+		
+		int executeInt(Interpreter interpreter, Expr.Binary expr, Frame frame) {
+			return (Integer) execute(interpreter, expr, frame);
+		}
+		
+		boolean executeBool(Interpreter interpreter, Expr.Binary expr, Frame frame) {
+			return (Boolean) execute(interpreter, expr, frame);
+		}
+		
+		static final BinaryNode AND = new Logical(true);
+		static final BinaryNode OR = new Logical(false);
+		
+		/**
+		 * Determine the node which implements a given operator, given the
+		 * first operands it was applied to.
+		 * 
+		 * @param op
+		 * @param lhs
+		 * @param rhs
+		 * @return
+		 */
+		static BinaryNode specialise(Expr.BOp op, Object lhs, Object rhs) {
+			switch (op) {
+			case ADD:
+			case SUB:
+			case MUL:
+			case DIV:
+			case REM:
+				return new IntArithmetic(op);
+			case LT:
+			case LTEQ:
+			case GT:
+			case GTEQ:
+				return new IntComparison(op);
+			case EQ:
+			case NEQ:
+				boolean negated = op == Expr.BOp.NEQ;
+				if(lhs instanceof Integer && rhs instanceof Integer) {
+					return new IntEquality(negated);
+				} else if(lhs instanceof Boolean && rhs instanceof Boolean) {
+					return new BoolEquality(negated);
+				} else if(lhs instanceof Character && rhs instanceof Character) {
+					return new Equality(Character.class, negated);
+				} else if(lhs instanceof ArrayValue && rhs instanceof ArrayValue
+						&& lhs.getClass() == rhs.getClass()) {
+					return new Equality(lhs.getClass(), negated);
+				} else if(lhs instanceof RecordValue && rhs instanceof RecordValue) {
+					return new Equality(RecordValue.class, negated);
+				} else {
+					return new Equality(Object.class, negated);
 				}
-				r += toString(l.get(i));
 			}
-			return r + "]";
-		} else if (o instanceof HashMap) {
-			HashMap<String, Object> m = (HashMap) o;
-			String r = "{";
-			boolean firstTime = true;
-			ArrayList<String> fields = new ArrayList<String>(m.keySet());
-			Collections.sort(fields);
-			for (String field : fields) {
-				if(!firstTime) {
-					r += ",";
-				}
-				firstTime=false;
-				r += field + ":" + toString(m.get(field));
+			return null;
+		}
+	}
+	
+	private static final class Logical extends BinaryNode {
+		private final boolean and;
+		
+		public Logical(boolean and) {
+			this.and = and;
+		}
+		
+		Object execute(Interpreter interpreter, Expr.Binary expr, Frame frame) {
+			return executeBool(interpreter, expr, frame);
+		}
+		
+		boolean executeBool(Interpreter interpreter, Expr.Binary expr, Frame frame) {
+			boolean lhs = interpreter.executeBool(expr.getLhs(), frame);
+			if(and) {
+				return lhs && interpreter.executeBool(expr.getRhs(), frame);
+			} else {
+				return lhs || interpreter.executeBool(expr.getRhs(), frame);
 			}
-			return r + "}";
-		} else if(o != null) {
-			// other cases can use their default toString methods.
-			return o.toString();
-		} else {
-			return "null";
 		}
 	}
 	
-	private Object BREAK_CONSTANT = new Object() {};
-	private Object CONTINUE_CONSTANT = new Object() {};
+	private static final class IntArithmetic extends BinaryNode {
+		private final Expr.BOp op;
+		
+		public IntArithmetic(Expr.BOp op) {
+			this.op = op;
+		}
+		
+		Object execute(Interpreter interpreter, Expr.Binary expr, Frame frame) {
+			return executeInt(interpreter, expr, frame);
+		}
+		
+		int executeInt(Interpreter interpreter, Expr.Binary expr, Frame frame) {
+			int lhs = interpreter.executeInt(expr.getLhs(), frame);
+			int rhs = interpreter.executeInt(expr.getRhs(), frame);
+			switch (op) {
+			case ADD:
+				return lhs + rhs;
+			case SUB:
+				return lhs - rhs;
+			case MUL:
+				return lhs * rhs;
+			case DIV:
+				return lhs / rhs;
+			default:
+				return lhs % rhs;
+			}
+		}
+	}
+	
+	private static final class IntComparison extends BinaryNode {
+		private final Expr.BOp op;
+		
+		public IntComparison(Expr.BOp op) {
+			this.op = op;
+		}
+		
+		Object execute(Interpreter interpreter, Expr.Binary expr, Frame frame) {
+			return executeBool(interpreter, expr, frame);
+		}
+		
+		boolean executeBool(Interpreter interpreter, Expr.Binary expr, Frame frame) {
+			int lhs = interpreter.executeInt(expr.getLhs(), frame);
+			int rhs = interpreter.executeInt(expr.getRhs(), frame);
+			switch (op) {
+			case LT:
+				return lhs < rhs;
+			case LTEQ:
+				return lhs <= rhs;
+			case GT:
+				return lhs > rhs;
+			default:
+				return lhs >= rhs;
+			}
+		}
+	}
+	
+	private static final class IntEquality extends BinaryNode {
+		private final boolean negated;
+		
+		public IntEquality(boolean negated) {
+			this.negated = negated;
+		}
+		
+		Object execute(Interpreter interpreter, Expr.Binary expr, Frame frame) {
+			return executeBool(interpreter, expr, frame);
+		}
+		
+		boolean executeBool(Interpreter interpreter, Expr.Binary expr, Frame frame) {
+			int lhs = interpreter.executeInt(expr.getLhs(), frame);
+			int rhs = interpreter.executeInt(expr.getRhs(), frame);
+			return negated != (lhs == rhs);
+		}
+	}
+	
+	private static final class BoolEquality extends BinaryNode {
+		private final boolean negated;
+		
+		public BoolEquality(boolean negated) {
+			this.negated = negated;
+		}
+		
+		Object execute(Interpreter interpreter, Expr.Binary expr, Frame frame) {
+			return executeBool(interpreter, expr, frame);
+		}
+		
+		boolean executeBool(Interpreter interpreter, Expr.Binary expr, Frame frame) {
+			boolean lhs = interpreter.executeBool(expr.getLhs(), frame);
+			boolean rhs = interpreter.executeBool(expr.getRhs(), frame);
+			return negated != (lhs == rhs);
+		}
+	}
+	
+	/**
+	 * An equality test on operands expected to be of a given class. Should
+	 * either operand not be of this class, the expression is rewritten to use
+	 * the generic test (i.e. on operands of any class).
+	 */
+	private static final class Equality extends BinaryNode {
+		private final Class<?> kind;
+		private final boolean negated;
+		
+		public Equality(Class<?> kind, boolean negated) {
+			this.kind = kind;
+			this.negated = negated;
+		}
+		
+		Object execute(Interpreter interpreter, Expr.Binary expr, Frame frame) {
+			return executeBool(interpreter, expr, frame);
+		}
+		
+		boolean executeBool(Interpreter interpreter, Expr.Binary expr, Frame frame) {
+			Object lhs = interpreter.execute(expr.getLhs(), frame);
+			Object rhs = interpreter.execute(expr.getRhs(), frame);
+			if(kind != Object.class && (lhs.getClass() != kind || rhs.getClass() != kind)) {
+				// The guess was wrong, so deoptimise
+				expr.setNode(new Equality(Object.class, negated));
+			}
+			return negated != lhs.equals(rhs);
+		}
+	}
+	
+	/**
+	 * A frame which holds variable values in a flat array indexed by slot, as
+	 * determined by <code>SlotResolver</code>.
+	 */
+	private static final class SlotFrame extends Frame {
+		private final Object[] values;
+		
+		/**
+		 * The number of slots used by the function currently executing in
+		 * this frame.
+		 */
+		private int size;
+		
+		public SlotFrame(int size) {
+			this.values = new Object[size];
+		}
+		
+		public Object get(String name, int slot) {
+			return values[slot];
+		}
+
+		public void put(String name, int slot, Object value) {
+			values[slot] = value;
+		}
+	}
 }
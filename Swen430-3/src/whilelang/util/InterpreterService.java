@@ -0,0 +1,200 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+
+package whilelang.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import whilelang.ast.WhileFile;
+import whilelang.compiler.SlotResolver;
+
+/**
+ * <p>
+ * Executes many While programs concurrently on a fixed pool of threads. Each
+ * program is prepared once when it is first submitted (i.e. its variables are
+ * resolved to frame slots), after which its Abstract Syntax Tree is only read
+ * by executions and can be submitted any number of times. Every execution has
+ * its own <code>Interpreter</code>, and so its own frames, values and output.
+ * </p>
+ * <p>
+ * The caches which the interpreter attaches to the tree (e.g. the binding of
+ * each invocation) are immutable objects, filled in on first use. Should two
+ * executions fill in the same cache at once, both compute the same result and
+ * either may be kept.
+ * </p>
+ * 
+ */
+public class InterpreterService {
+	private final ExecutorService executor;
+
+	private long stepLimit = Long.MAX_VALUE;
+	private long memoryLimit = Long.MAX_VALUE;
+	private long timeLimit;
+
+	/**
+	 * Construct a service which executes at most a given number of programs
+	 * at once.
+	 * 
+	 * @param threads
+	 */
+	public InterpreterService(int threads) {
+		this.executor = Executors.newFixedThreadPool(threads);
+	}
+
+	/**
+	 * Limit the number of steps taken by each execution (see
+	 * <code>Interpreter.setStepLimit()</code>).
+	 * 
+	 * @param steps
+	 */
+	public void setStepLimit(long steps) {
+		this.stepLimit = steps;
+	}
+
+	/**
+	 * Limit the bytes allocated by each execution (see
+	 * <code>Interpreter.setMemoryLimit()</code>).
+	 * 
+	 * @param bytes
+	 */
+	public void setMemoryLimit(long bytes) {
+		this.memoryLimit = bytes;
+	}
+
+	/**
+	 * Limit the time taken by each execution, in milliseconds (see
+	 * <code>Interpreter.setTimeLimit()</code>).
+	 * 
+	 * @param millis
+	 */
+	public void setTimeLimit(long millis) {
+		this.timeLimit = millis;
+	}
+
+	/**
+	 * Submit a program for execution. Cancelling the returned future (with
+	 * interruption) stops the execution at its next check of its limits.
+	 * 
+	 * @param wf
+	 * @return
+	 */
+	public Future<Result> submit(final WhileFile wf) {
+		prepare(wf);
+		final Interpreter interpreter = new Interpreter();
+		interpreter.setSlotFrames(true);
+		interpreter.setStepLimit(stepLimit);
+		interpreter.setMemoryLimit(memoryLimit);
+		interpreter.setTimeLimit(timeLimit);
+		return executor.submit(new Callable<Result>() {
+			public Result call() {
+				ByteArrayOutputStream output = new ByteArrayOutputStream();
+				interpreter.setOutput(output);
+				long start = System.nanoTime();
+				RuntimeException failure = null;
+				try {
+					interpreter.run(wf);
+				} catch (RuntimeException e) {
+					failure = e;
+				}
+				return new Result(wf, decode(output), failure, System.nanoTime() - start);
+			}
+		});
+	}
+
+	/**
+	 * Stop accepting programs. Those already submitted are still executed.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Wait for every program submitted to finish executing, or be stopped,
+	 * after the service has been shut down.
+	 * 
+	 * @param millis
+	 *            The maximum time to wait, in milliseconds.
+	 * @return False if the time elapsed before every program finished.
+	 * @throws InterruptedException
+	 */
+	public boolean awaitTermination(long millis) throws InterruptedException {
+		return executor.awaitTermination(millis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Ensure every variable in a given program has been resolved to a frame
+	 * slot. This is done at most once per program, before any execution of
+	 * it begins.
+	 * 
+	 * @param wf
+	 */
+	private static void prepare(WhileFile wf) {
+		synchronized (wf) {
+			for (WhileFile.Decl decl : wf.declarations) {
+				if (decl instanceof WhileFile.MethodDecl && ((WhileFile.MethodDecl) decl).getFrameSize() < 0) {
+					new SlotResolver().resolve(wf);
+					return;
+				}
+			}
+		}
+	}
+
+	private static String decode(ByteArrayOutputStream output) {
+		try {
+			return output.toString("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * The outcome of executing a program.
+	 */
+	public static final class Result {
+		/**
+		 * The program which was executed.
+		 */
+		public final WhileFile file;
+		/**
+		 * Everything the program printed, including any output before it
+		 * failed.
+		 */
+		public final String output;
+		/**
+		 * The exception which stopped the program (e.g. an assertion failure,
+		 * or <code>LimitExceeded</code>), or null if it completed normally.
+		 */
+		public final RuntimeException failure;
+		/**
+		 * The time taken to execute the program, in nanoseconds.
+		 */
+		public final long time;
+
+		public Result(WhileFile file, String output, RuntimeException failure, long time) {
+			this.file = file;
+			this.output = output;
+			this.failure = failure;
+			this.time = time;
+		}
+	}
+}
@@ -0,0 +1,156 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * <p>
+ * A jump table for a switch statement whose case labels are all constants.
+ * This maps the value being switched on directly to the index of the case
+ * where execution begins, rather than comparing it against each label in
+ * turn.
+ * </p>
+ * <p>
+ * The semantics are exactly those of testing each case in order: execution
+ * begins at the first case which is either the default, or whose label equals
+ * the value. If there is no such case, execution begins after the last case
+ * (i.e. no case is executed). When all labels are <code>int</code> or
+ * <code>char</code> values within a small range, the table is a dense array
+ * indexed by the value. Otherwise, it is a hash table.
+ * </p>
+ * 
+ */
+public final class JumpTable {
+	/**
+	 * The index where execution begins for values which match no label.
+	 */
+	private final int defaultTarget;
+
+	/**
+	 * Maps each label to the index where execution begins for it, or null if
+	 * this table is dense.
+	 */
+	private final HashMap<Object, Integer> targets;
+
+	/**
+	 * The index where execution begins for each value from <code>low</code>
+	 * onwards, or null if this table is not dense.
+	 */
+	private final int[] dense;
+	private final int low;
+
+	/**
+	 * Indicates whether the labels of a dense table are <code>char</code>
+	 * (rather than <code>int</code>) values.
+	 */
+	private final boolean chars;
+
+	/**
+	 * Construct a jump table from the labels of each case, in order.
+	 * 
+	 * @param labels
+	 *            The constant label of each case, or null for the default
+	 *            case.
+	 */
+	public JumpTable(List<Object> labels) {
+		int defaultTarget = labels.size();
+		for (int i = 0; i != labels.size(); ++i) {
+			if (labels.get(i) == null) {
+				defaultTarget = i;
+				break;
+			}
+		}
+		this.defaultTarget = defaultTarget;
+
+		// Determine the range of the labels, if they are all int or all char
+		// values.
+		boolean ints = true, chars = true;
+		int low = Integer.MAX_VALUE, high = Integer.MIN_VALUE, count = 0;
+		for (int i = 0; i < defaultTarget; ++i) {
+			Object label = labels.get(i);
+			int value;
+			if (label instanceof Integer) {
+				value = (Integer) label;
+				chars = false;
+			} else if (label instanceof Character) {
+				value = (Character) label;
+				ints = false;
+			} else {
+				ints = chars = false;
+				break;
+			}
+			low = Math.min(low, value);
+			high = Math.max(high, value);
+			count++;
+		}
+
+		// Labels after the default are unreachable, and so are ignored.
+		long range = (long) high - low + 1;
+		if ((ints || chars) && count > 0 && range <= Math.max(16, 3L * count)) {
+			this.dense = new int[(int) range];
+			Arrays.fill(dense, defaultTarget);
+			for (int i = defaultTarget - 1; i >= 0; --i) {
+				// Iterate backwards, so that earlier cases take precedence
+				Object label = labels.get(i);
+				int value = label instanceof Integer ? (Integer) label : (Character) label;
+				dense[value - low] = i;
+			}
+			this.low = low;
+			this.chars = chars && !ints;
+			this.targets = null;
+		} else {
+			this.targets = new HashMap<Object, Integer>();
+			for (int i = defaultTarget - 1; i >= 0; --i) {
+				targets.put(labels.get(i), i);
+			}
+			this.dense = null;
+			this.low = 0;
+			this.chars = false;
+		}
+	}
+
+	/**
+	 * Determine the index of the case where execution begins for a given
+	 * value. This equals the number of cases if no case is executed.
+	 * 
+	 * @param value
+	 * @return
+	 */
+	public int lookup(Object value) {
+		if (dense != null) {
+			int v;
+			if (!chars && value instanceof Integer) {
+				v = (Integer) value;
+			} else if (chars && value instanceof Character) {
+				v = (Character) value;
+			} else {
+				return defaultTarget;
+			}
+			int offset = v - low;
+			if (offset >= 0 && offset < dense.length) {
+				return dense[offset];
+			}
+			return defaultTarget;
+		} else {
+			Integer target = targets.get(value);
+			return target == null ? defaultTarget : target;
+		}
+	}
+}
@@ -0,0 +1,82 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+
+package whilelang.util;
+
+import whilelang.ast.Attribute;
+
+/**
+ * Thrown when the execution of a program exceeds one of the limits placed on
+ * it (see <code>Interpreter.setStepLimit()</code>, etc), or is cancelled. As
+ * for a syntax error, this identifies the point in the source file where
+ * execution was stopped (e.g. the loop which was iterating).
+ * 
+ */
+public class LimitExceeded extends SyntaxError {
+	/**
+	 * The kinds of limit which can be exceeded.
+	 */
+	public enum Limit {
+		/**
+		 * The number of loop iterations and calls executed.
+		 */
+		STEPS,
+		/**
+		 * The (approximate) number of bytes allocated for arrays and records.
+		 */
+		MEMORY,
+		/**
+		 * The time elapsed since execution began.
+		 */
+		TIME,
+		/**
+		 * Execution was cancelled.
+		 */
+		CANCELLED
+	}
+
+	private final Limit limit;
+
+	public LimitExceeded(Limit limit, String msg, String filename, int start, int end) {
+		super(msg, filename, start, end);
+		this.limit = limit;
+	}
+
+	/**
+	 * Get the limit which was exceeded.
+	 * 
+	 * @return
+	 */
+	public Limit limit() {
+		return limit;
+	}
+
+	public static void limitExceeded(Limit limit, String msg, String filename, SyntacticElement elem) {
+		int start = -1;
+		int end = -1;
+
+		Attribute.Source attr = elem.attribute(Attribute.Source.class);
+		if (attr != null) {
+			start = attr.start;
+			end = attr.end;
+		}
+
+		throw new LimitExceeded(limit, msg, filename, start, end);
+	}
+
+	public static final long serialVersionUID = 1l;
+}
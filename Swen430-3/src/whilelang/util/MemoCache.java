@@ -0,0 +1,257 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.util;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import whilelang.ast.WhileFile;
+
+/**
+ * <p>
+ * A bounded cache of the results of calls to pure methods (see
+ * <code>whilelang.compiler.PurityAnalysis</code>), keyed on the method called
+ * and the values of its arguments. Arguments are compared structurally, so a
+ * call with an array or record argument hits the cache whenever an equal
+ * array or record was passed before. Once the cache is full, the least
+ * recently used entry is evicted to make room for a new one.
+ * </p>
+ * <p>
+ * Not every pure method is worth caching. For example, a method which is
+ * cheap to execute, or is rarely called twice with the same arguments, would
+ * only evict more useful entries. Therefore, each method is given a trial of
+ * <code>TRIAL_LOOKUPS</code> lookups, after which it is no longer admitted to
+ * the cache if fewer than one in <code>MIN_HIT_RATIO</code> of them hit.
+ * </p>
+ * <p>
+ * The cache is a holder of every argument and result it stores, in the sense
+ * of <code>Interpreter.share()</code>, and so these cannot be modified by the
+ * program after being stored. A cache is not thread-safe, and should be used
+ * by at most one interpreter at a time.
+ * </p>
+ *
+ */
+public final class MemoCache {
+	private final int capacity;
+	private final LinkedHashMap<Key, Object> entries;
+	private final IdentityHashMap<WhileFile.MethodDecl, Trial> trials = new IdentityHashMap<WhileFile.MethodDecl, Trial>();
+
+	private static final int TRIAL_LOOKUPS = 1024;
+	private static final int MIN_HIT_RATIO = 8;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * Construct a cache holding at most a given number of results.
+	 *
+	 * @param capacity
+	 */
+	public MemoCache(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("invalid cache capacity (" + capacity + ")");
+		}
+		this.capacity = capacity;
+		this.entries = new LinkedHashMap<Key, Object>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+				if (size() > MemoCache.this.capacity) {
+					evictions++;
+					release(eldest.getKey(), eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Determine whether calls to a given method should be looked up in (and
+	 * stored in) this cache. This is the case unless the method has failed
+	 * its trial.
+	 *
+	 * @param method
+	 * @return
+	 */
+	public boolean admits(WhileFile.MethodDecl method) {
+		Trial trial = trials.get(method);
+		return trial == null || !trial.rejected;
+	}
+
+	/**
+	 * Look up the result of a previous call to a given method with the given
+	 * arguments, returning null if there is none.
+	 *
+	 * @param method
+	 * @param arguments
+	 * @return
+	 */
+	public Object get(WhileFile.MethodDecl method, Object[] arguments) {
+		Object result = entries.get(new Key(method, arguments));
+		Trial trial = trials.get(method);
+		if (trial == null) {
+			trial = new Trial();
+			trials.put(method, trial);
+		}
+		if (result != null) {
+			hits++;
+			trial.hits++;
+		} else {
+			misses++;
+		}
+		if (++trial.lookups == TRIAL_LOOKUPS && trial.hits * MIN_HIT_RATIO < TRIAL_LOOKUPS) {
+			trial.rejected = true;
+		}
+		return result;
+	}
+
+	/**
+	 * Store the result of a call to a given method with the given arguments.
+	 * The result becomes held by this cache, whilst the arguments must already
+	 * have been shared on its behalf (i.e. before the call was made, so that
+	 * the callee could not write to them).
+	 *
+	 * @param method
+	 * @param arguments
+	 * @param result
+	 */
+	public void put(WhileFile.MethodDecl method, Object[] arguments, Object result) {
+		Key key = new Key(method, arguments);
+		Object old = entries.put(key, Interpreter.share(result));
+		if (old != null) {
+			// Cannot normally happen, since a hit avoids the call altogether
+			release(key, old);
+		}
+	}
+
+	/**
+	 * Remove every entry from this cache. The hit, miss and eviction counts
+	 * are unaffected.
+	 */
+	public void clear() {
+		Iterator<Map.Entry<Key, Object>> i = entries.entrySet().iterator();
+		while (i.hasNext()) {
+			Map.Entry<Key, Object> e = i.next();
+			release(e.getKey(), e.getValue());
+			i.remove();
+		}
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Get the number of lookups which found a result.
+	 *
+	 * @return
+	 */
+	public long hits() {
+		return hits;
+	}
+
+	/**
+	 * Get the number of lookups which found no result.
+	 *
+	 * @return
+	 */
+	public long misses() {
+		return misses;
+	}
+
+	/**
+	 * Get the number of entries evicted to make room for others.
+	 *
+	 * @return
+	 */
+	public long evictions() {
+		return evictions;
+	}
+
+	/**
+	 * Get the number of methods which have failed their trial, and are no
+	 * longer admitted to this cache.
+	 *
+	 * @return
+	 */
+	public int rejections() {
+		int count = 0;
+		for (Trial trial : trials.values()) {
+			if (trial.rejected) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public String toString() {
+		return "hits: " + hits + ", misses: " + misses + ", evictions: " + evictions + ", size: "
+				+ entries.size() + "/" + capacity + ", rejections: " + rejections();
+	}
+
+	private static void release(Key key, Object result) {
+		for (Object o : key.arguments) {
+			Interpreter.release(o);
+		}
+		Interpreter.release(result);
+	}
+
+	/**
+	 * The lookups made so far for a given method.
+	 */
+	private static final class Trial {
+		private int lookups;
+		private int hits;
+		private boolean rejected;
+	}
+
+	/**
+	 * Identifies a call by the method called (compared by identity) and the
+	 * values of its arguments (compared structurally). The hash code is
+	 * computed once, since hashing an array argument visits every element.
+	 */
+	private static final class Key {
+		private final WhileFile.MethodDecl method;
+		private final Object[] arguments;
+		private final int hash;
+
+		public Key(WhileFile.MethodDecl method, Object[] arguments) {
+			this.method = method;
+			this.arguments = arguments;
+			this.hash = System.identityHashCode(method) * 31 + Arrays.hashCode(arguments);
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		public boolean equals(Object o) {
+			if (o instanceof Key) {
+				Key k = (Key) o;
+				return method == k.method && hash == k.hash && Arrays.equals(arguments, k.arguments);
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,193 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+
+package whilelang.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * A buffered sink for the output of <code>print</code> statements. Values are
+ * written directly into a reusable byte buffer, without building an
+ * intermediate string. The buffer is written to the underlying stream only
+ * when it is full, or when explicitly flushed, and so printing many small
+ * values costs few writes.
+ * </p>
+ * <p>
+ * Characters are encoded as UTF-8. Output is not visible on the underlying
+ * stream until <code>flush()</code> is called, which execution engines do
+ * once a program has finished (whether normally or not).
+ * </p>
+ * 
+ */
+public final class PrintBuffer {
+	private static final int DEFAULT_CAPACITY = 64 * 1024;
+
+	private final OutputStream out;
+	private final byte[] buffer;
+	private int length;
+
+	public PrintBuffer(OutputStream out) {
+		this(out, DEFAULT_CAPACITY);
+	}
+
+	public PrintBuffer(OutputStream out, int capacity) {
+		this.out = out;
+		this.buffer = new byte[Math.max(capacity, 32)];
+	}
+
+	/**
+	 * Write a given value, followed by a newline.
+	 * 
+	 * @param value
+	 */
+	public void println(Object value) {
+		print(value);
+		write('\n');
+	}
+
+	/**
+	 * Write a newline.
+	 */
+	public void println() {
+		write('\n');
+	}
+
+	/**
+	 * Write a given value. Arrays are written as <code>[1, 2, 3]</code>, and
+	 * records as <code>{x:1,y:2}</code> with their fields in sorted order.
+	 * 
+	 * @param value
+	 */
+	public void print(Object value) {
+		if (value instanceof Integer) {
+			print(((Integer) value).intValue());
+		} else if (value instanceof Character) {
+			print(((Character) value).charValue());
+		} else if (value instanceof String) {
+			print((String) value);
+		} else if (value instanceof List) {
+			List<?> l = (List<?>) value;
+			write('[');
+			for (int i = 0; i != l.size(); ++i) {
+				if (i != 0) {
+					write(',');
+					write(' ');
+				}
+				print(l.get(i));
+			}
+			write(']');
+		} else if (value instanceof Map) {
+			Map<?, ?> m = (Map<?, ?>) value;
+			ArrayList<String> fields = new ArrayList<String>();
+			for (Object field : m.keySet()) {
+				fields.add((String) field);
+			}
+			Collections.sort(fields);
+			write('{');
+			for (int i = 0; i != fields.size(); ++i) {
+				if (i != 0) {
+					write(',');
+				}
+				print(fields.get(i));
+				write(':');
+				print(m.get(fields.get(i)));
+			}
+			write('}');
+		} else {
+			print(String.valueOf(value));
+		}
+	}
+
+	/**
+	 * Write the decimal representation of a given integer.
+	 * 
+	 * @param value
+	 */
+	public void print(int value) {
+		if (buffer.length - length < 11) {
+			flush();
+		}
+		long v = value;
+		if (v < 0) {
+			buffer[length++] = '-';
+			v = -v;
+		}
+		// Determine the number of digits, then write them from the last
+		int end = length;
+		for (long t = v; t >= 10; t /= 10) {
+			end++;
+		}
+		int i = end;
+		do {
+			buffer[i--] = (byte) ('0' + (v % 10));
+			v /= 10;
+		} while (v != 0);
+		length = end + 1;
+	}
+
+	public void print(boolean value) {
+		print(value ? "true" : "false");
+	}
+
+	public void print(char value) {
+		if (buffer.length - length < 3) {
+			flush();
+		}
+		if (value < 0x80) {
+			buffer[length++] = (byte) value;
+		} else if (value < 0x800) {
+			buffer[length++] = (byte) (0xC0 | (value >> 6));
+			buffer[length++] = (byte) (0x80 | (value & 0x3F));
+		} else {
+			buffer[length++] = (byte) (0xE0 | (value >> 12));
+			buffer[length++] = (byte) (0x80 | ((value >> 6) & 0x3F));
+			buffer[length++] = (byte) (0x80 | (value & 0x3F));
+		}
+	}
+
+	public void print(String value) {
+		for (int i = 0; i != value.length(); ++i) {
+			print(value.charAt(i));
+		}
+	}
+
+	private void write(char c) {
+		if (length == buffer.length) {
+			flush();
+		}
+		buffer[length++] = (byte) c;
+	}
+
+	/**
+	 * Write any buffered output to the underlying stream.
+	 */
+	public void flush() {
+		try {
+			out.write(buffer, 0, length);
+			out.flush();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		length = 0;
+	}
+}
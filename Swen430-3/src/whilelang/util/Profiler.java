@@ -0,0 +1,488 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+
+package whilelang.util;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import whilelang.ast.Attribute;
+
+/**
+ * <p>
+ * Records where time is spent whilst executing a While program. An execution
+ * engine reports each call (<code>enter()</code> and <code>exit()</code>) and
+ * each statement executed (<code>statement()</code>), where a statement is
+ * identified by the start of its source (see <code>Attribute.Source</code>).
+ * Every iteration of a loop is reported as an execution of the loop itself.
+ * </p>
+ * <p>
+ * In <i>instrumenting</i> mode, every call is timed, and every statement
+ * counted. In <i>sampling</i> mode, the engine merely records its current
+ * position, and a separate thread periodically samples it. The position is
+ * read without synchronisation, so a sample may occasionally be attributed to
+ * a slightly earlier position than the current one; in exchange, reporting a
+ * statement costs a single write.
+ * </p>
+ * <p>
+ * Calls are recorded in a call tree, from which a collapsed stack file (as
+ * used by <code>flamegraph.pl</code>) can be written, along with a report of
+ * the hottest lines in the source file.
+ * </p>
+ * 
+ */
+public final class Profiler {
+	public enum Mode {
+		INSTRUMENT, SAMPLE
+	}
+
+	/**
+	 * The profiler to which code generated by <code>ClassFileWriter</code>
+	 * reports, if any (see <code>methodEntry()</code>, etc).
+	 */
+	private static volatile Profiler installed;
+
+	private final Mode mode;
+	private final int interval;
+
+	/**
+	 * The root of the call tree, and the node of the method currently
+	 * executing. When instrumenting, each node's weight is the time (in
+	 * nanoseconds) spent in that node, excluding its callees; when sampling,
+	 * it is the number of samples taken in that node.
+	 */
+	private final Node root = new Node(null, null);
+	private Node current = root;
+
+	/**
+	 * The statement currently executing, given either as an element or as the
+	 * start of its source (or -1 if none).
+	 */
+	private SyntacticElement element;
+	private int position = -1;
+
+	/**
+	 * The executions (when instrumenting) or samples (when sampling) of the
+	 * statement starting at each source position.
+	 */
+	private long[] counts = new long[1024];
+
+	private String filename;
+	private Thread sampler;
+	private volatile boolean running;
+
+	/**
+	 * Construct a profiler which instruments every call and statement.
+	 */
+	public Profiler() {
+		this(Mode.INSTRUMENT, 0);
+	}
+
+	/**
+	 * Construct a profiler in a given mode. When sampling, a sample is taken
+	 * every given number of microseconds.
+	 * 
+	 * @param mode
+	 * @param interval
+	 */
+	public Profiler(Mode mode, int interval) {
+		this.mode = mode;
+		this.interval = interval;
+	}
+
+	/**
+	 * Begin profiling the execution of a given source file.
+	 * 
+	 * @param filename
+	 */
+	public void start(String filename) {
+		this.filename = filename;
+		this.running = true;
+		if (mode == Mode.SAMPLE) {
+			sampler = new Thread("profiler") {
+				public void run() {
+					sample();
+				}
+			};
+			sampler.setDaemon(true);
+			sampler.start();
+		}
+	}
+
+	/**
+	 * Finish profiling. Results may only be written once this is called.
+	 */
+	public void stop() {
+		running = false;
+		if (sampler != null) {
+			try {
+				sampler.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			sampler = null;
+		}
+		// Account for any calls which did not return (e.g. because of a
+		// failed assertion)
+		while (current != root) {
+			exit();
+		}
+	}
+
+	/**
+	 * Record entry to a given method.
+	 * 
+	 * @param method
+	 */
+	public void enter(String method) {
+		Node node = current.child(method);
+		node.calls++;
+		if (mode == Mode.INSTRUMENT) {
+			long now = System.nanoTime();
+			node.entered = now;
+			node.childTime = 0;
+		}
+		current = node;
+	}
+
+	/**
+	 * Record exit from the method most recently entered.
+	 */
+	public void exit() {
+		Node node = current;
+		if (mode == Mode.INSTRUMENT) {
+			long time = System.nanoTime() - node.entered;
+			node.totalTime += time;
+			node.weight += time - node.childTime;
+			node.parent.childTime += time;
+		}
+		current = node.parent;
+	}
+
+	/**
+	 * Record the execution of the statement starting at a given source
+	 * position.
+	 * 
+	 * @param start
+	 */
+	public void statement(int start) {
+		if (start < 0) {
+			return;
+		} else if (mode == Mode.INSTRUMENT) {
+			if (start >= counts.length) {
+				counts = Arrays.copyOf(counts, Math.max(start + 1, counts.length * 2));
+			}
+			counts[start]++;
+		} else {
+			element = null;
+			position = start;
+		}
+	}
+
+	/**
+	 * Record the execution of a given statement. When sampling, the start of
+	 * its source is only determined if it is sampled.
+	 * 
+	 * @param stmt
+	 */
+	public void statement(SyntacticElement stmt) {
+		if (mode == Mode.INSTRUMENT) {
+			statement(startOf(stmt));
+		} else {
+			element = stmt;
+		}
+	}
+
+	/**
+	 * The body of the sampling thread.
+	 */
+	private void sample() {
+		long[] samples = new long[counts.length];
+		while (running) {
+			Node node = current;
+			SyntacticElement stmt = element;
+			int start = stmt != null ? startOf(stmt) : position;
+			node.weight++;
+			if (start >= 0) {
+				if (start >= samples.length) {
+					samples = Arrays.copyOf(samples, Math.max(start + 1, samples.length * 2));
+				}
+				samples[start]++;
+			}
+			try {
+				Thread.sleep(interval / 1000, (interval % 1000) * 1000);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		counts = samples;
+	}
+
+	// =========================================================================
+	// Generated Code
+	// =========================================================================
+
+	/**
+	 * Install a profiler to which compiled code reports. Null uninstalls the
+	 * current profiler.
+	 * 
+	 * @param profiler
+	 */
+	public static void install(Profiler profiler) {
+		installed = profiler;
+	}
+
+	public static void methodEntry(String method) {
+		Profiler p = installed;
+		if (p != null) {
+			p.enter(method);
+		}
+	}
+
+	public static void methodExit() {
+		Profiler p = installed;
+		if (p != null) {
+			p.exit();
+		}
+	}
+
+	public static void statementAt(int start) {
+		Profiler p = installed;
+		if (p != null) {
+			p.statement(start);
+		}
+	}
+
+	// =========================================================================
+	// Reports
+	// =========================================================================
+
+	/**
+	 * Write the call tree in the collapsed stack format, where each line gives
+	 * a sequence of method names separated by semi-colons, followed by the
+	 * time in microseconds (when instrumenting) or samples (when sampling)
+	 * spent in the last of them.
+	 * 
+	 * @param out
+	 */
+	public void writeCollapsedStacks(PrintStream out) {
+		writeCollapsedStacks(root, "", out);
+	}
+
+	private void writeCollapsedStacks(Node node, String prefix, PrintStream out) {
+		for (Node child : node.children.values()) {
+			String stack = prefix.equals("") ? child.name : prefix + ";" + child.name;
+			long weight = mode == Mode.INSTRUMENT ? child.weight / 1000 : child.weight;
+			if (weight > 0) {
+				out.println(stack + " " + weight);
+			}
+			writeCollapsedStacks(child, stack, out);
+		}
+	}
+
+	/**
+	 * Write a report giving the calls to, and time spent in, each method
+	 * (when instrumenting), followed by the lines of the source file which
+	 * were executed (or sampled) most often.
+	 * 
+	 * @param out
+	 * @param lines
+	 *            The maximum number of lines to report.
+	 */
+	public void writeHotSpots(PrintStream out, int lines) {
+		if (mode == Mode.INSTRUMENT) {
+			out.println("Methods (calls, total ms, self ms):");
+			final HashMap<String, long[]> methods = new HashMap<String, long[]>();
+			summarise(root, methods);
+			ArrayList<String> names = new ArrayList<String>(methods.keySet());
+			Collections.sort(names, new Comparator<String>() {
+				public int compare(String a, String b) {
+					return compareDescending(methods.get(a)[2], methods.get(b)[2]);
+				}
+			});
+			for (String name : names) {
+				long[] m = methods.get(name);
+				out.printf("  %-24s %12d %12.3f %12.3f%n", name, m[0], m[1] / 1e6, m[2] / 1e6);
+			}
+			out.println("Lines (executions):");
+		} else {
+			out.println("Lines (samples):");
+		}
+		String text = readSource();
+		// Sum the counts of all statements starting on each line
+		int[] lineStarts = lineStarts(text);
+		long[] lineCounts = new long[lineStarts.length];
+		long total = 0;
+		for (int i = 0; i < counts.length; ++i) {
+			if (counts[i] != 0) {
+				int line = Arrays.binarySearch(lineStarts, i);
+				line = line >= 0 ? line : -line - 2;
+				lineCounts[line] += counts[i];
+				total += counts[i];
+			}
+		}
+		ArrayList<Integer> hot = new ArrayList<Integer>();
+		for (int i = 0; i != lineCounts.length; ++i) {
+			if (lineCounts[i] != 0) {
+				hot.add(i);
+			}
+		}
+		final long[] lc = lineCounts;
+		Collections.sort(hot, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return compareDescending(lc[a], lc[b]);
+			}
+		});
+		for (int i = 0; i < hot.size() && i < lines; ++i) {
+			int line = hot.get(i);
+			int end = line + 1 < lineStarts.length ? lineStarts[line + 1] : text.length();
+			String source = text.substring(lineStarts[line], end).trim();
+			out.printf("  %12d %6.2f%%  %s:%d  %s%n", lc[line], (100.0 * lc[line]) / total, filename, line + 1,
+					source);
+		}
+	}
+
+	/**
+	 * Compute the calls to, total time in and self time in each method,
+	 * summed over every node of the call tree where it appears. The total
+	 * time only counts the outermost call when a method is (indirectly)
+	 * reentered.
+	 * 
+	 * @param node
+	 * @param methods
+	 */
+	private void summarise(Node node, Map<String, long[]> methods) {
+		for (Node child : node.children.values()) {
+			long[] m = methods.get(child.name);
+			if (m == null) {
+				m = new long[3];
+				methods.put(child.name, m);
+			}
+			m[0] += child.calls;
+			if (!onStack(node, child.name)) {
+				m[1] += child.totalTime;
+			}
+			m[2] += child.weight;
+			summarise(child, methods);
+		}
+	}
+
+	private static int compareDescending(long a, long b) {
+		return a > b ? -1 : (a == b ? 0 : 1);
+	}
+
+	private static boolean onStack(Node node, String name) {
+		for (; node != null && node.name != null; node = node.parent) {
+			if (node.name.equals(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private String readSource() {
+		StringBuilder text = new StringBuilder();
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(filename), "UTF-8"));
+			try {
+				char[] buf = new char[1024];
+				int len;
+				while ((len = in.read(buf)) != -1) {
+					text.append(buf, 0, len);
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// Report positions without source text
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Determine the position at which each line of a given text starts.
+	 * 
+	 * @param text
+	 * @return
+	 */
+	private int[] lineStarts(String text) {
+		ArrayList<Integer> starts = new ArrayList<Integer>();
+		starts.add(0);
+		for (int i = 0; i != text.length(); ++i) {
+			if (text.charAt(i) == '\n') {
+				starts.add(i + 1);
+			}
+		}
+		// Positions beyond the text (e.g. if it could not be read) are all
+		// attributed to its last line
+		int[] r = new int[starts.size()];
+		for (int i = 0; i != r.length; ++i) {
+			r[i] = starts.get(i);
+		}
+		return r;
+	}
+
+	/**
+	 * Determine the start of a given element's source, or -1 if it has none.
+	 * 
+	 * @param element
+	 * @return
+	 */
+	public static int startOf(SyntacticElement element) {
+		Attribute.Source attr = element.attribute(Attribute.Source.class);
+		return attr == null ? -1 : attr.start;
+	}
+
+	/**
+	 * A node in the call tree, representing the calls to a particular method
+	 * from a particular chain of callers.
+	 */
+	private static final class Node {
+		final String name;
+		final Node parent;
+		final HashMap<String, Node> children = new HashMap<String, Node>();
+		long calls;
+		long weight;
+		long totalTime;
+		long entered;
+		long childTime;
+
+		Node(String name, Node parent) {
+			this.name = name;
+			this.parent = parent;
+		}
+
+		Node child(String name) {
+			Node child = children.get(name);
+			if (child == null) {
+				child = new Node(name, this);
+				children.put(name, child);
+			}
+			return child;
+		}
+	}
+}
@@ -0,0 +1,105 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Describes the layout of a record value, which is the sequence of its field
+ * names. A record holds the value of each field at that field's offset in the
+ * layout. Layouts are shared between all records with the same fields (in the
+ * same order), and so records need not carry their own field names.
+ * 
+ */
+public final class RecordLayout {
+	private static final HashMap<List<String>, RecordLayout> layouts = new HashMap<List<String>, RecordLayout>();
+
+	private final String[] fields;
+
+	private RecordLayout(String[] fields) {
+		this.fields = fields;
+	}
+
+	/**
+	 * Get the layout for records with the given fields, in the given order.
+	 * 
+	 * @param fields
+	 * @return
+	 */
+	public static synchronized RecordLayout get(String... fields) {
+		List<String> key = Arrays.asList(fields.clone());
+		RecordLayout layout = layouts.get(key);
+		if (layout == null) {
+			layout = new RecordLayout(fields.clone());
+			layouts.put(key, layout);
+		}
+		return layout;
+	}
+
+	/**
+	 * Get the number of fields in this layout.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		return fields.length;
+	}
+
+	/**
+	 * Get the name of the field at a given offset.
+	 * 
+	 * @param offset
+	 * @return
+	 */
+	public String getField(int offset) {
+		return fields[offset];
+	}
+
+	/**
+	 * Determine the offset of a given field, or -1 if there is no such field.
+	 * 
+	 * @param field
+	 * @return
+	 */
+	public int offsetOf(String field) {
+		for (int i = 0; i != fields.length; ++i) {
+			if (fields[i].equals(field)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public String toString() {
+		return Arrays.toString(fields);
+	}
+
+	/**
+	 * The offset of a particular field within a particular layout.
+	 */
+	public static final class Offset {
+		public final RecordLayout layout;
+		public final int offset;
+
+		public Offset(RecordLayout layout, int offset) {
+			this.layout = layout;
+			this.offset = offset;
+		}
+	}
+}
@@ -0,0 +1,200 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * <p>
+ * A record value used by the <code>Interpreter</code>. The value of each field
+ * is held at a fixed offset, as determined by the record's
+ * <code>RecordLayout</code>. Fields can still be accessed by name, and every
+ * record is a <code>Map</code> from field names to values. Thus, records with
+ * the same fields are equal regardless of their layout.
+ * </p>
+ * <p>
+ * Like <code>ArrayValue</code>, record values are reference counted so that
+ * they are only copied when a shared record is about to be written.
+ * </p>
+ * 
+ */
+public final class RecordValue extends AbstractMap<String, Object> {
+	private final RecordLayout layout;
+	private final Object[] values;
+
+	/**
+	 * The number of variables, arrays and records currently holding this
+	 * value. This may overestimate the true number, but must never
+	 * underestimate it.
+	 */
+	private int references;
+
+	public RecordValue(RecordLayout layout) {
+		this.layout = layout;
+		this.values = new Object[layout.size()];
+	}
+
+	public RecordLayout getLayout() {
+		return layout;
+	}
+
+	/**
+	 * Get the value of the field at a given offset.
+	 * 
+	 * @param offset
+	 * @return
+	 */
+	public Object get(int offset) {
+		return values[offset];
+	}
+
+	/**
+	 * Set the value of the field at a given offset, returning its previous
+	 * value.
+	 * 
+	 * @param offset
+	 * @param value
+	 * @return
+	 */
+	public Object set(int offset, Object value) {
+		Object old = values[offset];
+		values[offset] = value;
+		return old;
+	}
+
+	public Object get(Object field) {
+		int offset = field instanceof String ? layout.offsetOf((String) field) : -1;
+		return offset < 0 ? null : values[offset];
+	}
+
+	public boolean containsKey(Object field) {
+		return field instanceof String && layout.offsetOf((String) field) >= 0;
+	}
+
+	/**
+	 * Set the value of a given field. The field must be part of this record's
+	 * layout.
+	 */
+	public Object put(String field, Object value) {
+		int offset = layout.offsetOf(field);
+		if (offset < 0) {
+			throw new IllegalArgumentException("unknown field " + field + " in record " + layout);
+		}
+		return set(offset, value);
+	}
+
+	public int size() {
+		return values.length;
+	}
+
+	public Set<Map.Entry<String, Object>> entrySet() {
+		return new AbstractSet<Map.Entry<String, Object>>() {
+			public int size() {
+				return values.length;
+			}
+
+			public Iterator<Map.Entry<String, Object>> iterator() {
+				return new Iterator<Map.Entry<String, Object>>() {
+					private int offset = 0;
+
+					public boolean hasNext() {
+						return offset < values.length;
+					}
+
+					public Map.Entry<String, Object> next() {
+						if (offset >= values.length) {
+							throw new NoSuchElementException();
+						}
+						Map.Entry<String, Object> e = new AbstractMap.SimpleImmutableEntry<String, Object>(
+								layout.getField(offset), values[offset]);
+						offset++;
+						return e;
+					}
+
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	public boolean equals(Object o) {
+		if (o instanceof RecordValue && ((RecordValue) o).layout == layout) {
+			return Arrays.equals(values, ((RecordValue) o).values);
+		}
+		return super.equals(o);
+	}
+
+	public int hashCode() {
+		return super.hashCode();
+	}
+
+	/**
+	 * Record that this value has acquired another holder.
+	 * 
+	 * @return
+	 */
+	public RecordValue share() {
+		references++;
+		return this;
+	}
+
+	/**
+	 * Record that this value has lost one of its holders.
+	 */
+	public void release() {
+		references--;
+	}
+
+	/**
+	 * Determine whether this value has more than one holder, in which case
+	 * <code>unshare()</code> will make a copy.
+	 * 
+	 * @return
+	 */
+	public boolean isShared() {
+		return references > 1;
+	}
+
+	/**
+	 * Obtain a version of this value which can be written by one particular
+	 * holder without affecting any others. If that holder is the only one,
+	 * this value is returned as is. Otherwise, the holder is moved to a fresh
+	 * copy, which shares the fields of this value.
+	 * 
+	 * @return
+	 */
+	public RecordValue unshare() {
+		if (references <= 1) {
+			return this;
+		}
+		RecordValue copy = new RecordValue(layout);
+		for (int i = 0; i != values.length; ++i) {
+			copy.values[i] = Interpreter.share(values[i]);
+		}
+		copy.references = 1;
+		references--;
+		return copy;
+	}
+}
@@ -0,0 +1,85 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.vm;
+
+/**
+ * A function compiled into the register-based bytecode described by
+ * <code>Opcodes</code>. Each parameter is passed in a fixed register of the
+ * appropriate bank, and the function's result (if any) is returned in the bank
+ * given by its return kind.
+ *
+ */
+public final class Function {
+	/**
+	 * Identifies a value held in the int bank of registers.
+	 */
+	public static final int INT = 0;
+	/**
+	 * Identifies a value held in the object bank of registers.
+	 */
+	public static final int OBJECT = 1;
+	/**
+	 * Identifies the absence of a value (i.e. a void return).
+	 */
+	public static final int VOID = 2;
+
+	public final String name;
+	public final int[] code;
+	public final Object[] constants;
+	public final int intRegisters;
+	public final int objectRegisters;
+	/**
+	 * The kind (<code>INT</code> or <code>OBJECT</code>) of each parameter.
+	 */
+	public final int[] parameterKinds;
+	/**
+	 * The register (in the bank determined by its kind) which receives each
+	 * parameter.
+	 */
+	public final int[] parameterRegisters;
+	public final int returnKind;
+
+	public Function(String name, int[] code, Object[] constants, int intRegisters, int objectRegisters,
+			int[] parameterKinds, int[] parameterRegisters, int returnKind) {
+		this.name = name;
+		this.code = code;
+		this.constants = constants;
+		this.intRegisters = intRegisters;
+		this.objectRegisters = objectRegisters;
+		this.parameterKinds = parameterKinds;
+		this.parameterRegisters = parameterRegisters;
+		this.returnKind = returnKind;
+	}
+
+	/**
+	 * Produce a human-readable listing of this function's bytecode.
+	 */
+	public String toString() {
+		StringBuilder r = new StringBuilder();
+		r.append(name).append(" (int registers: ").append(intRegisters).append(", object registers: ")
+				.append(objectRegisters).append(")\n");
+		for (int pc = 0; pc < code.length; pc += Opcodes.length(code, pc)) {
+			r.append(String.format("%5d: %-10s", pc, Opcodes.NAMES[code[pc]]));
+			int end = pc + Opcodes.length(code, pc);
+			for (int i = pc + 1; i < end; ++i) {
+				r.append(' ').append(code[i]);
+			}
+			r.append('\n');
+		}
+		return r.toString();
+	}
+}
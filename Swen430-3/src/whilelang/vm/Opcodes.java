@@ -0,0 +1,145 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.vm;
+
+/**
+ * <p>
+ * Defines the instruction set of the register-based virtual machine. Each
+ * instruction is encoded as a sequence of <code>int</code>s, beginning with its
+ * opcode and followed by its operands. Every function has two banks of
+ * registers: the <i>int bank</i>, which holds <code>int</code>,
+ * <code>bool</code> and <code>char</code> values unboxed (with
+ * <code>true</code> as 1 and <code>false</code> as 0); and the <i>object
+ * bank</i>, which holds everything else (i.e. strings, arrays and records).
+ * </p>
+ * <p>
+ * In the descriptions below, <code>i</code> operands name an int register,
+ * <code>o</code> operands an object register, <code>k</code> operands an index
+ * into the function's constant pool, <code>n</code> operands an immediate
+ * value, and <code>L</code> operands a jump offset relative to the start of the
+ * instruction.
+ * </p>
+ *
+ */
+public final class Opcodes {
+	// Moves and constants
+	public static final int ICONST = 0;   // i := n
+	public static final int OCONST = 1;   // o := k
+	public static final int IMOVE = 2;    // i1 := i2
+	public static final int OMOVE = 3;    // o1 := o2
+	public static final int OCLONE = 4;   // o1 := deep clone of o2
+
+	// Arithmetic
+	public static final int IADD = 5;     // i1 := i2 + i3
+	public static final int ISUB = 6;     // i1 := i2 - i3
+	public static final int IMUL = 7;     // i1 := i2 * i3
+	public static final int IDIV = 8;     // i1 := i2 / i3
+	public static final int IREM = 9;     // i1 := i2 % i3
+	public static final int INEG = 10;    // i1 := -i2
+	public static final int NOT = 11;     // i1 := !i2
+
+	// Comparisons, producing 0 or 1
+	public static final int IEQ = 12;     // i1 := i2 == i3
+	public static final int INE = 13;     // i1 := i2 != i3
+	public static final int ILT = 14;     // i1 := i2 < i3
+	public static final int ILE = 15;     // i1 := i2 <= i3
+	public static final int OEQ = 16;     // i1 := o2.equals(o3)
+	public static final int ONE = 17;     // i1 := !o2.equals(o3)
+
+	// Control flow
+	public static final int GOTO = 18;    // goto L
+	public static final int IFTRUE = 19;  // if i != 0 goto L
+	public static final int IFFALSE = 20; // if i == 0 goto L
+	public static final int IFEQ = 21;    // if i1 == i2 goto L
+	public static final int IFNE = 22;    // if i1 != i2 goto L
+	public static final int IFLT = 23;    // if i1 < i2 goto L
+	public static final int IFLE = 24;    // if i1 <= i2 goto L
+	public static final int IFGT = 25;    // if i1 > i2 goto L
+	public static final int IFGE = 26;    // if i1 >= i2 goto L
+
+	// Boxing
+	public static final int BOXINT = 27;    // o := Integer(i)
+	public static final int BOXBOOL = 28;   // o := Boolean(i)
+	public static final int BOXCHAR = 29;   // o := Character(i)
+	public static final int UNBOXINT = 30;  // i := ((Integer) o)
+	public static final int UNBOXBOOL = 31; // i := ((Boolean) o)
+	public static final int UNBOXCHAR = 32; // i := ((Character) o)
+
+	// Arrays, strings and records
+	public static final int NEWARRAY = 33;  // o := [o1, ..., on] with operands o, n, o1..on
+	public static final int GENARRAY = 34;  // o1 := [o2; i3]
+	public static final int ALOAD = 35;     // o1 := o2[i3]
+	public static final int ASTORE = 36;    // o1[i2] := clone of o3
+	public static final int SLOAD = 37;     // i1 := o2.charAt(i3)
+	public static final int LENGTH = 38;    // i1 := |o2|
+	public static final int NEWRECORD = 39; // o := {f1:o1, ..., fn:on} with operands o, k, n, o1..on (k names fields)
+	public static final int RLOAD = 40;     // o1 := o2.k
+	public static final int RSTORE = 41;    // o1.k := clone of o2
+
+	// Functions
+	public static final int CALL = 42;    // operands n (function), r (result register), argc, r1..rargc
+	public static final int IRETURN = 43; // return i
+	public static final int ORETURN = 44; // return o
+	public static final int RETURN = 45;  // return
+	public static final int TAILCALL = 51; // operands n (function), argc, r1..rargc; return the result of calling n
+
+	// Miscellaneous
+	public static final int ASSERT = 46;  // assert i != 0
+	public static final int IPRINT = 47;  // print int i
+	public static final int BPRINT = 48;  // print bool i
+	public static final int CPRINT = 49;  // print char i
+	public static final int OPRINT = 50;  // print o
+
+	/**
+	 * The mnemonic of each opcode, indexed by opcode.
+	 */
+	public static final String[] NAMES = { "iconst", "oconst", "imove", "omove", "oclone", "iadd", "isub", "imul",
+			"idiv", "irem", "ineg", "not", "ieq", "ine", "ilt", "ile", "oeq", "one", "goto", "iftrue", "iffalse",
+			"ifeq", "ifne", "iflt", "ifle", "ifgt", "ifge", "boxint", "boxbool", "boxchar", "unboxint", "unboxbool",
+			"unboxchar", "newarray", "genarray", "aload", "astore", "sload", "length", "newrecord", "rload",
+			"rstore", "call", "ireturn", "oreturn", "return", "assert", "iprint", "bprint", "cprint", "oprint",
+			"tailcall" };
+
+	/**
+	 * The number of fixed operands following each opcode, indexed by opcode.
+	 * Instructions with a variable number of operands give the count of their
+	 * trailing operands in their last fixed operand.
+	 */
+	public static final int[] OPERANDS = { 2, 2, 2, 2, 2, 3, 3, 3, 3, 3, 2, 2, 3, 3, 3, 3, 3, 3, 1, 2, 2, 3, 3, 3,
+			3, 3, 3, 2, 2, 2, 2, 2, 2, 2, 3, 3, 3, 3, 2, 3, 3, 3, 3, 1, 1, 0, 1, 1, 1, 1, 1, 2 };
+
+	/**
+	 * Determine the total length (in <code>int</code>s) of the instruction
+	 * starting at a given position.
+	 *
+	 * @param code
+	 * @param pc
+	 * @return
+	 */
+	public static int length(int[] code, int pc) {
+		int opcode = code[pc];
+		int length = 1 + OPERANDS[opcode];
+		if (opcode == NEWARRAY || opcode == NEWRECORD || opcode == CALL || opcode == TAILCALL) {
+			// Variable-length instructions
+			length += code[pc + length - 1];
+		}
+		return length;
+	}
+
+	private Opcodes() {
+	}
+}
@@ -0,0 +1,450 @@
+// This file is part of the WhileLang Compiler (wlc).
+//
+// The WhileLang Compiler is free software; you can redistribute
+// it and/or modify it under the terms of the GNU General Public
+// License as published by the Free Software Foundation; either
+// version 3 of the License, or (at your option) any later version.
+//
+// The WhileLang Compiler is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the
+// implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR
+// PURPOSE. See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public
+// License along with the WhileLang Compiler. If not, see
+// <http://www.gnu.org/licenses/>
+
+package whilelang.vm;
+
+import static whilelang.vm.Opcodes.*;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import whilelang.util.Interpreter;
+import whilelang.util.PrintBuffer;
+
+/**
+ * <p>
+ * Executes functions compiled into the register-based bytecode described by
+ * <code>Opcodes</code> (see <code>whilelang.compiler.BytecodeWriter</code>).
+ * Each call is given fresh banks of int and object registers, and executes its
+ * instructions in a single dispatch loop. Values held in the object bank are
+ * represented as by the <code>ClosureInterpreter</code>, rather than the
+ * <code>Interpreter</code>: arrays are <code>ArrayList</code>s and records are
+ * <code>HashMap</code>s, and both are copied eagerly whenever they are
+ * assigned or passed.
+ * </p>
+ * <p>
+ * By default, each call is made by a recursive call to the dispatch loop,
+ * and so consumes Java stack. Alternatively, calls can be made on an explicit
+ * call stack (see <code>setHeapStack()</code>). In either case, a tail call
+ * replaces the state of the current call, rather than suspending it, and so
+ * consumes no stack at all.
+ * </p>
+ *
+ */
+public class VirtualMachine {
+	private final Function[] functions;
+
+	/**
+	 * The result of the most recently completed call, in the bank determined
+	 * by the function's return kind.
+	 */
+	private int intResult;
+	private Object objectResult;
+
+	/**
+	 * Indicates whether calls are made on the explicit call stack, rather than
+	 * the Java stack.
+	 */
+	private boolean heapStack;
+
+	/**
+	 * The explicit call stack, holding the state of each suspended caller:
+	 * its function, its registers, and the position of the call instruction it
+	 * is suspended at. Entries at or above <code>depth</code> are unused.
+	 */
+	private Function[] callers = new Function[16];
+	private int[][] callerIregs = new int[16][];
+	private Object[][] callerOregs = new Object[16][];
+	private int[] callerPcs = new int[16];
+	private int depth;
+
+	/**
+	 * The sink for the output of print instructions.
+	 */
+	private final PrintBuffer output;
+
+	public VirtualMachine(Function[] functions) {
+		this(functions, System.out);
+	}
+
+	public VirtualMachine(Function[] functions, OutputStream out) {
+		this.functions = functions;
+		this.output = new PrintBuffer(out);
+	}
+
+	/**
+	 * Select whether calls are made on an explicit call stack held in the
+	 * heap, rather than on the Java stack (the default). The depth of calls is
+	 * then limited only by the available memory, though each call is somewhat
+	 * slower.
+	 *
+	 * @param enabled
+	 */
+	public void setHeapStack(boolean enabled) {
+		this.heapStack = enabled;
+	}
+
+	/**
+	 * Execute the <code>main</code> function, if one exists.
+	 */
+	public void run() {
+		// Discard any callers left suspended by a previous run which failed
+		Arrays.fill(callers, null);
+		Arrays.fill(callerIregs, null);
+		Arrays.fill(callerOregs, null);
+		depth = 0;
+		try {
+			for (Function f : functions) {
+				if (f.name.equals("main")) {
+					execute(f, new int[f.intRegisters], new Object[f.objectRegisters]);
+					return;
+				}
+			}
+			output.println("Cannot find a main() function");
+		} finally {
+			output.flush();
+		}
+	}
+
+	/**
+	 * Execute a given function in the given register banks, which already hold
+	 * its parameters, along with any function it calls on the explicit call
+	 * stack.
+	 *
+	 * @param function
+	 * @param iregs
+	 * @param oregs
+	 */
+	private void execute(Function function, int[] iregs, Object[] oregs) {
+		int[] code = function.code;
+		Object[] constants = function.constants;
+		int pc = 0;
+		// The depth of the call stack at which this execution finishes
+		final int base = depth;
+		while (true) {
+			switch (code[pc]) {
+			case ICONST:
+				iregs[code[pc + 1]] = code[pc + 2];
+				pc += 3;
+				break;
+			case OCONST:
+				oregs[code[pc + 1]] = constants[code[pc + 2]];
+				pc += 3;
+				break;
+			case IMOVE:
+				iregs[code[pc + 1]] = iregs[code[pc + 2]];
+				pc += 3;
+				break;
+			case OMOVE:
+				oregs[code[pc + 1]] = oregs[code[pc + 2]];
+				pc += 3;
+				break;
+			case OCLONE:
+				oregs[code[pc + 1]] = Interpreter.deepClone(oregs[code[pc + 2]]);
+				pc += 3;
+				break;
+			case IADD:
+				iregs[code[pc + 1]] = iregs[code[pc + 2]] + iregs[code[pc + 3]];
+				pc += 4;
+				break;
+			case ISUB:
+				iregs[code[pc + 1]] = iregs[code[pc + 2]] - iregs[code[pc + 3]];
+				pc += 4;
+				break;
+			case IMUL:
+				iregs[code[pc + 1]] = iregs[code[pc + 2]] * iregs[code[pc + 3]];
+				pc += 4;
+				break;
+			case IDIV:
+				iregs[code[pc + 1]] = iregs[code[pc + 2]] / iregs[code[pc + 3]];
+				pc += 4;
+				break;
+			case IREM:
+				iregs[code[pc + 1]] = iregs[code[pc + 2]] % iregs[code[pc + 3]];
+				pc += 4;
+				break;
+			case INEG:
+				iregs[code[pc + 1]] = -iregs[code[pc + 2]];
+				pc += 3;
+				break;
+			case NOT:
+				iregs[code[pc + 1]] = iregs[code[pc + 2]] ^ 1;
+				pc += 3;
+				break;
+			case IEQ:
+				iregs[code[pc + 1]] = iregs[code[pc + 2]] == iregs[code[pc + 3]] ? 1 : 0;
+				pc += 4;
+				break;
+			case INE:
+				iregs[code[pc + 1]] = iregs[code[pc + 2]] != iregs[code[pc + 3]] ? 1 : 0;
+				pc += 4;
+				break;
+			case ILT:
+				iregs[code[pc + 1]] = iregs[code[pc + 2]] < iregs[code[pc + 3]] ? 1 : 0;
+				pc += 4;
+				break;
+			case ILE:
+				iregs[code[pc + 1]] = iregs[code[pc + 2]] <= iregs[code[pc + 3]] ? 1 : 0;
+				pc += 4;
+				break;
+			case OEQ:
+				iregs[code[pc + 1]] = oregs[code[pc + 2]].equals(oregs[code[pc + 3]]) ? 1 : 0;
+				pc += 4;
+				break;
+			case ONE:
+				iregs[code[pc + 1]] = oregs[code[pc + 2]].equals(oregs[code[pc + 3]]) ? 0 : 1;
+				pc += 4;
+				break;
+			case GOTO:
+				pc += code[pc + 1];
+				break;
+			case IFTRUE:
+				pc += iregs[code[pc + 1]] != 0 ? code[pc + 2] : 3;
+				break;
+			case IFFALSE:
+				pc += iregs[code[pc + 1]] == 0 ? code[pc + 2] : 3;
+				break;
+			case IFEQ:
+				pc += iregs[code[pc + 1]] == iregs[code[pc + 2]] ? code[pc + 3] : 4;
+				break;
+			case IFNE:
+				pc += iregs[code[pc + 1]] != iregs[code[pc + 2]] ? code[pc + 3] : 4;
+				break;
+			case IFLT:
+				pc += iregs[code[pc + 1]] < iregs[code[pc + 2]] ? code[pc + 3] : 4;
+				break;
+			case IFLE:
+				pc += iregs[code[pc + 1]] <= iregs[code[pc + 2]] ? code[pc + 3] : 4;
+				break;
+			case IFGT:
+				pc += iregs[code[pc + 1]] > iregs[code[pc + 2]] ? code[pc + 3] : 4;
+				break;
+			case IFGE:
+				pc += iregs[code[pc + 1]] >= iregs[code[pc + 2]] ? code[pc + 3] : 4;
+				break;
+			case BOXINT:
+				oregs[code[pc + 1]] = iregs[code[pc + 2]];
+				pc += 3;
+				break;
+			case BOXBOOL:
+				oregs[code[pc + 1]] = iregs[code[pc + 2]] != 0;
+				pc += 3;
+				break;
+			case BOXCHAR:
+				oregs[code[pc + 1]] = (char) iregs[code[pc + 2]];
+				pc += 3;
+				break;
+			case UNBOXINT:
+				iregs[code[pc + 1]] = (Integer) oregs[code[pc + 2]];
+				pc += 3;
+				break;
+			case UNBOXBOOL:
+				iregs[code[pc + 1]] = ((Boolean) oregs[code[pc + 2]]) ? 1 : 0;
+				pc += 3;
+				break;
+			case UNBOXCHAR:
+				iregs[code[pc + 1]] = (Character) oregs[code[pc + 2]];
+				pc += 3;
+				break;
+			case NEWARRAY: {
+				int n = code[pc + 2];
+				ArrayList<Object> array = new ArrayList<Object>(n);
+				for (int i = 0; i != n; ++i) {
+					array.add(oregs[code[pc + 3 + i]]);
+				}
+				oregs[code[pc + 1]] = array;
+				pc += 3 + n;
+				break;
+			}
+			case GENARRAY: {
+				Object value = oregs[code[pc + 2]];
+				int n = iregs[code[pc + 3]];
+				ArrayList<Object> array = new ArrayList<Object>(n);
+				for (int i = 0; i < n; ++i) {
+					array.add(value);
+				}
+				oregs[code[pc + 1]] = array;
+				pc += 4;
+				break;
+			}
+			case ALOAD:
+				oregs[code[pc + 1]] = ((ArrayList<?>) oregs[code[pc + 2]]).get(iregs[code[pc + 3]]);
+				pc += 4;
+				break;
+			case ASTORE: {
+				// Array values are only ever constructed as ArrayList<Object>
+				@SuppressWarnings("unchecked")
+				ArrayList<Object> array = (ArrayList<Object>) oregs[code[pc + 1]];
+				array.set(iregs[code[pc + 2]], Interpreter.deepClone(oregs[code[pc + 3]]));
+				pc += 4;
+				break;
+			}
+			case SLOAD:
+				iregs[code[pc + 1]] = ((String) oregs[code[pc + 2]]).charAt(iregs[code[pc + 3]]);
+				pc += 4;
+				break;
+			case LENGTH: {
+				Object o = oregs[code[pc + 2]];
+				iregs[code[pc + 1]] = o instanceof String ? ((String) o).length() : ((ArrayList<?>) o).size();
+				pc += 3;
+				break;
+			}
+			case NEWRECORD: {
+				String[] fields = (String[]) constants[code[pc + 2]];
+				int n = code[pc + 3];
+				HashMap<String, Object> record = new HashMap<String, Object>();
+				for (int i = 0; i != n; ++i) {
+					record.put(fields[i], oregs[code[pc + 4 + i]]);
+				}
+				oregs[code[pc + 1]] = record;
+				pc += 4 + n;
+				break;
+			}
+			case RLOAD:
+				oregs[code[pc + 1]] = ((HashMap<?, ?>) oregs[code[pc + 2]]).get(constants[code[pc + 3]]);
+				pc += 4;
+				break;
+			case RSTORE: {
+				// Record values are only ever constructed as HashMap<String, Object>
+				@SuppressWarnings("unchecked")
+				HashMap<String, Object> record = (HashMap<String, Object>) oregs[code[pc + 1]];
+				record.put((String) constants[code[pc + 2]], Interpreter.deepClone(oregs[code[pc + 3]]));
+				pc += 4;
+				break;
+			}
+			case CALL:
+			case TAILCALL: {
+				boolean tail = code[pc] == TAILCALL;
+				Function callee = functions[code[pc + 1]];
+				int[] calleeIregs = new int[callee.intRegisters];
+				Object[] calleeOregs = new Object[callee.objectRegisters];
+				int args = tail ? pc + 3 : pc + 4;
+				int argc = code[args - 1];
+				for (int i = 0; i != argc; ++i) {
+					int register = code[args + i];
+					if (callee.parameterKinds[i] == Function.INT) {
+						calleeIregs[callee.parameterRegisters[i]] = iregs[register];
+					} else {
+						calleeOregs[callee.parameterRegisters[i]] = Interpreter.deepClone(oregs[register]);
+					}
+				}
+				if (!tail && !heapStack) {
+					execute(callee, calleeIregs, calleeOregs);
+					if (callee.returnKind == Function.INT) {
+						iregs[code[pc + 2]] = intResult;
+					} else if (callee.returnKind == Function.OBJECT) {
+						oregs[code[pc + 2]] = objectResult;
+					}
+					pc += 4 + argc;
+					break;
+				} else if (!tail) {
+					push(function, iregs, oregs, pc);
+				}
+				function = callee;
+				code = callee.code;
+				constants = callee.constants;
+				iregs = calleeIregs;
+				oregs = calleeOregs;
+				pc = 0;
+				break;
+			}
+			case IRETURN:
+			case ORETURN:
+			case RETURN: {
+				int opcode = code[pc];
+				if (opcode == IRETURN) {
+					intResult = iregs[code[pc + 1]];
+				} else if (opcode == ORETURN) {
+					objectResult = oregs[code[pc + 1]];
+				}
+				if (depth == base) {
+					return;
+				}
+				// Resume the caller suspended on the call stack
+				depth--;
+				function = callers[depth];
+				code = function.code;
+				constants = function.constants;
+				iregs = callerIregs[depth];
+				oregs = callerOregs[depth];
+				pc = callerPcs[depth];
+				callers[depth] = null;
+				callerIregs[depth] = null;
+				callerOregs[depth] = null;
+				if (opcode == IRETURN) {
+					iregs[code[pc + 2]] = intResult;
+				} else if (opcode == ORETURN) {
+					oregs[code[pc + 2]] = objectResult;
+				}
+				pc += 4 + code[pc + 3];
+				break;
+			}
+			case ASSERT:
+				if (iregs[code[pc + 1]] == 0) {
+					throw new RuntimeException("assertion failure");
+				}
+				pc += 2;
+				break;
+			case IPRINT:
+				output.print(iregs[code[pc + 1]]);
+				output.println();
+				pc += 2;
+				break;
+			case BPRINT:
+				output.print(iregs[code[pc + 1]] != 0);
+				output.println();
+				pc += 2;
+				break;
+			case CPRINT:
+				output.print((char) iregs[code[pc + 1]]);
+				output.println();
+				pc += 2;
+				break;
+			case OPRINT:
+				output.println(oregs[code[pc + 1]]);
+				pc += 2;
+				break;
+			default:
+				throw new RuntimeException("unknown opcode encountered (" + code[pc] + ") in " + function.name);
+			}
+		}
+	}
+
+	/**
+	 * Suspend a given caller at the call instruction at a given position.
+	 *
+	 * @param function
+	 * @param iregs
+	 * @param oregs
+	 * @param pc
+	 */
+	private void push(Function function, int[] iregs, Object[] oregs, int pc) {
+		if (depth == callers.length) {
+			int n = depth * 2;
+			callers = Arrays.copyOf(callers, n);
+			callerIregs = Arrays.copyOf(callerIregs, n);
+			callerOregs = Arrays.copyOf(callerOregs, n);
+			callerPcs = Arrays.copyOf(callerPcs, n);
+		}
+		callers[depth] = function;
+		callerIregs[depth] = iregs;
+		callerOregs[depth] = oregs;
+		callerPcs[depth] = pc;
+		depth++;
+	}
+}
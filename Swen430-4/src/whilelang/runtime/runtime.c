@@ -3,32 +3,95 @@
 #include <stdint.h>
 #include <assert.h>
 
+/**
+ * Output is written into a buffer, rather than through printf() for every
+ * value, and the buffer is written to stdout only when full and on exit.
+ * Since assertion() aborts (which does not run exit handlers), it flushes
+ * the buffer itself before failing.
+ */
+#define OUTPUT_BUFFER_SIZE 65536
+
+static char output[OUTPUT_BUFFER_SIZE];
+static size_t outputLength = 0;
+static int outputRegistered = 0;
+
+static void flushOutput() {
+  fwrite(output,1,outputLength,stdout);
+  fflush(stdout);
+  outputLength = 0;
+}
+
+/**
+ * Ensure there is room for at least n more characters in the buffer
+ */
+static void reserveOutput(size_t n) {
+  if(!outputRegistered) {
+    atexit(flushOutput);
+    outputRegistered = 1;
+  }
+  if(outputLength + n > OUTPUT_BUFFER_SIZE) {
+    flushOutput();
+  }
+}
+
+static void writeChar(char c) {
+  reserveOutput(1);
+  output[outputLength++] = c;
+}
+
+static void writeString(const char *str) {
+  while(*str != 0) {
+    writeChar(*str++);
+  }
+}
+
+static void writeInt(int64_t val) {
+  // An int64_t has at most 19 digits, plus a sign
+  char digits[20];
+  int n = 0;
+  // Negate as unsigned, so that the most negative value is handled correctly
+  uint64_t v = val < 0 ? -(uint64_t) val : (uint64_t) val;
+  do {
+    digits[n++] = '0' + (v % 10);
+    v = v / 10;
+  } while(v != 0);
+  reserveOutput(n+1);
+  if(val < 0) {
+    output[outputLength++] = '-';
+  }
+  while(n > 0) {
+    output[outputLength++] = digits[--n];
+  }
+}
+
 void prnbool(int64_t val) {
   if(val) {
-    printf("true\n");
+    writeString("true\n");
   } else {
-    printf("false\n");
+    writeString("false\n");
   }
 }
 
 void prnint(int64_t val) {
-  printf("%lld\n",val);
+  writeInt(val);
+  writeChar('\n');
 }
 
 void prnstr(char *val) {
-  printf("%s\n",val);
+  writeString(val);
+  writeChar('\n');
 }
 
 void prnintn(int64_t* val) {
-  printf("[");
+  writeChar('[');
   int length = val[0];
   for(int i=0;i!=length;++i) {
     if(i != 0) {
-      printf(", ");
+      writeString(", ");
     }
-    printf("%lld",val[i+1]);
+    writeInt(val[i+1]);
   }
-  printf("]\n");  
+  writeString("]\n");
 }
 
 /**
@@ -69,6 +132,9 @@ int64_t *intnfill(int64_t* dest, int64_t n, int64_t v) {
  * we cannot call "assert" directly as a function because it is, in fact, a macro.
  */
 void assertion(int64_t boolean) {
+  if(!boolean) {
+    flushOutput();
+  }
   assert(boolean);
 }
 